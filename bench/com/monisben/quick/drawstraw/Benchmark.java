@@ -0,0 +1,37 @@
+package com.monisben.quick.drawstraw;
+
+/**
+ * A single measured operation. The runner calls op() in a tight loop, so any
+ * setup belongs in setUp() and op() should return something derived from
+ * its work to keep the JIT from dropping it.
+ *
+ * @author Benjamin
+ *
+ */
+public abstract class Benchmark {
+
+	// What is measured and the parameter it was measured at, if any
+	public final String name;
+	public final String param;
+
+	protected Benchmark(String name, String param) {
+		this.name = name;
+		this.param = param;
+	}
+
+	/* Called once before warmup */
+	protected void setUp() throws Exception {
+	}
+
+	/* Called once after measuring */
+	protected void tearDown() throws Exception {
+	}
+
+	/* Runs one operation */
+	protected abstract int op() throws Exception;
+
+	/* True if each op() should also be timed on its own for percentiles */
+	protected boolean recordsLatency() {
+		return false;
+	}
+}
@@ -0,0 +1,230 @@
+package com.monisben.quick.drawstraw;
+
+import java.io.FileWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Runs the benchmarks and prints one JSON object per line, so results can be
+ * diffed or loaded by a regression check.
+ *
+ * Options, all optional:
+ * 
+ * --filter=text only run benchmarks whose name contains text
+ * --warmup=n warmup iterations (default 5)
+ * --iterations=n measured iterations (default 10)
+ * --time=ms length of each iteration (default 1000)
+ * --out=file also write the results to file
+ *
+ * @author Benjamin
+ *
+ */
+public class BenchmarkRunner {
+
+	private int mWarmup = 5;
+	private int mIterations = 10;
+	private long mTime = 1000;
+	private String mFilter;
+	private String mOut;
+
+	// Reports allocated bytes per thread on HotSpot
+	private final ThreadMXBean mThreads = ManagementFactory.getThreadMXBean();
+
+	public static void main(String[] args) throws Exception {
+		BenchmarkRunner runner = new BenchmarkRunner();
+		runner.parse(args);
+
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		benchmarks.addAll(CodecBenchmarks.all());
+		benchmarks.addAll(DrawBenchmark.all());
+		benchmarks.addAll(BroadcastBenchmark.all());
+		benchmarks.addAll(LoopbackBenchmark.all());
+
+		runner.run(benchmarks);
+
+		// The loopback server's reactors never stop on their own
+		System.exit(0);
+	}
+
+	private void parse(String[] args) {
+		for (String arg : args) {
+			int split = arg.indexOf('=');
+			String key = split < 0 ? arg : arg.substring(0, split);
+			String value = split < 0 ? "" : arg.substring(split + 1);
+
+			if (key.equals("--filter")) {
+				mFilter = value;
+			} else if (key.equals("--warmup")) {
+				mWarmup = Integer.parseInt(value);
+			} else if (key.equals("--iterations")) {
+				mIterations = Integer.parseInt(value);
+			} else if (key.equals("--time")) {
+				mTime = Long.parseLong(value);
+			} else if (key.equals("--out")) {
+				mOut = value;
+			} else {
+				throw new IllegalArgumentException("Unknown option " + arg);
+			}
+		}
+	}
+
+	private void run(List<Benchmark> benchmarks) throws Exception {
+		PrintWriter out = mOut == null ? null : new PrintWriter(
+				new FileWriter(mOut));
+		try {
+			for (Benchmark benchmark : benchmarks) {
+				if (mFilter != null && !benchmark.name.contains(mFilter)) {
+					continue;
+				}
+
+				String result = measure(benchmark);
+				System.out.println(result);
+				if (out != null) {
+					out.println(result);
+					out.flush();
+				}
+			}
+		} finally {
+			if (out != null) {
+				out.close();
+			}
+		}
+	}
+
+	/* Warms up, measures and formats the result of one benchmark */
+	private String measure(Benchmark benchmark) throws Exception {
+		benchmark.setUp();
+		try {
+			for (int i = 0; i < mWarmup; i++) {
+				iteration(benchmark, null);
+			}
+
+			double[] rates = new double[mIterations];
+			long ops = 0;
+			long allocated = 0;
+			LatencyRecorder latency = null;
+			if (benchmark.recordsLatency()) {
+				latency = new LatencyRecorder();
+			}
+
+			for (int i = 0; i < mIterations; i++) {
+				long before = allocatedBytes();
+				long start = System.nanoTime();
+				long count = iteration(benchmark, latency);
+				long elapsed = System.nanoTime() - start;
+				allocated += allocatedBytes() - before;
+
+				rates[i] = count * 1e9 / elapsed;
+				ops += count;
+			}
+
+			return format(benchmark, rates, ops, allocated, latency);
+		} finally {
+			benchmark.tearDown();
+		}
+	}
+
+	/* Runs op() for one iteration's worth of time, returns the count */
+	private long iteration(Benchmark benchmark, LatencyRecorder latency)
+			throws Exception {
+		long end = System.nanoTime() + mTime * 1000000L;
+		long count = 0;
+		int sink = 0;
+
+		if (latency == null) {
+			// Check the clock every so often rather than every op
+			do {
+				for (int i = 0; i < 256; i++) {
+					sink += benchmark.op();
+				}
+				count += 256;
+			} while (System.nanoTime() < end);
+		} else {
+			long now;
+			do {
+				long start = System.nanoTime();
+				sink += benchmark.op();
+				now = System.nanoTime();
+				latency.record(now - start);
+				count++;
+			} while (now < end);
+		}
+
+		if (sink == 42) {
+			System.err.print("");
+		}
+		return count;
+	}
+
+	private long allocatedBytes() {
+		if (mThreads instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) mThreads)
+					.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return 0;
+	}
+
+	private static String format(Benchmark benchmark, double[] rates,
+			long ops, long allocated, LatencyRecorder latency) {
+		double mean = 0;
+		for (double rate : rates) {
+			mean += rate;
+		}
+		mean /= rates.length;
+
+		double variance = 0;
+		for (double rate : rates) {
+			variance += (rate - mean) * (rate - mean);
+		}
+		double deviation = Math.sqrt(variance / Math.max(1, rates.length - 1));
+
+		StringBuilder builder = new StringBuilder();
+		builder.append("{\"benchmark\":\"").append(benchmark.name).append('"');
+		if (benchmark.param != null) {
+			builder.append(",\"param\":\"").append(benchmark.param)
+					.append('"');
+		}
+		builder.append(String.format(Locale.ROOT,
+				",\"ops_per_sec\":%.1f,\"stddev\":%.1f,\"ns_per_op\":%.1f",
+				mean, deviation, 1e9 / mean));
+		builder.append(String.format(Locale.ROOT, ",\"bytes_per_op\":%.1f",
+				(double) allocated / Math.max(1, ops)));
+		if (latency != null) {
+			builder.append(",\"p50_ns\":").append(latency.percentile(50));
+			builder.append(",\"p99_ns\":").append(latency.percentile(99));
+			builder.append(",\"p999_ns\":").append(latency.percentile(99.9));
+		}
+		builder.append('}');
+		return builder.toString();
+	}
+
+	/**
+	 * Keeps per op timings for the percentiles, sorted when asked.
+	 */
+	private static class LatencyRecorder {
+		private long[] mSamples = new long[1 << 16];
+		private int mCount;
+
+		void record(long nanos) {
+			if (mCount == mSamples.length) {
+				mSamples = Arrays.copyOf(mSamples, mCount * 2);
+			}
+			mSamples[mCount++] = nanos;
+		}
+
+		long percentile(double percent) {
+			if (mCount == 0) {
+				return 0;
+			}
+			long[] sorted = Arrays.copyOf(mSamples, mCount);
+			Arrays.sort(sorted);
+			int index = (int) Math.ceil(percent / 100.0 * mCount) - 1;
+			return sorted[Math.max(0, Math.min(mCount - 1, index))];
+		}
+	}
+}
@@ -0,0 +1,107 @@
+package com.monisben.quick.drawstraw;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Fan-out cost of a rename against room size: encoding what changed and
+ * queueing it for every member, as a full update for version 1 members and
+ * as a delta for version 2 ones. Members are real loopback connections so
+ * the connected checks behave, but nothing is written; the queues are
+ * emptied after each broadcast.
+ *
+ * @author Benjamin
+ *
+ */
+public class BroadcastBenchmark extends Benchmark {
+
+	private static final int[] ROOM_SIZES = { 3, 32, 256 };
+	private static final int[] VERSIONS = { Message.VERSION_1,
+			Message.VERSION_2 };
+
+	// The first member flips between these names
+	private static final String[] NAMES = { "renamed", "name0" };
+
+	private final int mSize;
+	private final int mVersion;
+	private int mRound;
+	private Reactor mReactor;
+	private Room mRoom;
+	private List<Connection> mMembers;
+	private List<SocketChannel> mChannels;
+
+	public BroadcastBenchmark(int size, int version) {
+		super("reactor.broadcast", "room=" + size + ",version=" + version);
+		mSize = size;
+		mVersion = version;
+	}
+
+	public static List<Benchmark> all() {
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		for (int size : ROOM_SIZES) {
+			for (int version : VERSIONS) {
+				benchmarks.add(new BroadcastBenchmark(size, version));
+			}
+		}
+		return benchmarks;
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		mReactor = new Reactor(null);
+		mRoom = new Room("bench", mSize, new TimerWheel());
+		mMembers = new ArrayList<Connection>();
+		mChannels = new ArrayList<SocketChannel>();
+
+		// Connect each member over loopback
+		ServerSocketChannel server = ServerSocketChannel.open();
+		server.socket().bind(
+				new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		for (int i = 0; i < mSize; i++) {
+			SocketChannel client = SocketChannel.open(server.socket()
+					.getLocalSocketAddress());
+			SocketChannel accepted = server.accept();
+			mChannels.add(client);
+			mChannels.add(accepted);
+
+			Connection member = new Connection(accepted,
+					OutboundQueue.DEFAULT_HIGH_WATER);
+			member.version = mVersion;
+			mRoom.add(member);
+			mRoom.rename(member, "name" + i);
+			mMembers.add(member);
+		}
+		server.close();
+
+		// Everyone has the room already
+		mReactor.broadcast(mRoom);
+		for (Connection member : mMembers) {
+			member.outbound.clear();
+		}
+	}
+
+	@Override
+	protected int op() throws Exception {
+		mRoom.rename(mMembers.get(0), NAMES[mRound++ & 1]);
+		mReactor.broadcast(mRoom);
+
+		long queued = 0;
+		for (int i = 0; i < mMembers.size(); i++) {
+			OutboundQueue outbound = mMembers.get(i).outbound;
+			queued += outbound.pendingBytes();
+			outbound.clear();
+		}
+		return (int) queued;
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		for (SocketChannel channel : mChannels) {
+			channel.close();
+		}
+	}
+}
@@ -0,0 +1,232 @@
+package com.monisben.quick.drawstraw;
+
+import java.io.IOException;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hammers a ChangeQueue from several producers while one thread drains it
+ * the way a reactor does, and checks the queue kept its promises:
+ *
+ * - every offer that returned true is applied exactly once, so no request
+ *   is ever linked into the queue twice or dropped from it
+ * - the last ops set on each request are the last ones applied
+ * - a single change offered after a drain always wakes the selector
+ *
+ * Exits with status 1 on the first broken promise. Options, all optional:
+ *
+ * --producers=n threads offering (default 4)
+ * --requests=n requests each producer owns (default 64)
+ * --offers=n offers each producer makes (default 250000)
+ * --pings=n single changes for the wakeup check (default 20000)
+ *
+ * @author Benjamin
+ *
+ */
+public class ChangeQueueStress {
+
+	// A select waiting this long had its wakeup missed
+	private static final long MISSED_WAKEUP_MS = 2000;
+
+	private int mProducers = 4;
+	private int mRequests = 64;
+	private int mOffers = 250000;
+	private int mPings = 20000;
+
+	/**
+	 * Counts what the queue applies instead of touching any channel.
+	 */
+	private static class CountingQueue extends ChangeQueue {
+
+		// The ops each request was last applied with, and all applied
+		final int[] lastOps;
+		final AtomicLong total = new AtomicLong();
+
+		CountingQueue(Selector selector, int requests) {
+			super(selector);
+			lastOps = new int[requests];
+		}
+
+		@Override
+		void apply(ChangeRequest change) {
+			lastOps[(Integer) change.attachment] = change.ops;
+			total.incrementAndGet();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		ChangeQueueStress stress = new ChangeQueueStress();
+		stress.parse(args);
+		boolean passed = stress.producers();
+		passed &= stress.wakeups();
+		System.out.println(passed ? "ok" : "FAILED");
+		System.exit(passed ? 0 : 1);
+	}
+
+	private void parse(String[] args) {
+		for (String arg : args) {
+			int split = arg.indexOf('=');
+			String key = split < 0 ? arg : arg.substring(0, split);
+			int value = split < 0 ? 0 : Integer.parseInt(arg
+					.substring(split + 1));
+
+			if (key.equals("--producers")) {
+				mProducers = value;
+			} else if (key.equals("--requests")) {
+				mRequests = value;
+			} else if (key.equals("--offers")) {
+				mOffers = value;
+			} else if (key.equals("--pings")) {
+				mPings = value;
+			} else {
+				throw new IllegalArgumentException("Unknown option " + arg);
+			}
+		}
+	}
+
+	/* Many producers at once, checking nothing is lost or doubled */
+	private boolean producers() throws Exception {
+		final Selector selector = Selector.open();
+		int count = mProducers * mRequests;
+		final CountingQueue queue = new CountingQueue(selector, count);
+		final ChangeRequest[] requests = new ChangeRequest[count];
+		for (int i = 0; i < count; i++) {
+			requests[i] = new ChangeRequest(null, ChangeRequest.CHANGEOPS, 0,
+					Integer.valueOf(i));
+		}
+
+		// Each producer only sets the ops of its own requests, counting up
+		final AtomicLong accepted = new AtomicLong();
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(mProducers);
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int p = 0; p < mProducers; p++) {
+			final int first = p * mRequests;
+			Thread thread = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						start.await();
+						long mine = 0;
+						for (int i = 0; i < mOffers; i++) {
+							ChangeRequest request = requests[first + i
+									% mRequests];
+							request.ops++;
+							if (queue.offer(request)) {
+								mine++;
+							}
+
+							// Let the drain in between offers even on one
+							// core
+							if (i % 16 == 0) {
+								Thread.yield();
+							}
+						}
+						accepted.addAndGet(mine);
+					} catch (InterruptedException e) {
+						// Stopped
+					} finally {
+						// Wake the drain so it sees the end without waiting
+						// out a select
+						done.countDown();
+						selector.wakeup();
+					}
+				}
+			}, "producer" + p);
+			thread.start();
+			threads.add(thread);
+		}
+
+		long began = System.nanoTime();
+		start.countDown();
+		int longSelects = 0;
+		while (done.getCount() > 0 || queue.size() > 0) {
+			queue.drain();
+			long before = System.nanoTime();
+			selector.select(MISSED_WAKEUP_MS);
+			selector.selectedKeys().clear();
+			if (System.nanoTime() - before >= MISSED_WAKEUP_MS * 1000000L
+					&& queue.size() > 0) {
+				longSelects++;
+			}
+		}
+		queue.drain();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		long elapsed = System.nanoTime() - began;
+
+		int stale = 0;
+		for (int i = 0; i < count; i++) {
+			if (queue.lastOps[i] != requests[i].ops) {
+				stale++;
+			}
+		}
+
+		long offers = (long) mProducers * mOffers;
+		System.out.println("producers=" + mProducers + " offers=" + offers
+				+ " accepted=" + accepted.get() + " applied="
+				+ queue.total.get() + " stale=" + stale + " missed_wakeups=" + longSelects
+				+ " ms=" + elapsed / 1000000);
+		selector.close();
+		return accepted.get() == queue.total.get() && stale == 0 && longSelects == 0 && queue.size() == 0;
+	}
+
+	/*
+	 * One change at a time, each offered only once the last was applied, so
+	 * the selector is always asleep or about to sleep when it arrives.
+	 */
+	private boolean wakeups() throws Exception {
+		final Selector selector = Selector.open();
+		final CountingQueue queue = new CountingQueue(selector, 1);
+		final ChangeRequest request = new ChangeRequest(null,
+				ChangeRequest.CHANGEOPS, 0, Integer.valueOf(0));
+		final int[] missed = new int[1];
+
+		Thread consumer = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					while (queue.total.get() < mPings) {
+						queue.drain();
+						if (queue.total.get() >= mPings) {
+							break;
+						}
+						long before = System.nanoTime();
+						selector.select(MISSED_WAKEUP_MS);
+						if (System.nanoTime() - before
+								>= MISSED_WAKEUP_MS * 1000000L) {
+							missed[0]++;
+						}
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+					missed[0]++;
+				}
+			}
+		}, "consumer");
+		consumer.start();
+
+		long began = System.nanoTime();
+		for (int i = 0; i < mPings; i++) {
+			request.ops = i + 1;
+			queue.offer(request);
+			while (queue.total.get() <= i) {
+				Thread.yield();
+			}
+		}
+		consumer.join();
+		long elapsed = System.nanoTime() - began;
+
+		System.out.println("pings=" + mPings + " applied="
+				+ queue.total.get() + " missed_wakeups=" + missed[0]
+				+ " ms=" + elapsed / 1000000);
+		selector.close();
+		return missed[0] == 0 && queue.total.get() == mPings;
+	}
+}
@@ -0,0 +1,351 @@
+package com.monisben.quick.drawstraw;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Starts a cluster of server processes on loopback and checks rooms end up
+ * where the ring says, before and after a node is added:
+ *
+ * - a client joining a room on the wrong node is sent SER_REDIRECT naming
+ *   the owner and closed, and the owner lets it in
+ * - once every node is given a ring with one more node, the members of
+ *   each room the new ring moves are redirected to its new owner, and the
+ *   members of every other room are left alone
+ *
+ * Each node is this class run with --node, taking ring changes on its
+ * standard input and passing them to NonBlockingServer.setRing(). Exits
+ * with status 1 if any check fails. Options, all optional:
+ *
+ * --nodes=n nodes started with (default 3), one more is added
+ * --rooms=n rooms joined (default 40)
+ * --port=n port of the first node, the rest follow it (default 9100)
+ *
+ * @author Benjamin
+ *
+ */
+public class ClusterCheck {
+
+	// How long to wait for anything a node should send
+	private static final int ANSWER_MS = 3000;
+
+	// How long a member left alone must hear nothing of a redirect
+	private static final int QUIET_MS = 300;
+
+	private int mNodes = 3;
+	private int mRooms = 40;
+	private int mPort = 9100;
+
+	private final List<Process> mProcesses = new ArrayList<Process>();
+	private final List<BufferedReader> mOutputs =
+			new ArrayList<BufferedReader>();
+
+	/**
+	 * One framed client in one room.
+	 */
+	private static class Member {
+
+		final String room;
+		final Socket socket;
+		final DataInputStream in;
+		final OutputStream out;
+
+		Member(String node, String room) throws IOException {
+			this.room = room;
+			int split = node.lastIndexOf(':');
+			socket = new Socket();
+			socket.connect(new InetSocketAddress(node.substring(0, split),
+					Integer.parseInt(node.substring(split + 1))), ANSWER_MS);
+			socket.setSoTimeout(ANSWER_MS);
+			in = new DataInputStream(socket.getInputStream());
+			out = socket.getOutputStream();
+
+			out.write(new byte[] { Message.MAGIC, Message.VERSION_2 });
+			if (in.readByte() != Message.MAGIC) {
+				throw new IOException("No preamble from " + node);
+			}
+			in.readByte();
+		}
+
+		void join() throws IOException {
+			Message message = new Message(Message.HEAD_JOIN, new String[] {
+					room, "4" });
+			ByteBuffer buffer = ByteBuffer.allocate(message.frameSize());
+			message.encode(buffer);
+			out.write(buffer.array(), 0, buffer.position());
+		}
+
+		/* The next message, or null if none comes in time */
+		Message next(int timeout) throws IOException {
+			socket.setSoTimeout(timeout);
+			int length;
+			try {
+				length = in.readInt();
+			} catch (SocketTimeoutException e) {
+				return null;
+			}
+			ByteBuffer frame = ByteBuffer.allocate(Message.LENGTH_SIZE
+					+ length);
+			frame.putInt(0, length);
+			in.readFully(frame.array(), Message.LENGTH_SIZE, length);
+			return Message.decode(frame);
+		}
+
+		/* Waits for the room's snapshot, returning false if it never comes */
+		boolean admitted() throws IOException {
+			Message message;
+			while ((message = next(ANSWER_MS)) != null) {
+				if (message.is(Message.SER_SNAPSHOT)) {
+					return true;
+				}
+				if (message.is(Message.SER_REDIRECT)) {
+					return false;
+				}
+			}
+			return false;
+		}
+
+		/*
+		 * Waits for a redirect, skipping room updates, and returns where it
+		 * points once the node has closed the connection; null for none
+		 */
+		String redirected(int timeout) throws IOException {
+			Message message;
+			while ((message = next(timeout)) != null) {
+				if (message.is(Message.SER_REDIRECT)) {
+					try {
+						while (next(ANSWER_MS) != null) {
+							// Nothing should follow it
+						}
+						return null;
+					} catch (EOFException e) {
+						return message.data[1] + ":" + message.data[2];
+					}
+				}
+			}
+			return null;
+		}
+
+		void close() {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// Done with it
+			}
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length > 0 && args[0].equals("--node")) {
+			String[] rest = new String[args.length - 1];
+			System.arraycopy(args, 1, rest, 0, rest.length);
+			node(rest);
+			return;
+		}
+
+		ClusterCheck check = new ClusterCheck();
+		check.parse(args);
+		boolean passed;
+		try {
+			passed = check.run();
+		} finally {
+			check.stop();
+		}
+		System.out.println(passed ? "ok" : "FAILED");
+		System.exit(passed ? 0 : 1);
+	}
+
+	/*
+	 * Runs one node with the server arguments given, until its standard
+	 * input closes. Each line "ring a:1,b:2" gives it a new ring.
+	 */
+	private static void node(String[] args) throws IOException {
+		ServerConfig config = ServerConfig.load(args);
+		NonBlockingServer server = new NonBlockingServer(config);
+		Thread thread = new Thread(server, "acceptor");
+		thread.setDaemon(true);
+		thread.start();
+
+		PrintStream out = System.out;
+		out.println("ready");
+		out.flush();
+
+		BufferedReader in = new BufferedReader(new InputStreamReader(
+				System.in, "US-ASCII"));
+		String line;
+		while ((line = in.readLine()) != null) {
+			if (line.startsWith("ring ")) {
+				server.setRing(new ConsistentHashRing(ConsistentHashRing
+						.nodes(line.substring("ring ".length())),
+						config.clusterSelf, config.clusterVirtualNodes));
+				out.println("ok");
+				out.flush();
+			}
+		}
+		System.exit(0);
+	}
+
+	private void parse(String[] args) {
+		for (String arg : args) {
+			int split = arg.indexOf('=');
+			String key = split < 0 ? arg : arg.substring(0, split);
+			int value = split < 0 ? 0 : Integer.parseInt(arg
+					.substring(split + 1));
+
+			if (key.equals("--nodes")) {
+				mNodes = value;
+			} else if (key.equals("--rooms")) {
+				mRooms = value;
+			} else if (key.equals("--port")) {
+				mPort = value;
+			} else {
+				throw new IllegalArgumentException("Unknown option " + arg);
+			}
+		}
+	}
+
+	private boolean run() throws Exception {
+		String host = InetAddress.getLoopbackAddress().getHostAddress();
+		List<String> all = new ArrayList<String>();
+		for (int i = 0; i <= mNodes; i++) {
+			all.add(host + ":" + (mPort + i));
+		}
+		List<String> first = all.subList(0, mNodes);
+
+		// The added node starts out knowing the ring it will be part of
+		for (int i = 0; i <= mNodes; i++) {
+			start(all.get(i), i < mNodes ? first : all);
+		}
+
+		ConsistentHashRing before = new ConsistentHashRing(first,
+				first.get(0), ConsistentHashRing.DEFAULT_VIRTUAL_NODES);
+		ConsistentHashRing after = new ConsistentHashRing(all, all.get(0),
+				ConsistentHashRing.DEFAULT_VIRTUAL_NODES);
+
+		// Join every room on a node not owning it, then where it says
+		int wrongRedirects = 0;
+		int refused = 0;
+		List<Member> members = new ArrayList<Member>();
+		for (int k = 0; k < mRooms; k++) {
+			String room = "room" + k;
+			int owner = before.nodeFor(room);
+			Member stray = new Member(before.node((owner + 1) % mNodes),
+					room);
+			stray.join();
+			String target = stray.redirected(ANSWER_MS);
+			stray.close();
+			if (!before.node(owner).equals(target)) {
+				wrongRedirects++;
+				target = before.node(owner);
+			}
+
+			Member member = new Member(target, room);
+			member.join();
+			if (!member.admitted()) {
+				refused++;
+			}
+			members.add(member);
+		}
+		System.out.println("joined rooms=" + mRooms + " wrong_redirects="
+				+ wrongRedirects + " refused=" + refused);
+
+		// Grow the ring on the first nodes to take in the last
+		StringBuilder ring = new StringBuilder("ring ");
+		for (int i = 0; i < all.size(); i++) {
+			ring.append(i > 0 ? "," : "").append(all.get(i));
+		}
+		for (int i = 0; i < mNodes; i++) {
+			command(i, ring.toString());
+		}
+
+		int moved = 0;
+		int missed = 0;
+		int disturbed = 0;
+		int reRefused = 0;
+		for (Member member : members) {
+			String was = before.node(before.nodeFor(member.room));
+			String now = after.node(after.nodeFor(member.room));
+			if (was.equals(now)) {
+				if (member.redirected(QUIET_MS) != null) {
+					disturbed++;
+				}
+				member.close();
+				continue;
+			}
+
+			moved++;
+			String target = member.redirected(ANSWER_MS);
+			member.close();
+			if (!now.equals(target)) {
+				missed++;
+				continue;
+			}
+			Member back = new Member(target, member.room);
+			back.join();
+			if (!back.admitted()) {
+				reRefused++;
+			}
+			back.close();
+		}
+		System.out.println("ring grown to " + all.size() + " moved="
+				+ moved + " missed=" + missed + " disturbed=" + disturbed
+				+ " refused=" + reRefused);
+
+		return wrongRedirects == 0 && refused == 0 && moved > 0
+				&& missed == 0 && disturbed == 0 && reRefused == 0;
+	}
+
+	/* Starts a node process and waits until it is listening */
+	private void start(String self, List<String> nodes) throws IOException {
+		StringBuilder cluster = new StringBuilder();
+		for (int i = 0; i < nodes.size(); i++) {
+			cluster.append(i > 0 ? "," : "").append(nodes.get(i));
+		}
+		String port = self.substring(self.lastIndexOf(':') + 1);
+
+		ProcessBuilder builder = new ProcessBuilder(System
+				.getProperty("java.home")
+				+ "/bin/java", "-cp", System.getProperty("java.class.path"),
+				ClusterCheck.class.getName(), "--node", "--port=" + port,
+				"--bind=" + self.substring(0, self.lastIndexOf(':')),
+				"--metrics.port=-1", "--reactors=2", "--cluster.nodes="
+						+ cluster, "--cluster.self=" + self);
+		builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+		Process process = builder.start();
+		mProcesses.add(process);
+		BufferedReader output = new BufferedReader(new InputStreamReader(
+				process.getInputStream(), "US-ASCII"));
+		mOutputs.add(output);
+		if (!"ready".equals(output.readLine())) {
+			throw new IOException("Node " + self + " did not start");
+		}
+	}
+
+	/* Sends a node a line and waits for it to be done */
+	private void command(int node, String line) throws IOException {
+		OutputStream in = mProcesses.get(node).getOutputStream();
+		in.write((line + "\n").getBytes("US-ASCII"));
+		in.flush();
+		if (!"ok".equals(mOutputs.get(node).readLine())) {
+			throw new IOException("Node " + node + " did not take " + line);
+		}
+	}
+
+	private void stop() {
+		for (Process process : mProcesses) {
+			process.destroy();
+		}
+	}
+}
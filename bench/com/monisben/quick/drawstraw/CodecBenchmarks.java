@@ -0,0 +1,105 @@
+package com.monisben.quick.drawstraw;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Message encode and decode throughput, binary and legacy text, for a room
+ * update of a few sizes.
+ *
+ * @author Benjamin
+ *
+ */
+public class CodecBenchmarks {
+
+	private static final int[] ROOM_SIZES = { 3, 64 };
+
+	public static List<Benchmark> all() {
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		for (int size : ROOM_SIZES) {
+			final Message update = update(size);
+			final String param = "room=" + size;
+
+			// Binary encode into a reused buffer
+			benchmarks.add(new Benchmark("codec.encode", param) {
+				private final ByteBuffer mBuffer = ByteBuffer.allocate(update
+						.frameSize());
+
+				@Override
+				protected int op() {
+					mBuffer.clear();
+					update.encode(mBuffer);
+					return mBuffer.position();
+				}
+			});
+
+			// Binary decode to a Message
+			benchmarks.add(new Benchmark("codec.decode", param) {
+				private final ByteBuffer mBuffer = encoded(update);
+
+				@Override
+				protected int op() throws Exception {
+					mBuffer.rewind();
+					return Message.decode(mBuffer).data.length;
+				}
+			});
+
+			// Binary decode through the reusable view the server uses
+			benchmarks.add(new Benchmark("codec.frame", param) {
+				private final ByteBuffer mBuffer = encoded(update);
+				private final Frame mFrame = new Frame();
+
+				@Override
+				protected int op() throws Exception {
+					mBuffer.rewind();
+					mFrame.wrap(mBuffer);
+					return mFrame.fieldEquals(0, "name0") ? 1 : 0;
+				}
+			});
+
+			// The old text format
+			benchmarks.add(new Benchmark("codec.legacyEncode", param) {
+				@Override
+				protected int op() throws Exception {
+					return update.encode().length;
+				}
+			});
+
+			benchmarks.add(new Benchmark("codec.legacyDecode", param) {
+				private final byte[] mBytes = legacy(update);
+
+				@Override
+				protected int op() throws Exception {
+					return Message.decode(mBytes).data.length;
+				}
+			});
+		}
+		return benchmarks;
+	}
+
+	/* A room update with size names and a loser */
+	static Message update(int size) {
+		String[] data = new String[size + 1];
+		for (int i = 0; i < size; i++) {
+			data[i] = "name" + i;
+		}
+		data[size] = "name0";
+		return new Message(Message.SER_UPDATE, data);
+	}
+
+	private static ByteBuffer encoded(Message message) {
+		ByteBuffer buffer = ByteBuffer.allocate(message.frameSize());
+		message.encode(buffer);
+		buffer.flip();
+		return buffer;
+	}
+
+	private static byte[] legacy(Message message) {
+		try {
+			return message.encode();
+		} catch (java.io.UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,48 @@
+package com.monisben.quick.drawstraw;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The cost of Room.draw() picking a loser, against room size. The room has
+ * no cooldown so every call draws.
+ *
+ * @author Benjamin
+ *
+ */
+public class DrawBenchmark extends Benchmark {
+
+	private static final int[] ROOM_SIZES = { 3, 100, 1000 };
+
+	private final int mSize;
+	private Room mRoom;
+
+	public DrawBenchmark(int size) {
+		super("room.draw", "room=" + size);
+		mSize = size;
+	}
+
+	public static List<Benchmark> all() {
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		for (int size : ROOM_SIZES) {
+			benchmarks.add(new DrawBenchmark(size));
+		}
+		return benchmarks;
+	}
+
+	@Override
+	protected void setUp() {
+		mRoom = new Room("bench", mSize, 0, new TimerWheel());
+		for (int i = 0; i < mSize; i++) {
+			Connection member = new Connection(null,
+					OutboundQueue.DEFAULT_HIGH_WATER);
+			mRoom.add(member);
+			mRoom.rename(member, "name" + i);
+		}
+	}
+
+	@Override
+	protected int op() {
+		return mRoom.draw() ? mRoom.getLoser().length() : 0;
+	}
+}
@@ -0,0 +1,263 @@
+package com.monisben.quick.drawstraw;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Encodes random messages into one stream and feeds it to a read buffer in
+ * random sized reads, the way a reactor reassembles frames, and checks that:
+ *
+ * - Frame.wrap() and Message.decode() give back every message whole and in
+ *   order, with its fields and correlation id, whether the buffer is on or
+ *   off the heap
+ * - frames bigger than the buffer make Message.compact() grow it
+ * - bad lengths and truncated fields throw ProtocolException rather than
+ *   being read past
+ *
+ * Exits with status 1 if any check fails. Options, all optional:
+ *
+ * --messages=n messages in the stream (default 20000)
+ * --seed=n random seed (default 1)
+ *
+ * @author Benjamin
+ *
+ */
+public class FrameCheck {
+
+	// Reads are up to this big, some much smaller than a frame
+	private static final int MAX_READ = 3000;
+
+	// Characters fields are made of, a high surrogate alone included
+	private static final String[] PIECES = { "a", "Z", "7", "/", "?", " ",
+			"\u00e9", "\u20ac", "\ud83c\udfb2", "\ud800" };
+
+	private int mMessages = 20000;
+	private long mSeed = 1;
+
+	private final Random mRandom = new Random();
+
+	public static void main(String[] args) throws Exception {
+		FrameCheck check = new FrameCheck();
+		check.parse(args);
+		boolean passed = check.run();
+		System.out.println(passed ? "ok" : "FAILED");
+		System.exit(passed ? 0 : 1);
+	}
+
+	private void parse(String[] args) {
+		for (String arg : args) {
+			int split = arg.indexOf('=');
+			String key = split < 0 ? arg : arg.substring(0, split);
+			long value = split < 0 ? 0 : Long.parseLong(arg
+					.substring(split + 1));
+
+			if (key.equals("--messages")) {
+				mMessages = (int) value;
+			} else if (key.equals("--seed")) {
+				mSeed = value;
+			} else {
+				throw new IllegalArgumentException("Unknown option " + arg);
+			}
+		}
+	}
+
+	private boolean run() {
+		mRandom.setSeed(mSeed);
+		List<Message> messages = new ArrayList<Message>();
+		int size = 0;
+		for (int i = 0; i < mMessages; i++) {
+			Message message = randomMessage();
+			messages.add(message);
+			size += message.frameSize();
+		}
+
+		ByteBuffer stream = ByteBuffer.allocate(size);
+		for (Message message : messages) {
+			int before = stream.position();
+			message.encode(stream);
+			if (stream.position() - before != message.frameSize()) {
+				System.out.println("frameSize() disagrees with encode()");
+				return false;
+			}
+		}
+		stream.flip();
+
+		boolean passed = reassemble(messages, stream, false, false);
+		passed &= reassemble(messages, stream, true, false);
+		passed &= reassemble(messages, stream, false, true);
+		passed &= reassemble(messages, stream, true, true);
+		passed &= malformed();
+		return passed;
+	}
+
+	/* A message with random fields, now and then one bigger than a read */
+	private Message randomMessage() {
+		String[] fields = new String[mRandom.nextInt(6)];
+		for (int i = 0; i < fields.length; i++) {
+			int length = mRandom.nextInt(50) == 0 ? mRandom.nextInt(20000)
+					: mRandom.nextInt(20);
+			StringBuilder builder = new StringBuilder();
+			for (int c = 0; c < length; c++) {
+				builder.append(PIECES[mRandom.nextInt(PIECES.length)]);
+			}
+			fields[i] = builder.toString();
+		}
+		Message message = new Message(mRandom.nextInt(256), fields);
+		message.correlation = mRandom.nextBoolean() ? mRandom.nextInt() : 0;
+		return message;
+	}
+
+	/*
+	 * Reads the stream through a buffer starting at the usual size, checking
+	 * each message that comes out against the one that went in.
+	 */
+	private boolean reassemble(List<Message> messages, ByteBuffer stream,
+			boolean direct, boolean decode) {
+		ByteBuffer source = stream.duplicate();
+		ByteBuffer buffer = direct ? ByteBuffer
+				.allocateDirect(Message.READ_BUFFER_SIZE) : ByteBuffer
+				.allocate(Message.READ_BUFFER_SIZE);
+		Frame frame = new Frame();
+		int next = 0;
+		int wrong = 0;
+		int grown = 0;
+		int capacity = buffer.capacity();
+
+		try {
+			while (source.hasRemaining() || buffer.position() > 0) {
+				// Read what fits, like a channel would
+				int read = Math.min(1 + mRandom.nextInt(MAX_READ), Math.min(
+						buffer.remaining(), source.remaining()));
+				ByteBuffer chunk = source.duplicate();
+				chunk.limit(chunk.position() + read);
+				buffer.put(chunk);
+				source.position(source.position() + read);
+				buffer.flip();
+
+				while (true) {
+					Message expected = next < messages.size() ? messages
+							.get(next) : null;
+					if (decode) {
+						Message message = Message.decode(buffer);
+						if (message == null) {
+							break;
+						}
+						frame.wrap(message);
+					} else if (!frame.wrap(buffer)) {
+						break;
+					}
+					if (expected == null || !matches(frame, expected)) {
+						wrong++;
+					}
+					next++;
+				}
+
+				buffer = Message.compact(buffer);
+				if (buffer.capacity() != capacity) {
+					capacity = buffer.capacity();
+					grown++;
+				}
+
+				// Nothing left to read but a partial frame, it is truncated
+				if (!source.hasRemaining() && buffer.position() > 0
+						&& read == 0) {
+					break;
+				}
+			}
+		} catch (ProtocolException e) {
+			System.out.println("Unexpected " + e);
+			return false;
+		}
+
+		System.out.println((direct ? "direct" : "heap") + " "
+				+ (decode ? "decode" : "frame") + " messages=" + next + "/"
+				+ messages.size() + " wrong=" + wrong + " grown=" + grown
+				+ " left=" + buffer.position());
+		return next == messages.size() && wrong == 0
+				&& buffer.position() == 0;
+	}
+
+	/* Compares what came out with what went in, as UTF-8 round trips it */
+	private boolean matches(Frame frame, Message expected) {
+		if (frame.header != expected.header
+				|| frame.correlation != expected.correlation
+				|| frame.fieldCount() != expected.data.length) {
+			return false;
+		}
+		for (int i = 0; i < expected.data.length; i++) {
+			String field = new String(
+					expected.data[i].getBytes(Message.UTF_8), Message.UTF_8);
+			if (!field.equals(frame.string(i))
+					|| !frame.fieldEquals(i, field)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/* Frames that lie about their size must throw, not be read past */
+	private boolean malformed() {
+		int caught = 0;
+
+		// Negative, too short and too long lengths
+		int[] lengths = { -1, Message.BODY_HEADER_SIZE - 1,
+				Message.MAX_FRAME_SIZE + 1 };
+		for (int length : lengths) {
+			ByteBuffer buffer = ByteBuffer.allocate(16);
+			buffer.putInt(length).put((byte) 1).putShort((short) 0).flip();
+			caught += throwsOnFrame(buffer) ? 1 : 0;
+			caught += throwsOnDecode(buffer) ? 1 : 0;
+			caught += throwsOnCompact(buffer) ? 1 : 0;
+		}
+
+		// A field running past the end of its frame
+		ByteBuffer buffer = ByteBuffer.allocate(32);
+		buffer.putInt(Message.BODY_HEADER_SIZE + 4).put((byte) 1)
+				.putShort((short) 1).putShort((short) 10).put((byte) 'a')
+				.put((byte) 'b').putInt(0).flip();
+		caught += throwsOnFrame(buffer) ? 1 : 0;
+		caught += throwsOnDecode(buffer) ? 1 : 0;
+
+		// More fields promised than the frame holds
+		buffer = ByteBuffer.allocate(32);
+		buffer.putInt(Message.BODY_HEADER_SIZE + 3).put((byte) 1)
+				.putShort((short) 2).putShort((short) 1).put((byte) 'a')
+				.put((byte) 0).flip();
+		caught += throwsOnFrame(buffer) ? 1 : 0;
+		caught += throwsOnDecode(buffer) ? 1 : 0;
+
+		int expected = lengths.length * 3 + 4;
+		System.out.println("malformed caught=" + caught + "/" + expected);
+		return caught == expected;
+	}
+
+	private boolean throwsOnFrame(ByteBuffer buffer) {
+		try {
+			new Frame().wrap(buffer.duplicate());
+			return false;
+		} catch (ProtocolException e) {
+			return true;
+		}
+	}
+
+	private boolean throwsOnDecode(ByteBuffer buffer) {
+		try {
+			Message.decode(buffer.duplicate());
+			return false;
+		} catch (ProtocolException e) {
+			return true;
+		}
+	}
+
+	private boolean throwsOnCompact(ByteBuffer buffer) {
+		try {
+			Message.compact(buffer.duplicate());
+			return false;
+		} catch (ProtocolException e) {
+			return true;
+		}
+	}
+}
@@ -0,0 +1,93 @@
+package com.monisben.quick.drawstraw;
+
+/**
+ * Counts latencies in log-linear buckets, each power of two split into 128
+ * steps, so recording is a few shifts and an increment and any percentile is
+ * within one percent of the true value no matter how many samples there are.
+ *
+ * Not thread-safe, give each thread its own and add them up at the end.
+ *
+ * @author Benjamin
+ *
+ */
+public class LatencyHistogram {
+
+	// Steps each power of two is split into
+	private static final int SUB_BITS = 7;
+	private static final int SUB = 1 << SUB_BITS;
+
+	// Enough buckets for any positive long
+	private static final int BUCKETS = (64 - SUB_BITS) * SUB;
+
+	private final long[] mCounts = new long[BUCKETS];
+	private long mCount;
+	private long mMax;
+
+	public void record(long nanos) {
+		long value = Math.max(0, nanos);
+		mCounts[index(value)]++;
+		mCount++;
+		if (value > mMax) {
+			mMax = value;
+		}
+	}
+
+	/* Adds every sample of the other histogram to this one */
+	public void add(LatencyHistogram other) {
+		for (int i = 0; i < BUCKETS; i++) {
+			mCounts[i] += other.mCounts[i];
+		}
+		mCount += other.mCount;
+		mMax = Math.max(mMax, other.mMax);
+	}
+
+	public void clear() {
+		for (int i = 0; i < BUCKETS; i++) {
+			mCounts[i] = 0;
+		}
+		mCount = 0;
+		mMax = 0;
+	}
+
+	public long count() {
+		return mCount;
+	}
+
+	public long max() {
+		return mMax;
+	}
+
+	/* The highest value in the bucket holding the given percentile */
+	public long percentile(double percent) {
+		if (mCount == 0) {
+			return 0;
+		}
+
+		long rank = Math.max(1, (long) Math.ceil(percent / 100.0 * mCount));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += mCounts[i];
+			if (seen >= rank) {
+				return Math.min(mMax, highest(i));
+			}
+		}
+		return mMax;
+	}
+
+	private static int index(long value) {
+		if (value < SUB) {
+			return (int) value;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+		return (shift + 1) * SUB + (int) ((value >>> shift) - SUB);
+	}
+
+	private static long highest(int index) {
+		if (index < SUB) {
+			return index;
+		}
+		int shift = index / SUB - 1;
+		long lowest = (long) (index % SUB + SUB) << shift;
+		return lowest + (1L << shift) - 1;
+	}
+}
@@ -0,0 +1,568 @@
+package com.monisben.quick.drawstraw;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Simulates many clients without any windows. A few selector threads each
+ * drive a share of the connections, join them to rooms and then send
+ * renames and draws at a fixed overall rate. The round trip is timed from
+ * when a request was due to be sent until its client reads the update that
+ * answers it, so a stalled server shows up in the latencies instead of just
+ * slowing the requests down.
+ *
+ * Options, all optional:
+ *
+ * --host=address server to load (default loopback)
+ * --port=n server port (default 9000)
+ * --embedded start a server in this process on a free port
+ * --reactors=n reactors for the embedded server (default cores)
+ * --blocking embed a BlockingServer instead, on virtual threads when the
+ *            JDK has them
+ * --sharded have the embedded server's reactors accept for themselves
+ * --clients=n connections to open (default 1000)
+ * --room-size=n clients per room (default 3)
+ * --threads=n selector threads (default 2)
+ * --rate=n requests per second over all clients (default 1000)
+ * --draw-ratio=f share of requests that are draws, once a room may draw
+ *                (default 0.2)
+ * --warmup=s seconds before measuring (default 5)
+ * --duration=s seconds to measure (default 30)
+ *
+ * Prints one JSON object with the throughput and latency percentiles. With
+ * --embedded every connection needs a file descriptor at both ends, so raise
+ * the open file limit before asking for tens of thousands of clients.
+ *
+ * @author Benjamin
+ *
+ */
+public class LoadGenerator {
+
+	// A request with no answer after this long counts as timed out
+	private static final long TIMEOUT = 5000000000L;
+
+	// Connects a thread has in flight at once while ramping up
+	private static final int MAX_CONNECTING = 256;
+
+	// A room's cooldown with some slack, in nanoseconds
+	private static final long COOLDOWN = (Room.COOLDOWN_TIME + 1000) * 1000000L;
+
+	private String mHost;
+	private int mPort = NonBlockingServer.SERVER_PORT;
+	private boolean mEmbedded;
+	private boolean mBlocking;
+	private boolean mSharded;
+	private int mReactors = Runtime.getRuntime().availableProcessors();
+	private int mClients = 1000;
+	private int mRoomSize = Room.DEFAULT_CAPACITY;
+	private int mThreads = 2;
+	private double mRate = 1000;
+	private double mDrawRatio = 0.2;
+	private long mWarmup = 5;
+	private long mDuration = 30;
+
+	public static void main(String[] args) throws Exception {
+		LoadGenerator generator = new LoadGenerator();
+		generator.parse(args);
+		System.out.println(generator.run());
+
+		// The embedded server's threads never stop on their own
+		System.exit(0);
+	}
+
+	private void parse(String[] args) {
+		for (String arg : args) {
+			int split = arg.indexOf('=');
+			String key = split < 0 ? arg : arg.substring(0, split);
+			String value = split < 0 ? null : arg.substring(split + 1);
+
+			if (key.equals("--host")) {
+				mHost = value;
+			} else if (key.equals("--port")) {
+				mPort = Integer.parseInt(value);
+			} else if (key.equals("--embedded")) {
+				mEmbedded = true;
+			} else if (key.equals("--blocking")) {
+				mBlocking = true;
+			} else if (key.equals("--sharded")) {
+				mSharded = true;
+			} else if (key.equals("--reactors")) {
+				mReactors = Integer.parseInt(value);
+			} else if (key.equals("--clients")) {
+				mClients = Integer.parseInt(value);
+			} else if (key.equals("--room-size")) {
+				mRoomSize = Integer.parseInt(value);
+			} else if (key.equals("--threads")) {
+				mThreads = Integer.parseInt(value);
+			} else if (key.equals("--rate")) {
+				mRate = Double.parseDouble(value);
+			} else if (key.equals("--draw-ratio")) {
+				mDrawRatio = Double.parseDouble(value);
+			} else if (key.equals("--warmup")) {
+				mWarmup = Long.parseLong(value);
+			} else if (key.equals("--duration")) {
+				mDuration = Long.parseLong(value);
+			} else {
+				throw new IllegalArgumentException("Unknown option " + arg);
+			}
+		}
+	}
+
+	/* Runs the load and formats what was measured */
+	private String run() throws Exception {
+		if (mRate <= 0 || mClients <= 0 || mRoomSize <= 0) {
+			throw new IllegalArgumentException(
+					"Rate, clients and room size must be positive");
+		}
+
+		InetSocketAddress address;
+		if (mEmbedded && mBlocking) {
+			BlockingServer server = new BlockingServer(
+					InetAddress.getLoopbackAddress(), 0, true);
+			Thread thread = new Thread(server, "server");
+			thread.setDaemon(true);
+			thread.start();
+			address = new InetSocketAddress(InetAddress.getLoopbackAddress(),
+					server.getPort());
+		} else if (mEmbedded) {
+			ServerConfig config = new ServerConfig();
+			config.bind = new InetAddress[] { InetAddress
+					.getLoopbackAddress() };
+			config.ports = new int[] { 0 };
+			config.metricsPort = -1;
+			config.reactors = mReactors;
+			config.acceptSharded = mSharded;
+
+			// Every client may be asked to go faster than a real one
+			config.messageRate = 0;
+			NonBlockingServer server = new NonBlockingServer(config);
+			Thread thread = new Thread(server, "server");
+			thread.setDaemon(true);
+			thread.start();
+			address = new InetSocketAddress(InetAddress.getLoopbackAddress(),
+					server.getPort());
+		} else if (mHost != null) {
+			address = new InetSocketAddress(InetAddress.getByName(mHost),
+					mPort);
+		} else {
+			address = new InetSocketAddress(InetAddress.getLoopbackAddress(),
+					mPort);
+		}
+
+		// Deal the clients out, keeping each room on one thread
+		Worker[] workers = new Worker[Math.max(1, mThreads)];
+		for (int i = 0; i < workers.length; i++) {
+			workers[i] = new Worker(address, mRate / workers.length, i);
+		}
+		int rooms = (mClients + mRoomSize - 1) / mRoomSize;
+		for (int i = 0; i < mClients; i++) {
+			int room = i / mRoomSize;
+			workers[room % workers.length].add(new Client(i, "load-" + room,
+					mRoomSize));
+		}
+
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < workers.length; i++) {
+			Thread thread = new Thread(workers[i], "load-" + i);
+			thread.start();
+			threads.add(thread);
+		}
+
+		Thread.sleep(mWarmup * 1000);
+		for (Worker worker : workers) {
+			worker.recording = true;
+		}
+		long start = System.nanoTime();
+		Thread.sleep(mDuration * 1000);
+		for (Worker worker : workers) {
+			worker.stopped = true;
+			worker.wakeup();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		long elapsed = System.nanoTime() - start;
+
+		// Add up what each thread saw
+		LatencyHistogram latency = new LatencyHistogram();
+		long connected = 0;
+		long sent = 0;
+		long skipped = 0;
+		long timeouts = 0;
+		long errors = 0;
+		for (Worker worker : workers) {
+			latency.add(worker.latency);
+			connected += worker.connected;
+			sent += worker.sent;
+			skipped += worker.skipped;
+			timeouts += worker.timeouts;
+			errors += worker.errors;
+		}
+
+		StringBuilder builder = new StringBuilder();
+		builder.append(String.format(Locale.ROOT,
+				"{\"clients\":%d,\"connected\":%d,\"rooms\":%d,"
+						+ "\"target_rate\":%.1f,\"duration_s\":%.1f",
+				mClients, connected, rooms, mRate, elapsed / 1e9));
+		builder.append(String.format(Locale.ROOT,
+				",\"sent\":%d,\"completed\":%d,\"ops_per_sec\":%.1f", sent,
+				latency.count(), latency.count() * 1e9 / elapsed));
+		builder.append(",\"skipped\":").append(skipped);
+		builder.append(",\"timeouts\":").append(timeouts);
+		builder.append(",\"errors\":").append(errors);
+		builder.append(",\"p50_us\":").append(latency.percentile(50) / 1000);
+		builder.append(",\"p99_us\":").append(latency.percentile(99) / 1000);
+		builder.append(",\"p999_us\":")
+				.append(latency.percentile(99.9) / 1000);
+		builder.append(",\"max_us\":").append(latency.max() / 1000);
+		builder.append('}');
+		return builder.toString();
+	}
+
+	/**
+	 * One simulated client. Only ever touched by the worker driving it.
+	 */
+	private static class Client {
+		final int id;
+		final String room;
+		final int roomSize;
+
+		SocketChannel channel;
+		SelectionKey key;
+		final OutboundQueue outbound = new OutboundQueue(
+				OutboundQueue.DEFAULT_HIGH_WATER);
+		ByteBuffer inbound = ByteBuffer.allocate(Message.READ_BUFFER_SIZE);
+		int version = Connection.UNKNOWN;
+
+		// Our copy of the room, set up by the first snapshot
+		final RoomReplica replica = new RoomReplica();
+		boolean joined;
+
+		// Draws seen so far and when the last one was seen
+		int draws;
+		long lastDraw = System.nanoTime() - COOLDOWN;
+
+		// The request waiting on an answer, 0 if none, and whether it was
+		// sent after warmup
+		int pending;
+		String pendingName;
+		long due;
+		boolean measured;
+		int sequence;
+
+		Client(int id, String room, int roomSize) {
+			this.id = id;
+			this.room = room;
+			this.roomSize = roomSize;
+		}
+
+		boolean isIdle() {
+			return joined && pending == 0;
+		}
+
+		void queue(Message message) {
+			ByteBuffer buffer = ByteBuffer.allocate(message.frameSize());
+			message.encode(buffer);
+			buffer.flip();
+			outbound.add(buffer);
+		}
+	}
+
+	/**
+	 * A selector thread driving its share of the clients.
+	 */
+	private class Worker implements Runnable {
+		final InetSocketAddress address;
+		final Selector selector;
+		final List<Client> clients = new ArrayList<Client>();
+		final Random random;
+
+		// Nanoseconds between requests from this thread
+		final long interval;
+		long nextSend;
+
+		// Next client to connect, number connecting, and where to look for
+		// an idle client
+		int nextConnect;
+		int connecting;
+		int cursor;
+		long nextTimeoutCheck;
+
+		volatile boolean recording;
+		volatile boolean stopped;
+
+		final LatencyHistogram latency = new LatencyHistogram();
+		long connected;
+		long sent;
+		long skipped;
+		long timeouts;
+		long errors;
+
+		Worker(InetSocketAddress address, double rate, int seed)
+				throws IOException {
+			this.address = address;
+			selector = SelectorProvider.provider().openSelector();
+			random = new Random(seed);
+			interval = Math.max(1, (long) (1e9 / rate));
+		}
+
+		void add(Client client) {
+			clients.add(client);
+		}
+
+		void wakeup() {
+			selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			nextSend = System.nanoTime();
+			try {
+				while (!stopped) {
+					connectMore();
+
+					long now = System.nanoTime();
+					sendDue(now);
+					if (now >= nextTimeoutCheck) {
+						expire(now);
+						nextTimeoutCheck = now + TIMEOUT / 10;
+					}
+
+					// Sleep until the next request is due
+					long wait = (nextSend - System.nanoTime()) / 1000000L;
+					if (wait > 0) {
+						selector.select(wait);
+					} else {
+						selector.selectNow();
+					}
+
+					Iterator<SelectionKey> keys = selector.selectedKeys()
+							.iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						handle(key);
+					}
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			} finally {
+				for (Client client : clients) {
+					close(client);
+				}
+			}
+		}
+
+		/* Starts connecting more clients, a batch at a time */
+		private void connectMore() throws IOException {
+			while (connecting < MAX_CONNECTING
+					&& nextConnect < clients.size()) {
+				Client client = clients.get(nextConnect++);
+				client.channel = SocketChannel.open();
+				client.channel.configureBlocking(false);
+				client.channel.socket().setTcpNoDelay(true);
+				client.channel.connect(address);
+				client.key = client.channel.register(selector,
+						SelectionKey.OP_CONNECT, client);
+				connecting++;
+			}
+		}
+
+		private void handle(SelectionKey key) {
+			Client client = (Client) key.attachment();
+			try {
+				if (key.isConnectable()) {
+					finishConnect(client);
+					return;
+				}
+				if (key.isReadable()) {
+					read(client);
+				}
+				if (key.isValid() && key.isWritable()) {
+					write(client);
+				}
+			} catch (IOException e) {
+				errors++;
+				close(client);
+			}
+		}
+
+		/* Opens the session, joins the room and gives a name */
+		private void finishConnect(Client client) throws IOException {
+			connecting--;
+			client.channel.finishConnect();
+			connected++;
+
+			ByteBuffer preamble = ByteBuffer.allocate(Message.PREAMBLE_SIZE);
+			Message.writePreamble(preamble, Message.PROTOCOL_VERSION);
+			preamble.flip();
+			client.outbound.add(preamble);
+			client.queue(new Message(Message.HEAD_JOIN, new String[] {
+					client.room, Integer.toString(client.roomSize) }));
+			client.queue(new Message(Message.HEAD_NAME, "c" + client.id));
+			write(client);
+		}
+
+		private void write(Client client) throws IOException {
+			if (client.outbound.flush(client.channel)) {
+				client.key.interestOps(SelectionKey.OP_READ);
+			} else {
+				client.key.interestOps(SelectionKey.OP_READ
+						| SelectionKey.OP_WRITE);
+			}
+		}
+
+		private void read(Client client) throws IOException {
+			if (client.channel.read(client.inbound) < 0) {
+				throw new IOException("Server closed the connection");
+			}
+			ByteBuffer inbound = client.inbound;
+			inbound.flip();
+
+			// The server opens with the version it settled on
+			if (client.version == Connection.UNKNOWN) {
+				if (inbound.remaining() < Message.PREAMBLE_SIZE) {
+					inbound.compact();
+					return;
+				}
+				if (inbound.get() != Message.MAGIC) {
+					throw new ProtocolException("Unknown server protocol");
+				}
+				client.version = inbound.get() & 0xFF;
+			}
+
+			Message message;
+			while ((message = Message.decode(inbound)) != null) {
+				if (client.replica.apply(message)) {
+					update(client);
+				} else if (client.replica.isStale()) {
+					// Missed a change, start again from a snapshot
+					errors++;
+					client.queue(new Message(Message.HEAD_RESYNC,
+							Message.EMPTY));
+					write(client);
+				}
+			}
+			client.inbound = Message.compact(inbound);
+		}
+
+		/* Completes the request the room's new state answers, if any */
+		private void update(Client client) {
+			RoomReplica replica = client.replica;
+			client.joined = true;
+
+			boolean answered = false;
+			if (replica.getDraws() != client.draws) {
+				client.draws = replica.getDraws();
+				client.lastDraw = System.nanoTime();
+				answered = client.pending == Message.HEAD_DRAW;
+			}
+			if (client.pending == Message.HEAD_NAME
+					&& replica.contains(client.pendingName)) {
+				answered = true;
+			}
+
+			if (answered) {
+				if (client.measured) {
+					latency.record(System.nanoTime() - client.due);
+				}
+				client.pending = 0;
+				client.pendingName = null;
+			}
+		}
+
+		/* Sends every request which has fallen due */
+		private void sendDue(long now) throws IOException {
+			while (nextSend <= now) {
+				long due = nextSend;
+				nextSend += interval;
+
+				Client client = nextIdle();
+				if (client == null) {
+					// Everyone is waiting, the server is behind the rate so
+					// drop whatever else is due rather than look again
+					long missed = 1 + Math.max(0, now - nextSend) / interval;
+					nextSend += (missed - 1) * interval;
+					if (recording) {
+						skipped += missed;
+					}
+					continue;
+				}
+
+				// Draws are only answered once the room's cooldown is over
+				Message request;
+				if (client.replica.isFull()
+						&& now - client.lastDraw > COOLDOWN
+						&& random.nextDouble() < mDrawRatio) {
+					request = new Message(Message.HEAD_DRAW, Message.EMPTY);
+					client.pending = Message.HEAD_DRAW;
+				} else {
+					client.pendingName = "c" + client.id + "-"
+							+ (client.sequence++);
+					request = new Message(Message.HEAD_NAME,
+							client.pendingName);
+					client.pending = Message.HEAD_NAME;
+				}
+				client.due = due;
+				client.measured = recording;
+				client.queue(request);
+				write(client);
+				if (client.measured) {
+					sent++;
+				}
+			}
+		}
+
+		/* Finds the next client without a request in flight */
+		private Client nextIdle() {
+			int size = clients.size();
+			for (int i = 0; i < size; i++) {
+				Client client = clients.get(cursor);
+				cursor = (cursor + 1) % size;
+				if (client.isIdle() && client.key != null
+						&& client.key.isValid()) {
+					return client;
+				}
+			}
+			return null;
+		}
+
+		/* Gives up on requests which have waited too long */
+		private void expire(long now) {
+			for (Client client : clients) {
+				if (client.pending != 0 && now - client.due > TIMEOUT) {
+					if (client.measured) {
+						timeouts++;
+					}
+					client.pending = 0;
+					client.pendingName = null;
+				}
+			}
+		}
+
+		private void close(Client client) {
+			if (client.key != null) {
+				client.key.cancel();
+			}
+			if (client.channel != null) {
+				try {
+					client.channel.close();
+				} catch (IOException e) {
+					// Already gone
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,182 @@
+package com.monisben.quick.drawstraw;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * End to end round trip through a real server on loopback. One member of a
+ * room renames itself and the op completes once every member has read the
+ * resulting update, so it covers decode, broadcast, the selector loops and
+ * the network stack. Per op latencies are reported as percentiles.
+ *
+ * @author Benjamin
+ *
+ */
+public class LoopbackBenchmark extends Benchmark {
+
+	private static final int[] ROOM_SIZES = { 3, 32 };
+
+	// Full updates against deltas
+	private static final int[] VERSIONS = { Message.VERSION_1,
+			Message.VERSION_2 };
+
+	// Reactors the server runs with
+	private static final int REACTORS = 2;
+
+	private static NonBlockingServer sServer;
+
+	private final int mSize;
+	private final int mVersion;
+	private final List<Member> mMembers = new ArrayList<Member>();
+	private int mRound;
+
+	public LoopbackBenchmark(int size, int version) {
+		super("loopback.rename", "room=" + size + ",version=" + version);
+		mSize = size;
+		mVersion = version;
+	}
+
+	public static List<Benchmark> all() {
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		for (int size : ROOM_SIZES) {
+			for (int version : VERSIONS) {
+				benchmarks.add(new LoopbackBenchmark(size, version));
+			}
+		}
+		return benchmarks;
+	}
+
+	/* Starts one server for every loopback benchmark */
+	private static synchronized InetSocketAddress server() throws IOException {
+		if (sServer == null) {
+			// Renames go as fast as the round trip, far over any client's
+			// rate, so the limits are off
+			ServerConfig config = new ServerConfig();
+			config.bind = new InetAddress[] { InetAddress
+					.getLoopbackAddress() };
+			config.ports = new int[] { 0 };
+			config.metricsPort = -1;
+			config.reactors = REACTORS;
+			config.messageRate = 0;
+			sServer = new NonBlockingServer(config);
+			Thread thread = new Thread(sServer, "bench-server");
+			thread.setDaemon(true);
+			thread.start();
+		}
+		return new InetSocketAddress(InetAddress.getLoopbackAddress(),
+				sServer.getPort());
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		InetSocketAddress address = server();
+		String room = "loopback-" + mSize + "-" + System.nanoTime();
+
+		for (int i = 0; i < mSize; i++) {
+			Member member = new Member(address, mVersion);
+			member.send(new Message(Message.HEAD_JOIN, new String[] { room,
+					Integer.toString(mSize) }));
+			member.send(new Message(Message.HEAD_NAME, "member" + i));
+			mMembers.add(member);
+		}
+
+		// Wait for everyone to see the full room
+		String last = "member" + (mSize - 1);
+		for (Member member : mMembers) {
+			member.await(last);
+		}
+	}
+
+	@Override
+	protected boolean recordsLatency() {
+		return true;
+	}
+
+	@Override
+	protected int op() throws Exception {
+		String name = "r" + (mRound++);
+		mMembers.get(0).send(new Message(Message.HEAD_NAME, name));
+		for (Member member : mMembers) {
+			member.await(name);
+		}
+		return name.length();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		for (Member member : mMembers) {
+			member.channel.close();
+		}
+		mMembers.clear();
+	}
+
+	/**
+	 * A blocking client speaking the binary protocol.
+	 */
+	private static class Member {
+		final SocketChannel channel;
+		private ByteBuffer mInbound = ByteBuffer
+				.allocate(Message.READ_BUFFER_SIZE);
+		private final ByteBuffer mOutbound = ByteBuffer.allocate(4096);
+		private final RoomReplica mReplica = new RoomReplica();
+
+		Member(InetSocketAddress address, int version) throws IOException {
+			channel = SocketChannel.open(address);
+			channel.socket().setTcpNoDelay(true);
+
+			mOutbound.clear();
+			Message.writePreamble(mOutbound, version);
+			mOutbound.flip();
+			write();
+
+			// The server answers with its preamble
+			while (mInbound.position() < Message.PREAMBLE_SIZE) {
+				channel.read(mInbound);
+			}
+			mInbound.flip();
+			mInbound.position(Message.PREAMBLE_SIZE);
+			mInbound.compact();
+		}
+
+		void send(Message message) throws IOException {
+			mOutbound.clear();
+			message.encode(mOutbound);
+			mOutbound.flip();
+			write();
+		}
+
+		private void write() throws IOException {
+			while (mOutbound.hasRemaining()) {
+				channel.write(mOutbound);
+			}
+		}
+
+		/*
+		 * Reads until the room lists the name. Members hand over to the
+		 * room's reactor at different times so the seat is not known.
+		 */
+		void await(String name) throws IOException {
+			while (true) {
+				mInbound.flip();
+				Message message;
+				while ((message = Message.decode(mInbound)) != null) {
+					if (mReplica.apply(message) && mReplica.contains(name)) {
+						mInbound = Message.compact(mInbound);
+						return;
+					} else if (mReplica.isStale()) {
+						throw new IOException("Missed a delta");
+					}
+				}
+				mInbound = Message.compact(mInbound);
+				if (channel.read(mInbound) < 0) {
+					throw new IOException("Server closed the connection");
+				}
+			}
+		}
+	}
+}
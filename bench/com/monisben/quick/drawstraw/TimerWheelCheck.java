@@ -0,0 +1,170 @@
+package com.monisben.quick.drawstraw;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Drives a TimerWheel the way a reactor does, sleeping for
+ * timeUntilNextTick() and then expiring, and checks that:
+ *
+ * - every scheduled timeout runs exactly once, never early and at most a
+ *   tick plus some scheduling slack late, including delays longer than the
+ *   wheel goes round
+ * - cancelled timeouts never run, and moved ones only run at their new time
+ * - a task cancelling or moving others in the same bucket loses none
+ * - the wheel is empty afterwards
+ *
+ * Exits with status 1 if any check fails. Options, all optional:
+ *
+ * --timeouts=n timeouts scheduled (default 20000)
+ * --seed=n random seed (default 1)
+ *
+ * @author Benjamin
+ *
+ */
+public class TimerWheelCheck {
+
+	// A small, fine wheel so long delays go round it many times
+	private static final long TICK = 2;
+	private static final int BUCKETS = 16;
+	private static final long MAX_DELAY = 300;
+
+	// How late a timeout may run on a busy machine
+	private static final long SLACK = 100;
+
+	private int mTimeouts = 20000;
+	private long mSeed = 1;
+
+	// Per timeout: when it should run, when it did and how often, and
+	// whether it was cancelled
+	private long[] mDue;
+	private long[] mRan;
+	private int[] mRuns;
+	private boolean[] mCancelled;
+	private TimerWheel.Timeout[] mAll;
+
+	private TimerWheel mWheel;
+	private final Random mRandom = new Random();
+
+	public static void main(String[] args) throws Exception {
+		TimerWheelCheck check = new TimerWheelCheck();
+		check.parse(args);
+		boolean passed = check.run();
+		System.out.println(passed ? "ok" : "FAILED");
+		System.exit(passed ? 0 : 1);
+	}
+
+	private void parse(String[] args) {
+		for (String arg : args) {
+			int split = arg.indexOf('=');
+			String key = split < 0 ? arg : arg.substring(0, split);
+			long value = split < 0 ? 0 : Long.parseLong(arg
+					.substring(split + 1));
+
+			if (key.equals("--timeouts")) {
+				mTimeouts = (int) value;
+			} else if (key.equals("--seed")) {
+				mSeed = value;
+			} else {
+				throw new IllegalArgumentException("Unknown option " + arg);
+			}
+		}
+	}
+
+	private boolean run() throws IOException, InterruptedException {
+		mRandom.setSeed(mSeed);
+		mWheel = new TimerWheel(TICK, BUCKETS);
+		mDue = new long[mTimeouts];
+		mRan = new long[mTimeouts];
+		mRuns = new int[mTimeouts];
+		mCancelled = new boolean[mTimeouts];
+		mAll = new TimerWheel.Timeout[mTimeouts];
+
+		// Records its run, and every tenth one cancels or moves another
+		TimerWheel.Task task = new TimerWheel.Task() {
+
+			@Override
+			public void run(TimerWheel.Timeout timeout) {
+				int id = (Integer) timeout.attachment;
+				mRan[id] = TimerWheel.now();
+				mRuns[id]++;
+				if (id % 10 == 0) {
+					disturb(mRandom.nextInt(mTimeouts));
+				}
+			}
+		};
+
+		long now = TimerWheel.now();
+		for (int i = 0; i < mTimeouts; i++) {
+			mAll[i] = new TimerWheel.Timeout(task, Integer.valueOf(i));
+			long delay = mRandom.nextInt((int) MAX_DELAY);
+			mDue[i] = now + delay;
+			mWheel.schedule(mAll[i], delay);
+		}
+
+		// Cancel or move some before anything runs
+		for (int i = 0; i < mTimeouts / 10; i++) {
+			disturb(mRandom.nextInt(mTimeouts));
+		}
+
+		long end = TimerWheel.now() + MAX_DELAY * 4;
+		while (mWheel.size() > 0 && TimerWheel.now() < end) {
+			long wait = mWheel.timeUntilNextTick();
+			if (wait > 0) {
+				Thread.sleep(wait);
+			}
+			mWheel.expire();
+		}
+
+		int lost = 0;
+		int twice = 0;
+		int early = 0;
+		int late = 0;
+		int ranCancelled = 0;
+		long worst = 0;
+		for (int i = 0; i < mTimeouts; i++) {
+			if (mCancelled[i]) {
+				if (mRuns[i] != 0) {
+					ranCancelled++;
+				}
+				continue;
+			}
+			if (mRuns[i] == 0) {
+				lost++;
+				continue;
+			}
+			if (mRuns[i] > 1) {
+				twice++;
+			}
+			long off = mRan[i] - mDue[i];
+			if (off < 0) {
+				early++;
+			} else if (off > TICK + SLACK) {
+				late++;
+			}
+			worst = Math.max(worst, off);
+		}
+
+		System.out.println("timeouts=" + mTimeouts + " lost=" + lost
+				+ " twice=" + twice + " early=" + early + " late=" + late
+				+ " ran_cancelled=" + ranCancelled + " worst_late_ms="
+				+ worst + " left=" + mWheel.size());
+		return lost == 0 && twice == 0 && early == 0 && late == 0
+				&& ranCancelled == 0 && mWheel.size() == 0;
+	}
+
+	/* Cancels the timeout or moves it later, unless it already ran */
+	private void disturb(int id) {
+		if (mRuns[id] > 0 || mCancelled[id]) {
+			return;
+		}
+		if (mRandom.nextBoolean()) {
+			mWheel.cancel(mAll[id]);
+			mCancelled[id] = true;
+		} else {
+			long delay = mRandom.nextInt((int) MAX_DELAY);
+			mDue[id] = TimerWheel.now() + delay;
+			mWheel.schedule(mAll[id], delay);
+		}
+	}
+}
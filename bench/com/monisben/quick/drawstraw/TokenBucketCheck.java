@@ -0,0 +1,201 @@
+package com.monisben.quick.drawstraw;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Checks TokenBucket against a clock it is handed rather than the real one,
+ * and that AdmissionControl gives back tokens it took for nothing:
+ *
+ * - a fresh bucket gives exactly its burst, also to many threads at once
+ * - over a stretch of time no more than the burst plus the refill is taken
+ * - putBack() returns one token and never fills the bucket past full
+ * - waitTime() is 0 exactly when a token can be taken
+ * - connections refused by their address leave the accept bucket as it was
+ *
+ * Exits with status 1 if any check fails. Options, all optional:
+ *
+ * --threads=n threads taking at once (default 8)
+ *
+ * @author Benjamin
+ *
+ */
+public class TokenBucketCheck {
+
+	private static final long SECOND = 1000000000L;
+
+	private int mThreads = 8;
+
+	public static void main(String[] args) throws Exception {
+		TokenBucketCheck check = new TokenBucketCheck();
+		check.parse(args);
+		boolean passed = check.burst();
+		passed &= check.concurrent();
+		passed &= check.refill();
+		passed &= check.putBack();
+		passed &= check.admission();
+		System.out.println(passed ? "ok" : "FAILED");
+		System.exit(passed ? 0 : 1);
+	}
+
+	private void parse(String[] args) {
+		for (String arg : args) {
+			int split = arg.indexOf('=');
+			String key = split < 0 ? arg : arg.substring(0, split);
+			int value = split < 0 ? 0 : Integer.parseInt(arg
+					.substring(split + 1));
+
+			if (key.equals("--threads")) {
+				mThreads = value;
+			} else {
+				throw new IllegalArgumentException("Unknown option " + arg);
+			}
+		}
+	}
+
+	/* A fresh bucket gives its burst and then waits for the refill */
+	private boolean burst() {
+		long now = System.nanoTime();
+		TokenBucket bucket = new TokenBucket(10, 5);
+		int taken = take(bucket, now, 100);
+		boolean waits = bucket.waitTime(now) > 0 && !bucket.tryTake(now);
+
+		// One token's worth later exactly one more comes back
+		long later = now + SECOND / 10;
+		boolean waited = bucket.waitTime(later) == 0 && bucket.tryTake(later)
+				&& !bucket.tryTake(later);
+
+		System.out.println("burst taken=" + taken + "/5 waits=" + waits
+				+ " refilled=" + waited);
+		return taken == 5 && waits && waited;
+	}
+
+	/* Many threads taking at the same instant share exactly the burst */
+	private boolean concurrent() throws InterruptedException {
+		final long now = System.nanoTime();
+		final int burst = 10000;
+		final TokenBucket bucket = new TokenBucket(1, burst);
+		final AtomicLong taken = new AtomicLong();
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < mThreads; t++) {
+			Thread thread = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					taken.addAndGet(take(bucket, now, burst));
+				}
+			}, "taker" + t);
+			thread.start();
+			threads.add(thread);
+		}
+		start.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		System.out.println("concurrent threads=" + mThreads + " taken="
+				+ taken.get() + "/" + burst);
+		return taken.get() == burst;
+	}
+
+	/* Taking as fast as possible for a while gets the burst and the rate */
+	private boolean refill() {
+		long start = System.nanoTime();
+		double rate = 1000;
+		int burst = 50;
+		TokenBucket bucket = new TokenBucket(rate, burst);
+		long taken = 0;
+
+		// Ten simulated seconds in uneven steps
+		long now = start;
+		for (int step = 0; now - start < 10 * SECOND; step++) {
+			now += (step % 7 + 1) * SECOND / 1000;
+			taken += take(bucket, now, Integer.MAX_VALUE);
+		}
+		long allowed = burst + (long) (rate * (now - start) / SECOND);
+
+		System.out.println("refill taken=" + taken + " allowed=" + allowed);
+		return taken <= allowed && taken >= allowed - burst;
+	}
+
+	/* Putting back returns a token, but never more than were taken */
+	private boolean putBack() {
+		long now = System.nanoTime();
+		TokenBucket bucket = new TokenBucket(1, 3);
+		take(bucket, now, 3);
+		bucket.putBack();
+		boolean one = bucket.tryTake(now) && !bucket.tryTake(now);
+
+		// A full bucket stays full
+		TokenBucket full = new TokenBucket(1, 3);
+		long later = now + 60 * SECOND;
+		full.putBack();
+		full.putBack();
+		int taken = take(full, later, 100);
+
+		System.out.println("put_back returned_one=" + one + " full_taken="
+				+ taken + "/3");
+		return one && taken == 3;
+	}
+
+	/*
+	 * With one connection allowed per address and an accept bucket that
+	 * never refills, refusing connections by address must not use it up.
+	 */
+	private boolean admission() throws Exception {
+		ServerConfig config = ServerConfig.load(new String[] {
+				"--accept.rate=0.001", "--accept.burst=2",
+				"--ip.connections=1" });
+		AdmissionControl admission = new AdmissionControl(config);
+
+		ServerSocketChannel server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+				0));
+		SocketChannel client = SocketChannel.open(server.getLocalAddress());
+		SocketChannel channel = server.accept();
+
+		long now = System.nanoTime();
+		Connection first = new Connection(channel, 0);
+		boolean admitted = admission.admit(first, now) == null;
+		int refused = 0;
+		for (int i = 0; i < 20; i++) {
+			if (AdmissionControl.FULL.equals(admission.admit(new Connection(
+					channel, 0), now))) {
+				refused++;
+			}
+		}
+
+		// The second accept token is still there once the address has room
+		admission.release(first);
+		boolean second = admission.admit(new Connection(channel, 0), now)
+				== null;
+
+		channel.close();
+		client.close();
+		server.close();
+		System.out.println("admission first=" + admitted + " refused="
+				+ refused + "/20 second=" + second);
+		return admitted && refused == 20 && second;
+	}
+
+	/* Takes up to most tokens, returning how many it got */
+	private static int take(TokenBucket bucket, long now, int most) {
+		int taken = 0;
+		while (taken < most && bucket.tryTake(now)) {
+			taken++;
+		}
+		return taken;
+	}
+}
@@ -0,0 +1,321 @@
+package com.monisben.quick.drawstraw;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides who gets in and how fast they may talk, shared by the acceptor and
+ * every reactor. A new connection is checked against a cap on connections
+ * and a token bucket on accepts, for the whole server and for its source
+ * address; each message is then taken from the connection's own bucket and
+ * its address's. Everything is counted with atomics, so no selector thread
+ * ever waits on another, and a client within its limits pays a compare and
+ * swap or two.
+ *
+ * Clients over a limit are told so with SER_REJECT: reason | retry ms, where
+ * the reason is FULL, BUSY or RATE. A connection turned away at accept is
+ * sent a preamble and the reject and closed without waiting on it; a
+ * message over the rate is dropped, and the client only hears about it once
+ * until a message of its is let through again.
+ *
+ * Old text clients cannot read a reject. At accept a client's version is
+ * only known if its first bytes have already arrived. An old client that
+ * has spoken is closed without a word; one that has not spoken yet is sent
+ * the framed reject like any other, then closed. Old clients over the
+ * message rate are never told, and their messages are just dropped.
+ *
+ * Addresses are only tracked when a per address limit is set, and one is
+ * forgotten once it has no connections and its buckets have refilled.
+ *
+ * @author Benjamin
+ *
+ */
+public class AdmissionControl {
+
+	// Why a client was turned away: too many connections, connecting too
+	// fast, or sending too fast
+	public static final String FULL = "full";
+	public static final String BUSY = "busy";
+	public static final String RATE = "rate";
+
+	// Defaults for the limits that are on unless turned off
+	public static final int DEFAULT_MAX_CONNECTIONS = 100000;
+	public static final double DEFAULT_MESSAGE_RATE = 100;
+	public static final int DEFAULT_MESSAGE_BURST = 200;
+
+	// Milliseconds a client turned away at accept is asked to wait
+	private static final long RETRY_AFTER = 1000;
+
+	// Addresses admitted between sweeps for ones no longer needed
+	private static final int SWEEP_EVERY = 1024;
+
+	/**
+	 * The connections and buckets of one source address.
+	 */
+	public static class Source {
+
+		// Open connections, or -1 once swept so admits look the address up
+		// again
+		final AtomicInteger connections = new AtomicInteger();
+
+		// Null where there is no limit
+		final TokenBucket accepts;
+		final TokenBucket messages;
+
+		Source(TokenBucket accepts, TokenBucket messages) {
+			this.accepts = accepts;
+			this.messages = messages;
+		}
+
+		/* Checks if there is nothing worth remembering */
+		boolean isIdle(long now) {
+			return (accepts == null || accepts.isFull(now))
+					&& (messages == null || messages.isFull(now));
+		}
+	}
+
+	// Every connection admitted and not yet released, and the cap, 0 for
+	// none
+	private final AtomicInteger mConnections = new AtomicInteger();
+	private final int mMaxConnections;
+
+	// Accepts over the whole server, null for no limit
+	private final TokenBucket mAccepts;
+
+	// Each connection's message bucket, a rate of 0 for none
+	private final double mMessageRate;
+	private final int mMessageBurst;
+
+	// Per address limits, 0 for none, and the addresses when any are set
+	private final int mIpConnections;
+	private final double mIpAcceptRate;
+	private final double mIpMessageRate;
+	private final ConcurrentHashMap<InetAddress, Source> mSources;
+	private final AtomicInteger mAdmits = new AtomicInteger();
+
+	public AdmissionControl(ServerConfig config) {
+		mMaxConnections = config.connectionsMax;
+		mAccepts = config.acceptRate > 0 ? new TokenBucket(config.acceptRate,
+				config.acceptBurst) : null;
+		mMessageRate = config.messageRate;
+		mMessageBurst = config.messageBurst;
+		mIpConnections = config.ipConnections;
+		mIpAcceptRate = config.ipAcceptRate;
+		mIpMessageRate = config.ipMessageRate;
+		mSources = mIpConnections > 0 || mIpAcceptRate > 0
+				|| mIpMessageRate > 0 ? new ConcurrentHashMap<InetAddress, Source>()
+				: null;
+	}
+
+	/*
+	 * Admits a newly accepted connection, or turns it away and closes it.
+	 * Returns true if it was let in; it must be released once closed.
+	 */
+	public boolean accept(Connection connection, long now) {
+		String reason = admit(connection, now);
+		if (reason == null) {
+			return true;
+		}
+		turnAway(connection.channel, reason, RETRY_AFTER);
+		return false;
+	}
+
+	/* Admits the connection, returning null or the reason it is refused */
+	public String admit(Connection connection, long now) {
+		int open = mConnections.incrementAndGet();
+		if (mMaxConnections > 0 && open > mMaxConnections) {
+			mConnections.decrementAndGet();
+			return FULL;
+		}
+		if (mAccepts != null && !mAccepts.tryTake(now)) {
+			mConnections.decrementAndGet();
+			return BUSY;
+		}
+		if (mSources != null) {
+			String reason = admitSource(connection, now);
+			if (reason != null) {
+				// Refused by its address, so the accept token went unused
+				if (mAccepts != null) {
+					mAccepts.putBack();
+				}
+				mConnections.decrementAndGet();
+				return reason;
+			}
+		}
+
+		connection.admitted = true;
+		if (mMessageRate > 0) {
+			connection.messages = new TokenBucket(mMessageRate, mMessageBurst);
+		}
+		return null;
+	}
+
+	/* Counts the connection against its address */
+	private String admitSource(Connection connection, long now) {
+		InetAddress address = connection.channel.socket().getInetAddress();
+		while (true) {
+			Source source = mSources.get(address);
+			if (source == null) {
+				source = new Source(bucket(mIpAcceptRate),
+						bucket(mIpMessageRate));
+				Source raced = mSources.putIfAbsent(address, source);
+				if (raced != null) {
+					source = raced;
+				}
+			}
+
+			int open = source.connections.get();
+			if (open < 0) {
+				// Swept under us, start again with a new one
+				mSources.remove(address, source);
+				continue;
+			}
+			if (mIpConnections > 0 && open >= mIpConnections) {
+				return FULL;
+			}
+			if (!source.connections.compareAndSet(open, open + 1)) {
+				continue;
+			}
+			if (source.accepts != null && !source.accepts.tryTake(now)) {
+				source.connections.decrementAndGet();
+				return BUSY;
+			}
+
+			connection.source = source;
+			if (mAdmits.incrementAndGet() % SWEEP_EVERY == 0) {
+				sweep(now);
+			}
+			return null;
+		}
+	}
+
+	/* Gives back what an admitted connection held, once it has closed */
+	public void release(Connection connection) {
+		if (!connection.admitted) {
+			return;
+		}
+		connection.admitted = false;
+		mConnections.decrementAndGet();
+		if (connection.source != null) {
+			connection.source.connections.decrementAndGet();
+			connection.source = null;
+		}
+	}
+
+	/*
+	 * Takes a message's worth from the connection's buckets, returning false
+	 * if it is sending faster than allowed and the message should be
+	 * dropped. Nothing is taken from either bucket for a dropped message.
+	 */
+	public boolean allow(Connection connection, long now) {
+		TokenBucket own = connection.messages;
+		if (own != null && !own.tryTake(now)) {
+			return false;
+		}
+		Source source = connection.source;
+		if (source == null || source.messages == null
+				|| source.messages.tryTake(now)) {
+			return true;
+		}
+
+		// Its address is over, so the connection's token went unused
+		if (own != null) {
+			own.putBack();
+		}
+		return false;
+	}
+
+	/* Milliseconds until the connection may send again, at least 1 */
+	public long retryAfter(Connection connection, long now) {
+		long wait = 0;
+		if (connection.messages != null) {
+			wait = connection.messages.waitTime(now);
+		}
+		Source source = connection.source;
+		if (source != null && source.messages != null) {
+			wait = Math.max(wait, source.messages.waitTime(now));
+		}
+		return Math.max(1, (wait + 999999) / 1000000);
+	}
+
+	/* Connections admitted and not yet released */
+	public int getConnections() {
+		return mConnections.get();
+	}
+
+	/* The reject telling a client why and how long to wait */
+	public static Message reject(String reason, long retryMillis) {
+		return new Message(Message.SER_REJECT, new String[] { reason,
+				Long.toString(retryMillis) });
+	}
+
+	/*
+	 * Sends the preamble and a reject to a newly accepted client, as far as
+	 * the socket takes without waiting, and closes it. An old text client
+	 * that has already spoken is closed without them.
+	 */
+	public static void turnAway(SocketChannel channel, String reason,
+			long retryMillis) {
+		try {
+			ByteBuffer scratch = ByteBuffer.allocate(256);
+			int first = drain(channel, scratch);
+			if (first < 0 || (byte) first == Message.MAGIC) {
+				Message reject = reject(reason, retryMillis);
+				ByteBuffer out = ByteBuffer.allocate(Message.PREAMBLE_SIZE
+						+ reject.frameSize());
+				Message.writePreamble(out, Message.PROTOCOL_VERSION);
+				reject.encode(out);
+				out.flip();
+				channel.write(out);
+
+				// Anything sent meanwhile, before saying we are done
+				drain(channel, scratch);
+				channel.socket().shutdownOutput();
+			}
+		} catch (IOException e) {
+			// Going anyway
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// Already gone
+		}
+	}
+
+	/*
+	 * Reads and drops whatever the client has sent, as closing with input
+	 * unread resets the connection and can lose the reject. Returns the
+	 * first byte read, or -1 if there was nothing.
+	 */
+	private static int drain(SocketChannel channel, ByteBuffer scratch)
+			throws IOException {
+		int first = -1;
+		for (int i = 0; i < 4 && channel.read(scratch) > 0; i++) {
+			if (first < 0) {
+				first = scratch.get(0) & 0xFF;
+			}
+			scratch.clear();
+		}
+		return first;
+	}
+
+	/* Forgets addresses with no connections and full buckets */
+	private void sweep(long now) {
+		for (Map.Entry<InetAddress, Source> entry : mSources.entrySet()) {
+			Source source = entry.getValue();
+			if (source.isIdle(now) && source.connections.compareAndSet(0, -1)) {
+				mSources.remove(entry.getKey(), source);
+			}
+		}
+	}
+
+	/* A bucket holding a second's worth at the rate, or null for none */
+	private static TokenBucket bucket(double rate) {
+		return rate > 0 ? new TokenBucket(rate, (int) Math.ceil(rate)) : null;
+	}
+}
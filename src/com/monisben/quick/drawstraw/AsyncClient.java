@@ -0,0 +1,591 @@
+package com.monisben.quick.drawstraw;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A client for programs rather than people, driving any number of server
+ * connections from one selector thread. Every request returns a
+ * CompletableFuture completed by the server's SER_RESULT for it, matched by
+ * correlation id, so a connection may have many requests in flight and
+ * whatever is waiting goes out in one write.
+ *
+ * Futures complete on the selector thread, so anything slow chained on
+ * them should be moved to an executor of its own. A session ends, failing
+ * all it still waits on, when the server closes it, stops answering or
+ * sends it to another cluster node; getRedirect() then says where. Results
+ * need a version 3 server, which only the non-blocking server is.
+ *
+ * @author Benjamin
+ *
+ */
+public class AsyncClient implements Runnable,
+		ChangeQueue.RegistrationListener {
+
+	// Bytes of requests a session may have waiting on its socket before it
+	// is given up
+	public static final int MAX_WAITING = 4 * 1024 * 1024;
+
+	/**
+	 * What the server made of a request.
+	 */
+	public static class Result {
+
+		// Message.RESULT_OK, Message.RESULT_REFUSED or AdmissionControl.RATE
+		public final String status;
+
+		// The room, name or loser, or the retry ms when rate limited
+		public final String value;
+
+		public Result(String status, String value) {
+			this.status = status;
+			this.value = value;
+		}
+
+		public boolean isOk() {
+			return Message.RESULT_OK.equals(status);
+		}
+
+		@Override
+		public String toString() {
+			return status + " " + value;
+		}
+	}
+
+	public interface RoomListener {
+
+		/*
+		 * Called on the selector thread whenever the session's room changes.
+		 * Anything it throws is printed and the session carries on.
+		 */
+		public void onRoom(Session session, String[] room);
+	}
+
+	/**
+	 * One connection to a server. Requests may be sent from any thread.
+	 */
+	public class Session {
+
+		private final SocketChannel mChannel;
+
+		// The one change request reused for the channel
+		private final ChangeRequest mChange;
+
+		// Told about the room, may be null
+		private final RoomListener mListener;
+
+		// Completed once the server has answered the preamble
+		private final CompletableFuture<Session> mConnected =
+				new CompletableFuture<Session>();
+
+		// Request ids handed out, and the requests still waiting on results
+		private final AtomicInteger mIds = new AtomicInteger();
+		private final ConcurrentHashMap<Integer, CompletableFuture<Result>>
+				mPending = new ConcurrentHashMap<Integer,
+						CompletableFuture<Result>>();
+
+		// Encoded requests handed over by other threads
+		private final Queue<ByteBuffer> mOutgoing =
+				new ConcurrentLinkedQueue<ByteBuffer>();
+
+		// Set on the selector thread once requests may ask for writes
+		private volatile boolean mReady;
+
+		// Why the session ended, null while it is open
+		private volatile IOException mFailure;
+
+		// Where the server sent us, and our seat's room and token
+		private volatile InetSocketAddress mRedirect;
+		private volatile String mRoom;
+		private volatile String mToken;
+
+		// Everything below is only touched by the selector thread
+		private final OutboundQueue mOutbound = new OutboundQueue(MAX_WAITING);
+		private ByteBuffer mInbound = ByteBuffer
+				.allocate(Message.READ_BUFFER_SIZE);
+		private int mVersion = Connection.UNKNOWN;
+		private final RoomReplica mReplica = new RoomReplica();
+		private boolean mResyncing;
+
+		// When the server last sent anything and we last wrote, in
+		// TimerWheel.now() time
+		private long mLastRead;
+		private long mLastWrite;
+
+		private Session(SocketChannel channel, RoomListener listener) {
+			mChannel = channel;
+			mListener = listener;
+			mChange = new ChangeRequest(channel, ChangeRequest.REGISTER,
+					SelectionKey.OP_CONNECT, this);
+		}
+
+		/* Moves to the room, creating it with the capacity if it is new */
+		public CompletableFuture<Result> join(String room, int capacity) {
+			return request(Message.HEAD_JOIN, new String[] { room,
+					Integer.toString(capacity) });
+		}
+
+		/* Moves to the room, creating it at the server's default size */
+		public CompletableFuture<Result> join(String room) {
+			return request(Message.HEAD_JOIN, new String[] { room });
+		}
+
+		/* Takes back a seat held under a token from an earlier session */
+		public CompletableFuture<Result> resume(String room, String token) {
+			return request(Message.HEAD_RESUME, new String[] { room, token });
+		}
+
+		public CompletableFuture<Result> name(String name) {
+			return request(Message.HEAD_NAME, new String[] { name });
+		}
+
+		/* Draws in the room, refused until every seat is named */
+		public CompletableFuture<Result> draw() {
+			return request(Message.HEAD_DRAW, new String[0]);
+		}
+
+		/* Asks for the whole room to be sent again */
+		public CompletableFuture<Result> resync() {
+			return request(Message.HEAD_RESYNC, new String[0]);
+		}
+
+		/* Completes once the server echoes a ping, whatever room we are in */
+		public CompletableFuture<Result> ping() {
+			int id = nextId();
+			return send(id, new Message(Message.HEAD_PING,
+					new String[] { Integer.toString(id) }));
+		}
+
+		/* Ends the session, failing anything still waiting */
+		public void close() {
+			fail(new IOException("Session closed"));
+		}
+
+		public boolean isOpen() {
+			return mFailure == null;
+		}
+
+		/* The node the server redirected us to, unresolved, or null */
+		public InetSocketAddress getRedirect() {
+			return mRedirect;
+		}
+
+		/* The room and token of our seat, to resume it elsewhere */
+		public String getRoom() {
+			return mRoom;
+		}
+
+		public String getToken() {
+			return mToken;
+		}
+
+		private CompletableFuture<Result> request(int header, String[] fields) {
+			return send(nextId(), new Message(header, fields));
+		}
+
+		/* Ids count up from 1, 0 being no id at all */
+		private int nextId() {
+			int id;
+			do {
+				id = mIds.incrementAndGet();
+			} while (id == 0);
+			return id;
+		}
+
+		private CompletableFuture<Result> send(int id, Message message) {
+			CompletableFuture<Result> result = new CompletableFuture<Result>();
+			mPending.put(id, result);
+
+			// Failed before it went in, or fail() may have missed it
+			IOException failure = mFailure;
+			if (failure != null) {
+				if (mPending.remove(id) != null) {
+					result.completeExceptionally(failure);
+				}
+				return result;
+			}
+
+			message.correlation = id;
+			enqueue(message);
+			return result;
+		}
+
+		/* Encodes the message here and has the selector thread write it */
+		private void enqueue(Message message) {
+			ByteBuffer buffer = ByteBuffer.allocate(message.frameSize());
+			message.encode(buffer);
+			buffer.flip();
+			mOutgoing.add(buffer);
+
+			// Until connected the selector thread asks for writes itself
+			if (mReady) {
+				mChange.ops = SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+				mChanges.offer(mChange);
+			}
+		}
+
+		/* Opens with our version once connected, on the selector thread */
+		private void finishConnect(SelectionKey key) throws IOException {
+			mChannel.finishConnect();
+			ByteBuffer preamble = ByteBuffer.allocate(Message.PREAMBLE_SIZE);
+			Message.writePreamble(preamble, Message.PROTOCOL_VERSION);
+			preamble.flip();
+			mOutbound.add(preamble);
+
+			mLastRead = TimerWheel.now();
+			mLastWrite = mLastRead;
+			mReady = true;
+			key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		}
+
+		/* Writes everything queued, as far as the socket takes */
+		private void write(SelectionKey key) throws IOException {
+			ByteBuffer buffer;
+			while ((buffer = mOutgoing.poll()) != null) {
+				if (!mOutbound.add(buffer)) {
+					throw new IOException("Too many requests waiting");
+				}
+			}
+
+			long pending = mOutbound.pendingBytes();
+			boolean drained = mOutbound.flush(mChannel);
+			if (mOutbound.pendingBytes() != pending) {
+				mLastWrite = TimerWheel.now();
+			}
+			if (drained) {
+				key.interestOps(SelectionKey.OP_READ);
+
+				// A request may have come in while we were writing
+				if (!mOutgoing.isEmpty()) {
+					key.interestOps(SelectionKey.OP_READ
+							| SelectionKey.OP_WRITE);
+				}
+			}
+		}
+
+		/* Reads whatever has arrived and acts on every complete message */
+		private void read() throws IOException {
+			if (mChannel.read(mInbound) == -1) {
+				throw new EOFException("Server closed the connection");
+			}
+			mLastRead = TimerWheel.now();
+			mInbound.flip();
+
+			// The server opens with the version it settled on
+			if (mVersion == Connection.UNKNOWN) {
+				if (mInbound.remaining() < Message.PREAMBLE_SIZE) {
+					mInbound.compact();
+					return;
+				}
+				if (mInbound.get() != Message.MAGIC) {
+					throw new ProtocolException("Unknown server protocol");
+				}
+				mVersion = mInbound.get() & 0xFF;
+			}
+
+			Message message;
+			while (mFailure == null
+					&& (message = Message.decode(mInbound)) != null) {
+				receive(message);
+			}
+
+			// Only now, as a server turning us away sends a reject first
+			if (mFailure == null && !mConnected.isDone()) {
+				if (mVersion < Message.VERSION_3) {
+					throw new ProtocolException("Server speaks version "
+							+ mVersion + ", results need "
+							+ Message.VERSION_3);
+				}
+				mConnected.complete(this);
+			}
+			mInbound = Message.compact(mInbound);
+		}
+
+		private void receive(Message message) throws IOException {
+			String[] data = message.data;
+			switch (message.header) {
+			case Message.SER_RESULT:
+				if (data.length > 2) {
+					complete(data[0], new Result(data[1], data[2]));
+				}
+				return;
+			case Message.SER_PONG:
+				if (data.length > 0) {
+					complete(data[0], new Result(Message.RESULT_OK, data[0]));
+				}
+				return;
+			case Message.SER_TOKEN:
+				if (data.length > 1) {
+					mRoom = data[0];
+					mToken = data[1];
+				}
+				return;
+			case Message.SER_REDIRECT:
+				if (data.length > 2) {
+					redirect(data[0], data[1], data[2]);
+				}
+				return;
+			case Message.SER_REJECT:
+				// Rate limits come back as results, anything else is at
+				// connect and the server closes us after
+				if (data.length > 1 && !AdmissionControl.RATE.equals(data[0])) {
+					fail(new IOException("Server turned us away: "
+							+ data[0] + ", retry in " + data[1] + " ms"));
+				}
+				return;
+			}
+
+			if (mReplica.apply(message)) {
+				mResyncing = false;
+				if (mListener != null) {
+					try {
+						mListener.onRoom(this, mReplica.toArray());
+					} catch (RuntimeException e) {
+						// The listener's own failure, not the session's
+						e.printStackTrace();
+					}
+				}
+			} else if (mReplica.isStale() && !mResyncing) {
+				// Missed a change, ask for the whole room once
+				mResyncing = true;
+				enqueue(new Message(Message.HEAD_RESYNC, new String[0]));
+			}
+		}
+
+		/* Completes the request with the id, if it is still waiting */
+		private void complete(String id, Result result) {
+			CompletableFuture<Result> future;
+			try {
+				future = mPending.remove(Integer.valueOf(id));
+			} catch (NumberFormatException e) {
+				return;
+			}
+			if (future != null) {
+				future.complete(result);
+			}
+		}
+
+		/* Ends the session, keeping where the server sent us */
+		private void redirect(String room, String host, String port) {
+			try {
+				mRedirect = InetSocketAddress.createUnresolved(host,
+						Integer.parseInt(port));
+			} catch (IllegalArgumentException e) {
+				fail(new ProtocolException("Bad redirect to " + host + ":"
+						+ port));
+				return;
+			}
+			fail(new IOException("Room " + room + " is served by " + host
+					+ ":" + port));
+		}
+
+		/*
+		 * Pings a server we have not written to for a while, and ends the
+		 * session if it has gone quiet.
+		 */
+		private void heartbeat(long now) {
+			if (!mReady || mFailure != null) {
+				return;
+			}
+			if (now - mLastRead >= ClientRequestThread.SERVER_TIMEOUT) {
+				fail(new IOException("Server stopped answering"));
+			} else if (now - mLastWrite
+					>= ClientRequestThread.HEARTBEAT_INTERVAL) {
+				mLastWrite = now;
+				enqueue(new Message(Message.HEAD_PING, new String[0]));
+			}
+		}
+
+		/* Closes the channel and fails everything still waiting, once */
+		private void fail(IOException e) {
+			synchronized (this) {
+				if (mFailure != null) {
+					return;
+				}
+				mFailure = e;
+			}
+			try {
+				mChannel.close();
+			} catch (IOException closing) {
+				// Gone either way
+			}
+
+			mConnected.completeExceptionally(e);
+			for (Integer id : mPending.keySet()) {
+				CompletableFuture<Result> future = mPending.remove(id);
+				if (future != null) {
+					future.completeExceptionally(e);
+				}
+			}
+		}
+	}
+
+	// The selector over every session, and changes made from other threads
+	private final Selector mSelector;
+	private final ChangeQueue mChanges;
+
+	// The selector thread, null once stopped
+	private volatile Thread mRunner;
+
+	public AsyncClient() throws IOException {
+		mSelector = SelectorProvider.provider().openSelector();
+		mChanges = new ChangeQueue(mSelector, this);
+	}
+
+	public synchronized void startThread() {
+		if (mRunner == null) {
+			mRunner = new Thread(this, "AsyncClient");
+			mRunner.setDaemon(true);
+			mRunner.start();
+		}
+	}
+
+	/* Stops the selector thread, failing every session */
+	public synchronized void stopThread() {
+		if (mRunner != null) {
+			mRunner = null;
+			mSelector.wakeup();
+		}
+	}
+
+	/*
+	 * Opens a session with the server, completed once the server has
+	 * answered. The listener, which may be null, is told about the room.
+	 */
+	public CompletableFuture<Session> connect(InetSocketAddress address,
+			RoomListener listener) {
+		SocketChannel channel = null;
+		try {
+			// Redirects name their node without looking it up
+			if (address.isUnresolved()) {
+				address = new InetSocketAddress(address.getHostString(),
+						address.getPort());
+			}
+
+			channel = SocketChannel.open();
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			Session session = new Session(channel, listener);
+			channel.connect(address);
+			if (mRunner == null) {
+				session.fail(new IOException("Client stopped"));
+			} else {
+				mChanges.offer(session.mChange);
+			}
+			return session.mConnected;
+		} catch (IOException e) {
+			if (channel != null) {
+				try {
+					channel.close();
+				} catch (IOException closing) {
+					// Never opened properly
+				}
+			}
+			CompletableFuture<Session> failed = new CompletableFuture<Session>();
+			failed.completeExceptionally(e);
+			return failed;
+		}
+	}
+
+	@Override
+	public void run() {
+		try {
+			long nextHeartbeat = TimerWheel.now()
+					+ ClientRequestThread.HEARTBEAT_INTERVAL;
+			while (mRunner == Thread.currentThread()) {
+				mChanges.drain();
+				mSelector.select(Math.max(1,
+						nextHeartbeat - TimerWheel.now()));
+
+				Iterator<SelectionKey> keys = mSelector.selectedKeys()
+						.iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					handle(key);
+				}
+
+				// Look over every session now and then
+				long now = TimerWheel.now();
+				if (now >= nextHeartbeat) {
+					nextHeartbeat = now
+							+ ClientRequestThread.HEARTBEAT_INTERVAL / 4;
+					for (SelectionKey key : mSelector.keys()) {
+						if (key.isValid()) {
+							((Session) key.attachment()).heartbeat(now);
+						}
+					}
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			// Register whatever was still waiting, so it is failed too
+			IOException stopped = new IOException("Client stopped");
+			try {
+				mChanges.drain();
+			} catch (IOException e) {
+				// Failed below with the rest
+			}
+			for (SelectionKey key : mSelector.keys()) {
+				((Session) key.attachment()).fail(stopped);
+			}
+			try {
+				mSelector.close();
+			} catch (IOException e) {
+				// Done with it anyway
+			}
+		}
+	}
+
+	/* A channel that connected as soon as it was asked has no connect event */
+	@Override
+	public void onRegistered(SelectionKey key) throws IOException {
+		if (!((SocketChannel) key.channel()).isConnectionPending()) {
+			handle(key);
+		}
+	}
+
+	/* Closed before the selector saw it, so nothing will fail it later */
+	@Override
+	public void onDropped(ChangeRequest change) {
+		((Session) change.attachment).fail(new IOException("Session closed"));
+	}
+
+	/* Acts on whatever the key is ready for, failing its session on error */
+	private void handle(SelectionKey key) {
+		Session session = (Session) key.attachment();
+		try {
+			if (!session.mReady) {
+				session.finishConnect(key);
+				return;
+			}
+			if (key.isReadable()) {
+				session.read();
+			}
+			if (key.isValid() && session.mFailure == null
+					&& key.isWritable()) {
+				session.write(key);
+			}
+		} catch (IOException e) {
+			session.fail(e);
+		} catch (CancelledKeyException e) {
+			// Closed under us by another thread
+			session.fail(new IOException("Session closed", e));
+		}
+	}
+}
@@ -0,0 +1,428 @@
+package com.monisben.quick.drawstraw;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Serves the same rooms and protocol as NonBlockingServer, but with a
+ * ServerResponseThread per client blocking on its socket instead of a
+ * selector. On a JDK with virtual threads every client gets one, so tens of
+ * thousands of clients cost little more than their buffers; older JDKs fall
+ * back to platform threads, which is only fit for a few hundred clients.
+ *
+ * Rooms are shared between client threads. Joining and leaving lock the
+ * whole room table, everything else only locks the room it changes, and
+ * each change is broadcast before the lock is let go.
+ *
+ * @author Benjamin
+ *
+ */
+public class BlockingServer implements Runnable,
+		ServerResponseThread.ServerResponseListener {
+
+	// Stack size asked for when falling back to platform threads
+	private static final long PLATFORM_STACK_SIZE = 256 * 1024;
+
+	// Servers address and port
+	private InetAddress mHostAddress;
+	private int mPort;
+
+	// Channel that accepts socket channels, blocking
+	private ServerSocketChannel mChannel;
+
+	// Makes the thread for every client reader and writer
+	private final ThreadFactory mThreads;
+
+	// Every room with anyone in it, guarded by itself
+	private final Map<String, Room> mRooms = new HashMap<String, Room>();
+
+	// Ends room cooldowns, run by a thread of its own
+	private final LockedTimerWheel mTimer = new LockedTimerWheel();
+
+	// Every client's name, shared by all the rooms
+	private final LockedNameTable mNames = new LockedNameTable();
+
+	// Bytes a client may have waiting before it is dropped
+	private final int mHighWater;
+
+	public BlockingServer(InetAddress hostAddress, int port, boolean virtual)
+			throws IOException {
+		this(hostAddress, port, virtual ? virtualThreads() : null,
+				OutboundQueue.DEFAULT_HIGH_WATER);
+	}
+
+	/* A null factory uses platform threads */
+	public BlockingServer(InetAddress hostAddress, int port,
+			ThreadFactory threads, int highWater) throws IOException {
+		mHostAddress = hostAddress;
+		mPort = port;
+		mHighWater = highWater;
+		mThreads = threads != null ? threads : platformThreads();
+
+		// Bind the server socket to the specified address and port
+		mChannel = ServerSocketChannel.open();
+		mChannel.socket().bind(new InetSocketAddress(mHostAddress, mPort),
+				1024);
+	}
+
+	/* Start the server, pass "platform" to not use virtual threads */
+	public static void main(String[] args) {
+		boolean virtual = args.length == 0 || !"platform".equals(args[0]);
+		try {
+			new Thread(new BlockingServer(null,
+					NonBlockingServer.SERVER_PORT, virtual)).start();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/*
+	 * A factory for virtual threads, or null when the JDK has none. Looked up
+	 * by reflection as this tree still builds for Java 7.
+	 */
+	public static ThreadFactory virtualThreads() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Method factory = Class.forName("java.lang.Thread$Builder")
+					.getMethod("factory");
+			return (ThreadFactory) factory.invoke(builder);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/* Daemon platform threads with a small stack */
+	public static ThreadFactory platformThreads() {
+		return new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(null, runnable, "client",
+						PLATFORM_STACK_SIZE);
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	/* The port actually bound, useful when started on port 0 */
+	public int getPort() {
+		return mChannel.socket().getLocalPort();
+	}
+
+	@Override
+	public void run() {
+		// Start the timer
+		Thread timer = new Thread(mTimer, "timer");
+		timer.setDaemon(true);
+		timer.start();
+
+		// Accept forever, each client runs on its own thread
+		while (true) {
+			try {
+				SocketChannel socketChannel = mChannel.accept();
+				socketChannel.socket().setTcpNoDelay(true);
+				ServerResponseThread thread = new ServerResponseThread(this,
+						new Connection(socketChannel, mHighWater), mHighWater,
+						mThreads);
+				thread.startThread(mThreads);
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	@Override
+	public void onRequest(ServerResponseThread thread, Message request)
+			throws IOException {
+		Connection connection = thread.connection;
+
+		// Answer pings straight away, whatever room the client is in
+		if (request.header == Message.HEAD_PING
+				&& connection.version != Message.VERSION_LEGACY) {
+			thread.setMessage(new Message(Message.SER_PONG, request.data));
+			return;
+		}
+
+		// Handle a room change
+		if (request.header == Message.HEAD_JOIN) {
+			if (request.data.length == 0) {
+				thread.close();
+				return;
+			}
+
+			// Already there, just send the state again
+			Room current = connection.room;
+			if (current != null && current.getId().equals(request.data[0])) {
+				synchronized (current) {
+					connection.needsSnapshot = true;
+					broadcast(current);
+				}
+				return;
+			}
+
+			int capacity = Room.DEFAULT_CAPACITY;
+			if (request.data.length > 1) {
+				capacity = parseCapacity(request.data[1]);
+			}
+			join(thread, request.data[0], capacity);
+			return;
+		}
+
+		// Clients that never asked for a room draw in the default one
+		if (connection.room == null
+				&& !join(thread, Room.DEFAULT_ID, Room.DEFAULT_CAPACITY)) {
+			return;
+		}
+		Room room = connection.room;
+
+		synchronized (room) {
+			// Handle the head message
+			if (request.header == Message.HEAD_NAME && request.data.length > 0) {
+				// Set the data and update each client
+				if (!request.data[0].equals(room.name(connection))) {
+					room.rename(connection, request.data[0]);
+				}
+				broadcast(room);
+			} else if (request.header == Message.HEAD_DRAW) {
+				// Attempt the draw, only sending once there is a loser
+				room.draw();
+				if (room.getLoser() != null) {
+					broadcast(room);
+				}
+			} else if (request.header == Message.HEAD_RESYNC) {
+				// The client lost track of the room, start it again
+				connection.needsSnapshot = true;
+				broadcast(room);
+			}
+		}
+	}
+
+	@Override
+	public void onClosed(ServerResponseThread thread) {
+		try {
+			leave(thread.connection);
+			mNames.release(thread.connection.nameId);
+			thread.connection.nameId = NameTable.EMPTY;
+		} catch (UnsupportedEncodingException e) {
+			e.printStackTrace();
+		}
+	}
+
+	@Override
+	public void setResponse(String response) {
+		// Nothing to show
+	}
+
+	@Override
+	public void threadKilled(MessageThread thread) {
+		// Cleaned up in onClosed()
+	}
+
+	/* Moves the client to the room, closing it if the room is full */
+	private boolean join(ServerResponseThread thread, String roomId,
+			int capacity) throws UnsupportedEncodingException {
+		Connection connection = thread.connection;
+		leave(connection);
+
+		synchronized (mRooms) {
+			Room room = mRooms.get(roomId);
+			if (room == null) {
+				room = new Room(roomId, capacity, Room.COOLDOWN_TIME, mTimer,
+						mNames);
+				mRooms.put(roomId, room);
+			}
+
+			synchronized (room) {
+				if (!room.add(connection)) {
+					// No seat left
+					thread.close();
+					return false;
+				}
+				connection.needsSnapshot = true;
+				broadcast(room);
+			}
+		}
+		return true;
+	}
+
+	/* Takes the client out of its room, dropping the room once empty */
+	private void leave(Connection connection)
+			throws UnsupportedEncodingException {
+		synchronized (mRooms) {
+			Room room = connection.room;
+			if (room == null) {
+				return;
+			}
+
+			synchronized (room) {
+				room.remove(connection);
+				if (room.isEmpty()) {
+					mRooms.remove(room.getId());
+					room.close();
+				} else {
+					broadcast(room);
+				}
+			}
+		}
+	}
+
+	/* Reads a requested room size, falling back to the default */
+	private static int parseCapacity(String value) {
+		try {
+			int capacity = Integer.parseInt(value);
+			if (capacity > 0 && capacity <= Room.MAX_CAPACITY) {
+				return capacity;
+			}
+		} catch (NumberFormatException e) {
+			// Fall through
+		}
+		return Room.DEFAULT_CAPACITY;
+	}
+
+	/*
+	 * Sends the room's state to every member, the same way Reactor does.
+	 * Must be called holding the room's lock.
+	 */
+	private static void broadcast(Room room)
+			throws UnsupportedEncodingException {
+		ByteBuffer delta = null;
+		ByteBuffer snapshot = null;
+		ByteBuffer framed = null;
+		ByteBuffer legacy = null;
+		boolean overflowed = room.isDeltaOverflowed();
+
+		// Send to each member
+		for (int i = 0; i < room.size(); i++) {
+			Connection member = room.member(i);
+			ServerResponseThread writer = member.handler;
+			if (writer == null) {
+				continue;
+			}
+
+			if (member.version >= Message.VERSION_2) {
+				if (member.needsSnapshot || overflowed) {
+					if (snapshot == null) {
+						snapshot = room.encodeSnapshot().asReadOnlyBuffer();
+					}
+					member.needsSnapshot = false;
+					writer.send(snapshot.duplicate());
+				} else if (room.hasDelta()) {
+					if (delta == null) {
+						delta = room.encodeDelta().asReadOnlyBuffer();
+					}
+					writer.send(delta.duplicate());
+				}
+			} else if (member.version == Message.VERSION_LEGACY) {
+				if (legacy == null) {
+					legacy = ByteBuffer.wrap(room.update().encode())
+							.asReadOnlyBuffer();
+				}
+				writer.send(legacy.duplicate());
+			} else {
+				if (framed == null) {
+					framed = room.encodeUpdate().asReadOnlyBuffer();
+				}
+				writer.send(framed.duplicate());
+			}
+		}
+
+		// Everyone has seen these changes now
+		room.clearDelta();
+	}
+
+	/**
+	 * A timer wheel any thread may schedule on, driven by a thread of its
+	 * own rather than a selector loop.
+	 */
+	private static class LockedTimerWheel extends TimerWheel implements
+			Runnable {
+
+		@Override
+		public synchronized void schedule(Timeout timeout, long delayMillis) {
+			super.schedule(timeout, delayMillis);
+			notifyAll();
+		}
+
+		@Override
+		public synchronized boolean cancel(Timeout timeout) {
+			return super.cancel(timeout);
+		}
+
+		@Override
+		public synchronized void run() {
+			while (true) {
+				try {
+					// Sleep until something is due, or until woken by a
+					// schedule when nothing is
+					wait(timeUntilNextTick());
+					expire();
+				} catch (InterruptedException e) {
+					return;
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * A name table any client thread may use, as rooms lock only themselves.
+	 */
+	private static class LockedNameTable extends NameTable {
+
+		@Override
+		public synchronized int intern(String name) {
+			return super.intern(name);
+		}
+
+		@Override
+		public synchronized int intern(byte[] bytes) {
+			return super.intern(bytes);
+		}
+
+		@Override
+		public synchronized int intern(Frame frame, int field) {
+			return super.intern(frame, field);
+		}
+
+		@Override
+		public synchronized int retain(int id) {
+			return super.retain(id);
+		}
+
+		@Override
+		public synchronized void release(int id) {
+			super.release(id);
+		}
+
+		@Override
+		public synchronized byte[] bytes(int id) {
+			return super.bytes(id);
+		}
+
+		@Override
+		public synchronized String string(int id) {
+			return super.string(id);
+		}
+
+		@Override
+		public synchronized boolean equals(int id, Frame frame, int field) {
+			return super.equals(id, frame, field);
+		}
+
+		@Override
+		public synchronized int size() {
+			return super.size();
+		}
+	}
+}
@@ -0,0 +1,54 @@
+package com.monisben.quick.drawstraw;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A free list of equally sized direct buffers. Connections only hold one
+ * while they have a partial frame waiting, so a few buffers serve many
+ * connections and none are allocated in steady state.
+ *
+ * Not thread-safe, each reactor keeps its own. A buffer may be released to a
+ * different pool than it came from, which is how buffers follow connections
+ * handed between reactors.
+ *
+ * @author Benjamin
+ *
+ */
+public class BufferPool {
+
+	// Size of each pooled buffer and how many are kept when free
+	public static final int DEFAULT_BUFFER_SIZE = 4096;
+	public static final int DEFAULT_MAX_POOLED = 1024;
+
+	private final int mBufferSize;
+	private final ByteBuffer[] mFree;
+	private int mCount;
+
+	public BufferPool(int bufferSize, int maxPooled) {
+		mBufferSize = bufferSize;
+		mFree = new ByteBuffer[maxPooled];
+	}
+
+	public int getBufferSize() {
+		return mBufferSize;
+	}
+
+	/* Takes a cleared buffer, allocating one if none are free */
+	public ByteBuffer acquire() {
+		if (mCount > 0) {
+			ByteBuffer buffer = mFree[--mCount];
+			mFree[mCount] = null;
+			return buffer;
+		}
+		return ByteBuffer.allocateDirect(mBufferSize);
+	}
+
+	/* Returns a buffer, anything not from a pool of this size is dropped */
+	public void release(ByteBuffer buffer) {
+		if (buffer.isDirect() && buffer.capacity() == mBufferSize
+				&& mCount < mFree.length) {
+			buffer.clear();
+			mFree[mCount++] = buffer;
+		}
+	}
+}
@@ -0,0 +1,179 @@
+package com.monisben.quick.drawstraw;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Lock-free queue of ChangeRequests from any thread to the selector thread.
+ *
+ * The requests are linked through their own next field (Vyukov's intrusive
+ * multi-producer single-consumer queue) so offering allocates nothing. A
+ * request already waiting is not queued twice, its latest ops win. The
+ * selector is only woken by the first change after a drain.
+ *
+ * @author Benjamin
+ *
+ */
+public class ChangeQueue {
+
+	public interface RegistrationListener {
+
+		/* Called on the selector thread once a channel is registered */
+		public void onRegistered(SelectionKey key) throws IOException;
+
+		/*
+		 * Called on the selector thread instead when the channel closed
+		 * before it could be registered, to give back what it held
+		 */
+		public void onDropped(ChangeRequest change) throws IOException;
+	}
+
+	private static final AtomicIntegerFieldUpdater<ChangeRequest> QUEUED =
+			AtomicIntegerFieldUpdater.newUpdater(ChangeRequest.class, "queued");
+
+	private final Selector mSelector;
+
+	// Told about each registration, may be null
+	private final RegistrationListener mListener;
+
+	// Producers swap themselves in here
+	private final AtomicReference<ChangeRequest> mTail;
+
+	// Consumer side, only touched by the selector thread
+	private ChangeRequest mHead;
+
+	// Parked in the queue whenever it would otherwise be empty
+	private final ChangeRequest mStub;
+
+	// Set once a wakeup has been sent for the current batch
+	private final AtomicBoolean mWakeup = new AtomicBoolean();
+
+	// Changes offered but not yet applied
+	private final AtomicInteger mSize = new AtomicInteger();
+
+	public ChangeQueue(Selector selector) {
+		this(selector, null);
+	}
+
+	public ChangeQueue(Selector selector, RegistrationListener listener) {
+		mSelector = selector;
+		mListener = listener;
+		mStub = new ChangeRequest(null, 0, 0);
+		mTail = new AtomicReference<ChangeRequest>(mStub);
+		mHead = mStub;
+	}
+
+	/*
+	 * Queues a change from any thread. Returns false if the request was
+	 * already waiting, in which case its current ops will be applied.
+	 */
+	public boolean offer(ChangeRequest change) {
+		if (!QUEUED.compareAndSet(change, 0, 1)) {
+			return false;
+		}
+
+		mSize.incrementAndGet();
+		push(change);
+
+		// Only the first change since the last drain needs to wake it
+		if (mWakeup.compareAndSet(false, true)) {
+			mSelector.wakeup();
+		}
+		return true;
+	}
+
+	/* Applies every waiting change, returns the number applied */
+	public int drain() throws IOException {
+		mWakeup.set(false);
+
+		int applied = 0;
+		ChangeRequest change;
+		while ((change = poll()) != null) {
+			// Clear the flag first so a racing offer is never lost
+			QUEUED.set(change, 0);
+			apply(change);
+			applied++;
+		}
+		mSize.addAndGet(-applied);
+		return applied;
+	}
+
+	/* The number of changes waiting, from any thread */
+	public int size() {
+		return mSize.get();
+	}
+
+	/* Acts on one change, package-private so a stress test can count them */
+	void apply(ChangeRequest change) throws IOException {
+		switch (change.type) {
+		case ChangeRequest.CHANGEOPS:
+			SelectionKey key = change.socket.keyFor(mSelector);
+
+			// The channel may have closed since the change
+			if (key != null && key.isValid()) {
+				key.interestOps(change.ops);
+			}
+			break;
+		case ChangeRequest.REGISTER:
+			// Anything after this is a plain ops change
+			change.type = ChangeRequest.CHANGEOPS;
+
+			if (change.socket.isOpen()) {
+				SelectionKey registered = change.socket.register(mSelector,
+						change.ops, change.attachment);
+				if (mListener != null) {
+					mListener.onRegistered(registered);
+				}
+			} else if (mListener != null) {
+				mListener.onDropped(change);
+			}
+			break;
+		}
+	}
+
+	private void push(ChangeRequest change) {
+		change.next = null;
+		ChangeRequest previous = mTail.getAndSet(change);
+		previous.next = change;
+	}
+
+	/* Takes the oldest request, or null if none is ready */
+	private ChangeRequest poll() {
+		ChangeRequest head = mHead;
+		ChangeRequest next = head.next;
+
+		// Step past the stub
+		if (head == mStub) {
+			if (next == null) {
+				return null;
+			}
+			mHead = next;
+			head = next;
+			next = next.next;
+		}
+
+		if (next != null) {
+			mHead = next;
+			return head;
+		}
+
+		// A producer is part way through linking behind head
+		if (head != mTail.get()) {
+			return null;
+		}
+
+		// Head is the last one, park the stub behind it so it can go
+		push(mStub);
+		next = head.next;
+		if (next != null) {
+			mHead = next;
+			return head;
+		}
+		return null;
+	}
+}
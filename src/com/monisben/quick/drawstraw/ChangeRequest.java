@@ -2,17 +2,40 @@ package com.monisben.quick.drawstraw;
 
 import java.nio.channels.SocketChannel;
 
+/**
+ * A pending registration or interest change for a channel. Each channel owns
+ * a single request which is reused for every change, so while it waits in a
+ * ChangeQueue later changes just overwrite ops and are applied together.
+ *
+ * @author Benjamin
+ *
+ */
 public class ChangeRequest {
 	public static final int REGISTER = 1;
 	public static final int CHANGEOPS = 2;
 
 	public SocketChannel socket;
-	public int type;
-	public int ops;
+	public volatile int type;
+	public volatile int ops;
+
+	// Attached to the key when registering
+	public Object attachment;
+
+	// Link to the request behind this one in a ChangeQueue
+	volatile ChangeRequest next;
+
+	// 1 while the request is waiting in a ChangeQueue
+	volatile int queued;
 
 	public ChangeRequest(SocketChannel socket, int type, int ops) {
 		this.socket = socket;
 		this.type = type;
 		this.ops = ops;
 	}
+
+	public ChangeRequest(SocketChannel socket, int type, int ops,
+			Object attachment) {
+		this(socket, type, ops);
+		this.attachment = attachment;
+	}
 }
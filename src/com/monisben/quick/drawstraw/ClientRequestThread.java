@@ -1,7 +1,6 @@
 package com.monisben.quick.drawstraw;
 
 import java.io.IOException;
-import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
@@ -9,9 +8,9 @@ import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.spi.SelectorProvider;
 import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * Ver. 2.0
@@ -30,8 +29,54 @@ public class ClientRequestThread extends MessageThread {
 	// The socket channel which interacts with the server
 	private SocketChannel mSocketChannel;
 
-	// A list of PendingChange instances
-	private List<ChangeRequest> mChanges = new LinkedList<ChangeRequest>();
+	// Changes made from other threads
+	private ChangeQueue mChanges;
+
+	// The one change request reused for the current channel
+	private ChangeRequest mChange;
+
+	// The protocol version the server answered with, UNKNOWN until then
+	private int mVersion = Connection.UNKNOWN;
+
+	// Encoded messages handed over by other threads
+	private final Queue<ByteBuffer> mOutgoing =
+			new ConcurrentLinkedQueue<ByteBuffer>();
+
+	// Bytes waiting on the socket, only touched by the selector thread
+	private OutboundQueue mOutbound;
+
+	// Bytes read but not yet decoded
+	private ByteBuffer mInbound;
+
+	// Our copy of the room, and whether we have asked for a fresh one
+	private RoomReplica mReplica;
+	private boolean mResyncing;
+
+	// A ping goes out this often, and a server silent for the timeout is
+	// taken to be gone, in milliseconds
+	public static final long HEARTBEAT_INTERVAL = 20000;
+	public static final long SERVER_TIMEOUT = 60000;
+
+	// When the server last sent anything and when the next ping is due, in
+	// TimerWheel.now() time. No pings are due while mNextPing is 0
+	private long mLastRead;
+	private long mNextPing;
+
+	// The seat to ask for back on connecting, null for a fresh one, and
+	// whether we asked for it on this connection
+	private String mResumeRoom;
+	private String mResumeToken;
+	private boolean mResuming;
+
+	// The last join and name sent, asked for again after a redirect, and
+	// the room we were redirected for and how many times in a row
+	private Message mJoin;
+	private Message mName;
+	private String mRedirectRoom;
+	private int mRedirects;
+
+	// Redirects followed without seeing a room before giving up
+	private static final int MAX_REDIRECTS = 4;
 
 	public interface ClientListener extends MessageListener {
 
@@ -45,6 +90,7 @@ public class ClientRequestThread extends MessageThread {
 
 		// Set up the selector
 		mSelector = SelectorProvider.provider().openSelector();
+		mChanges = new ChangeQueue(mSelector);
 	}
 
 	@Override
@@ -56,26 +102,13 @@ public class ClientRequestThread extends MessageThread {
 
 				// Iterate over the change list, making all necessary key
 				// changes
-				synchronized (this.mChanges) {
-					Iterator<ChangeRequest> changes = mChanges.iterator();
-					while (changes.hasNext()) {
-						ChangeRequest change = (ChangeRequest) changes.next();
-						switch (change.type) {
-						case ChangeRequest.CHANGEOPS:
-							SelectionKey key = change.socket.keyFor(mSelector);
-							key.interestOps(change.ops);
-
-							break;
-						case ChangeRequest.REGISTER:
-							change.socket.register(mSelector, change.ops);
-							break;
-						}
-					}
-					mChanges.clear();
-				}
+				mChanges.drain();
 
-				// Select the ready channels
-				int readyChannels = mSelector.select();
+				// Select the ready channels, waking for the next ping
+				long wait = mNextPing == 0 ? 0 : Math.max(1, mNextPing
+						- TimerWheel.now());
+				int readyChannels = mSelector.select(wait);
+				heartbeat();
 				if (readyChannels == 0) {
 					continue;
 				}
@@ -90,10 +123,13 @@ public class ClientRequestThread extends MessageThread {
 
 					if (currentKey.isConnectable()) {
 						finishConnect(currentKey);
-					} else if (currentKey.isReadable()) {
-						read(currentKey);
-					} else if (currentKey.isWritable()) {
-						write(currentKey);
+					} else {
+						if (currentKey.isReadable()) {
+							read(currentKey);
+						}
+						if (currentKey.isValid() && currentKey.isWritable()) {
+							write(currentKey);
+						}
 					}
 
 					keyIterator.remove();
@@ -110,24 +146,45 @@ public class ClientRequestThread extends MessageThread {
 		}
 	}
 
-	// Initiate a connection with the server
+	/* The room and token to resume with on the next connect, or nulls */
+	public synchronized void setResume(String room, String token) {
+		mResumeRoom = room;
+		mResumeToken = token;
+	}
+
+	public synchronized String getResumeRoom() {
+		return mResumeRoom;
+	}
+
+	public synchronized String getResumeToken() {
+		return mResumeToken;
+	}
+
+	// Initiate a connection with the configured server
 	public void connect() throws IOException {
+		connect(ServerConfig.clientAddress());
+	}
+
+	// Initiate a connection with a server at the given address
+	public void connect(InetSocketAddress address) throws IOException {
 		// Create a non-blocking socket channel
 		mSocketChannel = SocketChannel.open();
 		mSocketChannel.configureBlocking(false);
 
 		// Kick off connection establishment
-		mSocketChannel.connect(new InetSocketAddress(InetAddress
-				.getByName(NonBlockingServer.SERVER_IP), NonBlockingServer.SERVER_PORT));
+		mVersion = Connection.UNKNOWN;
+		mOutgoing.clear();
+		mOutbound = new OutboundQueue(OutboundQueue.DEFAULT_HIGH_WATER);
+		mInbound = ByteBuffer.allocateDirect(Message.READ_BUFFER_SIZE);
+		mReplica = new RoomReplica();
+		mResyncing = false;
+		mNextPing = 0;
+		mSocketChannel.connect(address);
 
 		// Register the channel to receive connect events
-		synchronized (mChanges) {
-			mChanges.add(new ChangeRequest(mSocketChannel,
-					ChangeRequest.REGISTER, SelectionKey.OP_CONNECT));
-		}
-
-		// Wake up waiting selector
-		mSelector.wakeup();
+		mChange = new ChangeRequest(mSocketChannel, ChangeRequest.REGISTER,
+				SelectionKey.OP_CONNECT);
+		mChanges.offer(mChange);
 	}
 
 	// Finishes a connection
@@ -139,8 +196,27 @@ public class ClientRequestThread extends MessageThread {
 		try {
 			mSocketChannel.finishConnect();
 
-			// Post an empty message
-			setMessage(new Message(Message.HEAD_NAME, Message.EMPTY));
+			// Open with our version, ahead of anything already queued
+			ByteBuffer preamble = ByteBuffer.allocate(Message.PREAMBLE_SIZE);
+			Message.writePreamble(preamble, Message.PROTOCOL_VERSION);
+			preamble.flip();
+			mOutbound.add(preamble);
+
+			// Take our old seat back if we had one, ask again for the room
+			// we were redirected for, or post an empty message
+			synchronized (this) {
+				mResuming = mResumeToken != null
+						&& (mRedirectRoom == null || mRedirectRoom
+								.equals(mResumeRoom));
+				if (mResuming) {
+					setMessage(new Message(Message.HEAD_RESUME, new String[] {
+							mResumeRoom, mResumeToken }));
+				} else if (mRedirectRoom != null) {
+					rejoin();
+				} else {
+					setMessage(new Message(Message.HEAD_NAME, Message.EMPTY));
+				}
+			}
 
 		} catch (IOException e) {
 			// Set response and cancel key
@@ -149,24 +225,51 @@ public class ClientRequestThread extends MessageThread {
 		}
 	}
 
-	/* Write to the socket channel */
-	private void write(SelectionKey key) throws IOException {
-		// Get the keys message
-		Message msg = (Message) key.attachment();
+	/* Pings the server when due, and drops it if it has gone quiet */
+	private void heartbeat() throws IOException {
+		if (mNextPing == 0) {
+			return;
+		}
+		if (!mSocketChannel.isOpen()) {
+			mNextPing = 0;
+			return;
+		}
 
-		// Retrieve the channel and write to it
-		mSocketChannel = (SocketChannel) key.channel();
-		ByteBuffer buffer = ByteBuffer.wrap(msg.encode());
-		mSocketChannel.write(buffer);
+		long now = TimerWheel.now();
+		if (now - mLastRead >= SERVER_TIMEOUT) {
+			mListener.setResponse("Server stopped answering");
+			mSocketChannel.close();
+			mNextPing = 0;
+			return;
+		}
+		if (now >= mNextPing) {
+			mNextPing = now + HEARTBEAT_INTERVAL;
+			setMessage(new Message(Message.HEAD_PING, new String[] { Long
+					.toString(now) }));
+		}
+	}
 
-		// Set the channel back to read mode
-		synchronized (mChanges) {
-			mChanges.add(new ChangeRequest(mSocketChannel,
-					ChangeRequest.CHANGEOPS, SelectionKey.OP_READ));
+	/* Write everything queued to the socket channel */
+	private void write(SelectionKey key) throws IOException {
+		// Take over whatever other threads have queued
+		ByteBuffer buffer;
+		while ((buffer = mOutgoing.poll()) != null) {
+			if (!mOutbound.add(buffer)) {
+				mListener.setResponse("Too many messages waiting");
+			}
 		}
 
-		// Wake up waiting selector
-		mSelector.wakeup();
+		// Write until done or the socket is full
+		if (mOutbound.flush((SocketChannel) key.channel())) {
+			// Set the channel back to read mode, unless a message came in
+			// while we were writing
+			key.interestOps(SelectionKey.OP_READ);
+
+			// A message may have come in while we were writing
+			if (!mOutgoing.isEmpty()) {
+				key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			}
+		}
 	}
 
 	/* Read from the given selection */
@@ -174,11 +277,10 @@ public class ClientRequestThread extends MessageThread {
 		// Get the keys channel
 		SocketChannel channel = (SocketChannel) key.channel();
 
-		// Create a buffer and read into it
+		// Read into the buffer, after anything left over from last time
 		int numRead;
-		ByteBuffer reader = ByteBuffer.allocate(1024);
 		try {
-			numRead = channel.read(reader);
+			numRead = channel.read(mInbound);
 		} catch (IOException e) {
 
 			// The remote forcibly closed the connection, cancel
@@ -194,32 +296,147 @@ public class ClientRequestThread extends MessageThread {
 			channel.close();
 			return;
 		}
+		mLastRead = TimerWheel.now();
 
-		// Get the message
-		Message response = Message.decode(reader.array());
+		mInbound.flip();
 
-		// Respond accordingly
-		if (response != null && response.is(Message.SER_UPDATE)) {
-			((ClientListener) mListener).onUpdateClient(response.data);
+		// The server opens with the version it settled on
+		if (mVersion == Connection.UNKNOWN) {
+			if (mInbound.remaining() < Message.PREAMBLE_SIZE) {
+				mInbound.compact();
+				return;
+			}
+			if (mInbound.get() != Message.MAGIC) {
+				mListener.setResponse("Unknown server protocol");
+				key.cancel();
+				channel.close();
+				return;
+			}
+			mVersion = mInbound.get() & 0xFF;
+
+			// Framed from here on, so start pinging
+			mNextPing = mLastRead + HEARTBEAT_INTERVAL;
 		}
+
+		// Respond to every complete message, keeping any partial one
+		Message response;
+		while ((response = Message.decode(mInbound)) != null) {
+			if (response.is(Message.SER_PONG)) {
+				// Only there to show the server is alive
+				continue;
+			}
+			if (response.is(Message.SER_TOKEN) && response.data.length > 1) {
+				token(response.data[0], response.data[1]);
+				continue;
+			}
+			if (response.is(Message.SER_REJECT) && response.data.length > 1) {
+				reject(response.data[0], response.data[1]);
+				continue;
+			}
+			if (response.is(Message.SER_REDIRECT) && response.data.length > 2) {
+				redirect(key, response.data[0], response.data[1],
+						response.data[2]);
+				return;
+			}
+			if (mReplica.apply(response)) {
+				mResyncing = false;
+				mRedirects = 0;
+				((ClientListener) mListener).onUpdateClient(mReplica
+						.toArray());
+			} else if (mReplica.isStale() && !mResyncing) {
+				// Missed a change, ask for the whole room once
+				mResyncing = true;
+				setMessage(new Message(Message.HEAD_RESYNC, Message.EMPTY));
+			}
+		}
+		mInbound = Message.compact(mInbound);
+	}
+
+	/*
+	 * Leaves this server for the cluster node owning the room, where the
+	 * room is asked for again once connected.
+	 */
+	private void redirect(SelectionKey key, String room, String host,
+			String port) throws IOException {
+		key.cancel();
+		key.channel().close();
+		if (++mRedirects > MAX_REDIRECTS) {
+			mListener.setResponse("Servers keep redirecting");
+			return;
+		}
+
+		InetSocketAddress address;
+		try {
+			address = new InetSocketAddress(host, Integer.parseInt(port));
+		} catch (IllegalArgumentException e) {
+			mListener.setResponse("Bad redirect to " + host + ":" + port);
+			return;
+		}
+		synchronized (this) {
+			mRedirectRoom = room;
+		}
+		connect(address);
+	}
+
+	/* Says why the server refused us, it closes us if it was at connect */
+	private void reject(String reason, String retry) {
+		if (AdmissionControl.RATE.equals(reason)) {
+			mListener.setResponse("Sending too fast, wait " + retry + " ms");
+		} else if (AdmissionControl.FULL.equals(reason)) {
+			mListener.setResponse("Server is full, try again later");
+		} else {
+			mListener.setResponse("Server is busy, try again in " + retry
+					+ " ms");
+		}
+	}
+
+	/* Asks for the room we were redirected for, under our name */
+	private void rejoin() {
+		if (mJoin != null && mRedirectRoom.equals(mJoin.data[0])) {
+			setMessage(mJoin);
+		} else if (!mRedirectRoom.equals(Room.DEFAULT_ID)) {
+			setMessage(new Message(Message.HEAD_JOIN, mRedirectRoom));
+		}
+		setMessage(mName != null ? mName : new Message(Message.HEAD_NAME,
+				Message.EMPTY));
+	}
+
+	/* Keeps the token for our seat, noticing if a resume was refused */
+	private synchronized void token(String room, String token) {
+		if (mResuming && !token.equals(mResumeToken)) {
+			mListener.setResponse("Seat lost, send your name again");
+		}
+		mResuming = false;
+		mResumeRoom = room;
+		mResumeToken = token;
 	}
 
 	/* Add a message to the server queue */
 	@Override
-	public synchronized void setMessage(Message message) {
-
-		// Set the selection key to write instead of read
-		SelectionKey key = mSocketChannel.keyFor(mSelector);
+	public void setMessage(Message message) {
+		// Remembered in case a redirect has us ask another node
+		synchronized (this) {
+			if (message.is(Message.HEAD_JOIN) && message.data.length > 0) {
+				mJoin = message;
+			} else if (message.is(Message.HEAD_NAME) && message.data.length > 0
+					&& !Message.EMPTY.equals(message.data[0])) {
+				mName = message;
+			}
+		}
 
-		// Attach the message and change key to write mode
-		key.attach(message);
+		// Encode here so the selector thread only has to write
+		ByteBuffer buffer = ByteBuffer.allocate(message.frameSize());
+		message.encode(buffer);
+		buffer.flip();
+		mOutgoing.add(buffer);
 
-		synchronized (mChanges) {
-			mChanges.add(new ChangeRequest(mSocketChannel,
-					ChangeRequest.CHANGEOPS, SelectionKey.OP_WRITE));
+		// Wait for the connection to finish before asking to write
+		if (!mSocketChannel.isConnected()) {
+			return;
 		}
 
-		// Wakeup the selector
-		mSelector.wakeup();
+		// Change key to write mode while still reading
+		mChange.ops = SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+		mChanges.offer(mChange);
 	}
 }
@@ -0,0 +1,117 @@
+package com.monisben.quick.drawstraw;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Server side state for a single client connection. Attached to the
+ * connection's selection key so every lookup is a field access.
+ *
+ * @author Benjamin
+ *
+ */
+public class Connection {
+
+	// The channel this connection talks over
+	public final SocketChannel channel;
+
+	// The room this connection is drawing in, null until joined, and its
+	// seat in that room
+	public Room room;
+	public int seat = -1;
+
+	// Set while the connection is handed to the reactor owning this room
+	public String pendingRoom;
+	public int pendingCapacity;
+
+	// A message to act on once the pending room has been joined
+	public Message pendingMessage;
+
+	// The id in the room's NameTable of the name the client has given,
+	// NameTable.EMPTY until set. The connection holds a reference to it
+	public int nameId = NameTable.EMPTY;
+
+	// The name's bytes while the connection is handed between reactors,
+	// whose tables differ
+	public byte[] pendingName;
+
+	// Lets the client take its seat back after reconnecting, null until
+	// seated
+	public String token;
+
+	// A partial frame waiting for the rest, kept in write mode between reads
+	// and null while there is none
+	public ByteBuffer inbound;
+
+	// Bytes waiting to be written
+	public final OutboundQueue outbound;
+
+	// Reused for every registration and interest change of the channel
+	public final ChangeRequest change;
+
+	// The protocol version agreed with the client, UNKNOWN until it speaks
+	public static final int UNKNOWN = -1;
+	public int version;
+
+	// Set when a version 2 client has to be sent its whole room next
+	public boolean needsSnapshot;
+
+	// Set once the client has been sent to another node, it is closed as
+	// soon as everything queued is written
+	public boolean closing;
+
+	// Set while counted by AdmissionControl, along with the source address
+	// it is counted against and its own message bucket, null for none
+	public boolean admitted;
+	public AdmissionControl.Source source;
+	public TokenBucket messages;
+
+	// Set once told it is sending too fast, until a message gets through
+	public boolean throttled;
+
+	// The reactor serving the connection, when the client last sent
+	// anything in TimerWheel.now() time, and the timeout that checks on it
+	public Reactor reactor;
+	public long lastRead;
+	public final TimerWheel.Timeout idle;
+
+	// When the acceptor took the connection, and when the oldest request
+	// not yet answered in full was read, in System.nanoTime() terms, 0 for
+	// none
+	public long acceptedAt;
+	public long requestedAt;
+
+	// The thread serving this connection when BlockingServer runs it
+	public ServerResponseThread handler;
+
+	public Connection(SocketChannel channel, int highWater) {
+		this.channel = channel;
+		this.outbound = new OutboundQueue(highWater);
+		this.change = new ChangeRequest(channel, ChangeRequest.REGISTER,
+				SelectionKey.OP_READ, this);
+		this.version = UNKNOWN;
+		this.idle = new TimerWheel.Timeout(Reactor.IDLE_TASK, this);
+	}
+
+	/*
+	 * A seat kept for a client that has not come back since the server
+	 * restarted. It has no channel and is never sent anything.
+	 */
+	public static Connection reserved(int nameId, String token) {
+		Connection connection = new Connection(null, 0);
+		connection.nameId = nameId;
+		connection.token = token;
+		return connection;
+	}
+
+	/* Checks if this only holds a seat, see reserved() */
+	public boolean isReserved() {
+		return channel == null;
+	}
+
+	/* Checks if the client has given a name yet */
+	public boolean isNamed() {
+		return nameId != NameTable.EMPTY;
+	}
+}
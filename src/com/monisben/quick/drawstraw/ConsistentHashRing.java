@@ -0,0 +1,161 @@
+package com.monisben.quick.drawstraw;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Decides which server node owns each room when several run as a cluster.
+ * Every node is hashed onto a ring of 32 bit points many times over, and a
+ * room belongs to the first point at or after its own hash, wrapping round.
+ *
+ * Adding or removing a node only moves the rooms falling on its points,
+ * about one in every node count of them, and the many points per node keep
+ * each node's share even. Every node must be given the same list, written
+ * the same way, as a node is placed by the hash of its "host:port" name.
+ * Never changed once made, so any thread may use it.
+ *
+ * @author Benjamin
+ *
+ */
+public class ConsistentHashRing {
+
+	// Points each node is given unless asked otherwise
+	public static final int DEFAULT_VIRTUAL_NODES = 160;
+
+	// Each node as configured, its address, and which of them we are
+	private final String[] mNodes;
+	private final InetSocketAddress[] mAddresses;
+	private final int mSelf;
+
+	// The points in order, and the node each belongs to
+	private final int[] mPoints;
+	private final int[] mOwners;
+
+	/*
+	 * A ring over the nodes, each "host:port", with self being the one this
+	 * server is. Throws IllegalArgumentException for a badly written node or
+	 * a self missing from the list.
+	 */
+	public ConsistentHashRing(List<String> nodes, String self,
+			int virtualNodes) {
+		mNodes = nodes.toArray(new String[nodes.size()]);
+		mAddresses = new InetSocketAddress[mNodes.length];
+		int found = -1;
+		for (int i = 0; i < mNodes.length; i++) {
+			mAddresses[i] = address(mNodes[i]);
+			if (mNodes[i].equals(self)) {
+				found = i;
+			}
+		}
+		if (found < 0) {
+			throw new IllegalArgumentException("cluster.self " + self
+					+ " is not one of cluster.nodes");
+		}
+		mSelf = found;
+
+		// Place every node's points, then sort them along with their owners
+		int virtual = Math.max(1, virtualNodes);
+		int count = mNodes.length * virtual;
+		long[] placed = new long[count];
+		int at = 0;
+		for (int node = 0; node < mNodes.length; node++) {
+			for (int i = 0; i < virtual; i++) {
+				long point = hash(mNodes[node] + "#" + i);
+				placed[at++] = point << 32 | node;
+			}
+		}
+
+		// Signed order of the points is fine as long as lookups agree
+		Arrays.sort(placed);
+		mPoints = new int[count];
+		mOwners = new int[count];
+		for (int i = 0; i < count; i++) {
+			mPoints[i] = (int) (placed[i] >> 32);
+			mOwners[i] = (int) placed[i];
+		}
+	}
+
+	/* Parses a comma separated list of nodes, skipping blanks */
+	public static List<String> nodes(String value) {
+		List<String> nodes = new ArrayList<String>();
+		for (String part : value.split(",")) {
+			if (!part.trim().isEmpty()) {
+				nodes.add(part.trim());
+			}
+		}
+		return nodes;
+	}
+
+	/* The index of the node owning the room */
+	public int nodeFor(String roomId) {
+		int hash = hash(roomId);
+		int at = Arrays.binarySearch(mPoints, hash);
+		if (at < 0) {
+			at = -at - 1;
+		}
+		return mOwners[at == mPoints.length ? 0 : at];
+	}
+
+	/* Checks if the room is ours */
+	public boolean isLocal(String roomId) {
+		return nodeFor(roomId) == mSelf;
+	}
+
+	/* The node as configured, "host:port" */
+	public String node(int index) {
+		return mNodes[index];
+	}
+
+	/* Where clients should go for the node, unresolved */
+	public InetSocketAddress address(int index) {
+		return mAddresses[index];
+	}
+
+	public int size() {
+		return mNodes.length;
+	}
+
+	public int getSelf() {
+		return mSelf;
+	}
+
+	/*
+	 * FNV-1a over the characters, finished with MurmurHash3's mix so that
+	 * names differing only at the end still land far apart.
+	 */
+	static int hash(String value) {
+		int hash = 0x811C9DC5;
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			hash = (hash ^ (c & 0xFF)) * 0x01000193;
+			hash = (hash ^ (c >>> 8)) * 0x01000193;
+		}
+		hash ^= hash >>> 16;
+		hash *= 0x85EBCA6B;
+		hash ^= hash >>> 13;
+		hash *= 0xC2B2AE35;
+		hash ^= hash >>> 16;
+		return hash;
+	}
+
+	private static InetSocketAddress address(String node) {
+		int split = node.lastIndexOf(':');
+		if (split <= 0) {
+			throw new IllegalArgumentException("Expected host:port, got "
+					+ node);
+		}
+		try {
+			int port = Integer.parseInt(node.substring(split + 1));
+			if (port < 1 || port > 65535) {
+				throw new NumberFormatException();
+			}
+			return InetSocketAddress.createUnresolved(
+					node.substring(0, split), port);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Bad port in cluster node "
+					+ node);
+		}
+	}
+}
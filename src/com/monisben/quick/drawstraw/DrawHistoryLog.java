@@ -0,0 +1,266 @@
+package com.monisben.quick.drawstraw;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only record of every roster change and draw, kept on disk in
+ * segments of a fixed size. Rooms hand entries over without waiting; a
+ * thread of its own writes them in batches and forces them to disk every
+ * so often, so the selector threads never touch the file.
+ *
+ * Each segment is named after its number, draws-00000000000000000001.log,
+ * and holds records of
+ *
+ * int length | int CRC32 | long time | u8 type | (u16 length | UTF-8)x2
+ *
+ * where length counts the bytes after the CRC and the strings are the room
+ * and the name. Types are the Message.DELTA_* codes. A record torn by a
+ * crash fails its CRC, and the log is cut back to the last good one when
+ * it is opened again. DrawHistoryReader reads the segments back.
+ *
+ * @author Benjamin
+ *
+ */
+public class DrawHistoryLog implements Runnable {
+
+	// Defaults for the segment size and how often writes are forced
+	public static final long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+	public static final long DEFAULT_FSYNC_INTERVAL = 1000;
+
+	// Entries waiting for the writer before new ones are dropped
+	private static final int MAX_QUEUED = 64 * 1024;
+
+	// Bytes gathered before each write
+	private static final int BATCH_SIZE = 64 * 1024;
+
+	static final String PREFIX = "draws-";
+	static final String SUFFIX = ".log";
+	static final int HEADER_SIZE = 8;
+
+	/**
+	 * A single change, as written and as read back.
+	 */
+	public static class Entry {
+
+		// Wall clock milliseconds, one of the Message.DELTA_* codes, the
+		// room and the member's name, or the loser's for a draw
+		public final long time;
+		public final int type;
+		public final String room;
+		public final String name;
+
+		public Entry(long time, int type, String room, String name) {
+			this.time = time;
+			this.type = type;
+			this.room = room;
+			this.name = name;
+		}
+	}
+
+	// Tells the writer to finish up
+	private static final Entry CLOSE = new Entry(0, 0, "", "");
+
+	private final File mDirectory;
+	private final long mSegmentSize;
+	private final long mFsyncInterval;
+
+	private final BlockingQueue<Entry> mQueue = new LinkedBlockingQueue<Entry>(
+			MAX_QUEUED);
+	private final AtomicLong mDropped = new AtomicLong();
+
+	// Only touched by the writer once it runs
+	private FileChannel mChannel;
+	private long mSegment;
+	private final ByteBuffer mBatch = ByteBuffer.allocateDirect(BATCH_SIZE);
+	private final CRC32 mCrc = new CRC32();
+	private long mLastSync;
+	private boolean mUnsynced;
+
+	private Thread mWriter;
+
+	/* Opens the log, carrying on from the end of the last good record */
+	public DrawHistoryLog(File directory, long segmentSize, long fsyncInterval)
+			throws IOException {
+		mDirectory = directory;
+		mSegmentSize = Math.min(Integer.MAX_VALUE,
+				Math.max(BATCH_SIZE, segmentSize));
+		mFsyncInterval = Math.max(0, fsyncInterval);
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not create " + directory);
+		}
+
+		List<File> segments = DrawHistoryReader.segments(directory);
+		if (segments.isEmpty()) {
+			open(1);
+		} else {
+			File last = segments.get(segments.size() - 1);
+			open(DrawHistoryReader.number(last));
+
+			// Cut off anything a crash left half written
+			long valid = DrawHistoryReader.scan(last, null);
+			mChannel.truncate(valid);
+			mChannel.position(valid);
+		}
+	}
+
+	/* Starts the writer thread */
+	public synchronized void start() {
+		if (mWriter == null) {
+			mWriter = new Thread(this, "history");
+			mWriter.setDaemon(true);
+			mWriter.start();
+		}
+	}
+
+	/*
+	 * Hands an entry to the writer from any thread without blocking. If the
+	 * writer has fallen that far behind the entry is dropped and counted.
+	 */
+	public void append(int type, String room, String name) {
+		Entry entry = new Entry(System.currentTimeMillis(), type, room,
+				name != null ? name : Message.EMPTY);
+		if (!mQueue.offer(entry)) {
+			mDropped.incrementAndGet();
+		}
+	}
+
+	/* Entries lost because the writer could not keep up */
+	public long getDropped() {
+		return mDropped.get();
+	}
+
+	public File getDirectory() {
+		return mDirectory;
+	}
+
+	/* Writes out everything handed over so far, then stops the writer */
+	public void close() throws InterruptedException {
+		Thread writer;
+		synchronized (this) {
+			writer = mWriter;
+		}
+		if (writer == null) {
+			return;
+		}
+		mQueue.put(CLOSE);
+		writer.join();
+	}
+
+	@Override
+	public void run() {
+		List<Entry> batch = new ArrayList<Entry>();
+		try {
+			while (true) {
+				// Wait for work, but no longer than the next forced write
+				Entry first = mQueue.poll(mUnsynced ? mFsyncInterval : 60000,
+						TimeUnit.MILLISECONDS);
+				if (first != null) {
+					batch.add(first);
+					mQueue.drainTo(batch);
+				}
+
+				boolean closing = false;
+				for (int i = 0; i < batch.size(); i++) {
+					Entry entry = batch.get(i);
+					if (entry == CLOSE) {
+						closing = true;
+						break;
+					}
+					write(entry);
+				}
+				batch.clear();
+				flush();
+
+				long now = TimerWheel.now();
+				if (mUnsynced
+						&& (closing || now - mLastSync >= mFsyncInterval)) {
+					mChannel.force(false);
+					mLastSync = now;
+					mUnsynced = false;
+				}
+				if (closing) {
+					mChannel.close();
+					return;
+				}
+			}
+		} catch (InterruptedException e) {
+			// Stopped
+		} catch (IOException e) {
+			// Nothing more can be recorded
+			e.printStackTrace();
+		}
+	}
+
+	/* Adds one record to the batch, writing and rotating as needed */
+	private void write(Entry entry) throws IOException {
+		byte[] room = entry.room.getBytes(Message.UTF_8);
+		byte[] name = entry.name.getBytes(Message.UTF_8);
+		int length = 8 + 1 + 2 + room.length + 2 + name.length;
+		int size = HEADER_SIZE + length;
+		if (size > BATCH_SIZE) {
+			// Nothing sensible is that long
+			mDropped.incrementAndGet();
+			return;
+		}
+
+		if (mBatch.remaining() < size) {
+			flush();
+		}
+		if (mChannel.position() + mBatch.position() + size > mSegmentSize) {
+			flush();
+			open(mSegment + 1);
+		}
+
+		int start = mBatch.position();
+		mBatch.position(start + HEADER_SIZE);
+		mBatch.putLong(entry.time);
+		mBatch.put((byte) entry.type);
+		mBatch.putShort((short) room.length);
+		mBatch.put(room);
+		mBatch.putShort((short) name.length);
+		mBatch.put(name);
+
+		mCrc.reset();
+		for (int i = start + HEADER_SIZE; i < mBatch.position(); i++) {
+			mCrc.update(mBatch.get(i));
+		}
+		mBatch.putInt(start, length);
+		mBatch.putInt(start + 4, (int) mCrc.getValue());
+	}
+
+	/* Writes the batch to the current segment */
+	private void flush() throws IOException {
+		mBatch.flip();
+		while (mBatch.hasRemaining()) {
+			mChannel.write(mBatch);
+			mUnsynced = true;
+		}
+		mBatch.clear();
+	}
+
+	/* Moves on to the numbered segment, forcing out the one before */
+	private void open(long segment) throws IOException {
+		if (mChannel != null) {
+			mChannel.force(false);
+			mChannel.close();
+		}
+
+		File file = DrawHistoryReader.segment(mDirectory, segment);
+		@SuppressWarnings("resource")
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		mChannel = raf.getChannel();
+		mChannel.position(mChannel.size());
+		mSegment = segment;
+	}
+}
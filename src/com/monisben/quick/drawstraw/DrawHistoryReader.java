@@ -0,0 +1,246 @@
+package com.monisben.quick.drawstraw;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Reads back what a DrawHistoryLog wrote, oldest first. Segments are mapped
+ * read only, so a reader may run beside the server's writer and simply stops
+ * at the last complete record.
+ *
+ * @author Benjamin
+ *
+ */
+public class DrawHistoryReader {
+
+	/**
+	 * Handed each entry in turn by replay.
+	 */
+	public interface Visitor {
+
+		public void visit(DrawHistoryLog.Entry entry);
+	}
+
+	private final File mDirectory;
+
+	public DrawHistoryReader(File directory) {
+		mDirectory = directory;
+	}
+
+	/*
+	 * Prints from the log in the directory: "losers ROOM" for each name's
+	 * losses in the room, "draws FROM TO" for the draws between two epoch
+	 * millisecond times, or every entry when given just the directory.
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length == 0) {
+			System.err.println("Usage: DrawHistoryReader DIR"
+					+ " [losers ROOM | draws FROM TO]");
+			System.exit(2);
+		}
+		DrawHistoryReader reader = new DrawHistoryReader(new File(args[0]));
+
+		if (args.length == 3 && args[1].equals("losers")) {
+			for (Map.Entry<String, Integer> count : reader.loserCounts(args[2])
+					.entrySet()) {
+				System.out.println(count.getKey() + "\t" + count.getValue());
+			}
+		} else if (args.length == 4 && args[1].equals("draws")) {
+			for (DrawHistoryLog.Entry entry : reader.draws(
+					Long.parseLong(args[2]), Long.parseLong(args[3]))) {
+				print(entry);
+			}
+		} else {
+			reader.replay(new Visitor() {
+
+				@Override
+				public void visit(DrawHistoryLog.Entry entry) {
+					print(entry);
+				}
+			});
+		}
+	}
+
+	private static void print(DrawHistoryLog.Entry entry) {
+		System.out.println(entry.time + "\t" + entry.type + "\t" + entry.room
+				+ "\t" + entry.name);
+	}
+
+	/* Hands every entry in the log to the visitor, oldest first */
+	public void replay(Visitor visitor) throws IOException {
+		for (File segment : segments(mDirectory)) {
+			scan(segment, visitor);
+		}
+	}
+
+	/* Every entry written between from and to, inclusive of from only */
+	public List<DrawHistoryLog.Entry> between(final long from, final long to)
+			throws IOException {
+		final List<DrawHistoryLog.Entry> entries = new ArrayList<DrawHistoryLog.Entry>();
+		replay(new Visitor() {
+
+			@Override
+			public void visit(DrawHistoryLog.Entry entry) {
+				if (entry.time >= from && entry.time < to) {
+					entries.add(entry);
+				}
+			}
+		});
+		return entries;
+	}
+
+	/* The draws made between from and to, in any room */
+	public List<DrawHistoryLog.Entry> draws(long from, long to)
+			throws IOException {
+		List<DrawHistoryLog.Entry> draws = new ArrayList<DrawHistoryLog.Entry>();
+		for (DrawHistoryLog.Entry entry : between(from, to)) {
+			if (entry.type == Message.DELTA_DRAWN) {
+				draws.add(entry);
+			}
+		}
+		return draws;
+	}
+
+	/* How many times each name has lost in the room */
+	public Map<String, Integer> loserCounts(final String room)
+			throws IOException {
+		final Map<String, Integer> counts = new HashMap<String, Integer>();
+		replay(new Visitor() {
+
+			@Override
+			public void visit(DrawHistoryLog.Entry entry) {
+				if (entry.type == Message.DELTA_DRAWN
+						&& entry.room.equals(room)) {
+					Integer count = counts.get(entry.name);
+					counts.put(entry.name, count == null ? 1 : count + 1);
+				}
+			}
+		});
+		return counts;
+	}
+
+	/* The segments in the directory, oldest first */
+	static List<File> segments(File directory) {
+		File[] files = directory.listFiles();
+		List<File> segments = new ArrayList<File>();
+		if (files == null) {
+			return segments;
+		}
+
+		Arrays.sort(files);
+		for (File file : files) {
+			if (number(file) > 0) {
+				segments.add(file);
+			}
+		}
+		return segments;
+	}
+
+	/* The file holding the numbered segment, padded so names sort in order */
+	static File segment(File directory, long number) {
+		return new File(directory, String.format("%s%020d%s",
+				DrawHistoryLog.PREFIX, number, DrawHistoryLog.SUFFIX));
+	}
+
+	/* The number in a segment's name, or 0 if it is not a segment */
+	static long number(File file) {
+		String name = file.getName();
+		if (!name.startsWith(DrawHistoryLog.PREFIX)
+				|| !name.endsWith(DrawHistoryLog.SUFFIX)) {
+			return 0;
+		}
+		try {
+			return Long.parseLong(name.substring(
+					DrawHistoryLog.PREFIX.length(), name.length()
+							- DrawHistoryLog.SUFFIX.length()));
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	/*
+	 * Hands each good record in the segment to the visitor, which may be
+	 * null. Returns the length of the segment up to the first torn or
+	 * damaged record.
+	 */
+	static long scan(File segment, Visitor visitor) throws IOException {
+		FileInputStream in = new FileInputStream(segment);
+		try {
+			FileChannel channel = in.getChannel();
+			long size = channel.size();
+			if (size == 0) {
+				return 0;
+			}
+
+			// Segments are kept under 2GB by the writer
+			MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY,
+					0, Math.min(size, Integer.MAX_VALUE));
+			CRC32 crc = new CRC32();
+			while (map.remaining() >= DrawHistoryLog.HEADER_SIZE) {
+				int start = map.position();
+				int length = map.getInt(start);
+				int checksum = map.getInt(start + 4);
+				int body = start + DrawHistoryLog.HEADER_SIZE;
+				if (length < 8 + 1 + 2 + 2 || length > map.limit() - body) {
+					return start;
+				}
+
+				crc.reset();
+				for (int i = body; i < body + length; i++) {
+					crc.update(map.get(i));
+				}
+				if ((int) crc.getValue() != checksum) {
+					return start;
+				}
+
+				map.position(body);
+				DrawHistoryLog.Entry entry = decode(map, body + length);
+				if (entry == null) {
+					return start;
+				}
+				if (visitor != null) {
+					visitor.visit(entry);
+				}
+				map.position(body + length);
+			}
+			return map.position();
+		} finally {
+			in.close();
+		}
+	}
+
+	/* Decodes a record's body, or returns null if its fields overrun it */
+	private static DrawHistoryLog.Entry decode(ByteBuffer in, int end) {
+		long time = in.getLong();
+		int type = in.get() & 0xFF;
+		String room = string(in, end);
+		if (room == null || end - in.position() < 2) {
+			return null;
+		}
+		String name = string(in, end);
+		if (name == null) {
+			return null;
+		}
+		return new DrawHistoryLog.Entry(time, type, room, name);
+	}
+
+	private static String string(ByteBuffer in, int end) {
+		int length = in.getShort() & 0xFFFF;
+		if (end - in.position() < length) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		in.get(bytes);
+		return new String(bytes, Message.UTF_8);
+	}
+}
@@ -32,6 +32,10 @@ public class DrawStrawWindow implements ActionListener, ClientListener {
 
 	// Flag for connection
 	private boolean mConnected;
+
+	// Our seat from the last connection, to take back on the next one
+	private String mResumeRoom;
+	private String mResumeToken;
 	
 	/**
 	 * Launch the application.
@@ -60,6 +64,7 @@ public class DrawStrawWindow implements ActionListener, ClientListener {
 			// Create if null
 			if (mThread == null) {
 				mThread = new ClientRequestThread(this);
+				mThread.setResume(mResumeRoom, mResumeToken);
 			}
 			// Then start
 			mThread.startThread();
@@ -238,6 +243,9 @@ public class DrawStrawWindow implements ActionListener, ClientListener {
 	/* Thread was killed, just  */
 	@Override
 	public void threadKilled(MessageThread thread) {
+		ClientRequestThread client = (ClientRequestThread) thread;
+		mResumeRoom = client.getResumeRoom();
+		mResumeToken = client.getResumeToken();
 		mThread = null;
 		submitButton.setEnabled(true);
 		mConnected = false;
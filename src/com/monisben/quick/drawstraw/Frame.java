@@ -0,0 +1,261 @@
+package com.monisben.quick.drawstraw;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A reusable view of one decoded frame. Instead of building Strings for every
+ * field it records where each field sits in the read buffer, so handling a
+ * message allocates nothing unless a field really has to become a String.
+ * The view is only good until the buffer is read into again.
+ *
+ * Old text clients still decode to a Message, which the view can wrap so
+ * both are handled the same way.
+ *
+ * @author Benjamin
+ *
+ */
+public class Frame {
+
+	// The header code of the frame
+	public int header;
+
+	// The correlation id following the fields, 0 for none
+	public int correlation;
+
+	// Where the fields sit in the buffer
+	private ByteBuffer mBuffer;
+	private int mCount;
+	private int[] mOffsets = new int[8];
+	private int[] mLengths = new int[8];
+
+	// Set instead of the buffer when wrapping a Message
+	private String[] mStrings;
+
+	// Scratch space for turning direct buffer fields into Strings
+	private byte[] mBytes = new byte[64];
+
+	/*
+	 * Points the view at the frame at the buffer's position and steps past
+	 * it. Returns false, leaving the buffer untouched, if the whole frame has
+	 * not arrived yet.
+	 */
+	public boolean wrap(ByteBuffer in) throws ProtocolException {
+		if (in.remaining() < Message.LENGTH_SIZE) {
+			return false;
+		}
+
+		int start = in.position();
+		int length = in.getInt(start);
+		if (length < Message.BODY_HEADER_SIZE
+				|| length > Message.MAX_FRAME_SIZE) {
+			throw new ProtocolException("Bad frame length " + length);
+		}
+		if (in.remaining() < Message.LENGTH_SIZE + length) {
+			return false;
+		}
+
+		int end = start + Message.LENGTH_SIZE + length;
+		int at = start + Message.LENGTH_SIZE;
+		int head = in.get(at) & 0xFF;
+		int count = in.getShort(at + 1) & 0xFFFF;
+		at += Message.BODY_HEADER_SIZE;
+
+		if (count > mOffsets.length) {
+			mOffsets = new int[Math.max(count, mOffsets.length * 2)];
+			mLengths = new int[mOffsets.length];
+		}
+
+		for (int i = 0; i < count; i++) {
+			if (end - at < Message.FIELD_HEADER_SIZE) {
+				throw new ProtocolException("Truncated frame");
+			}
+			int fieldLength = in.getShort(at) & 0xFFFF;
+			at += Message.FIELD_HEADER_SIZE;
+			if (end - at < fieldLength) {
+				throw new ProtocolException("Truncated field");
+			}
+			mOffsets[i] = at;
+			mLengths[i] = fieldLength;
+			at += fieldLength;
+		}
+
+		// Take a version 3 correlation id, skipping anything else a newer
+		// version appended
+		correlation = end - at >= Message.CORRELATION_SIZE ? in.getInt(at)
+				: 0;
+		in.position(end);
+
+		header = head;
+		mCount = count;
+		mBuffer = in;
+		mStrings = null;
+		return true;
+	}
+
+	/* Points the view at an already decoded message */
+	public void wrap(Message message) {
+		header = message.header;
+		correlation = message.correlation;
+		mCount = message.data.length;
+		mStrings = message.data;
+		mBuffer = null;
+	}
+
+	/* Checks what type of message this frame is */
+	public boolean is(int headerCode) {
+		return header == headerCode;
+	}
+
+	public int fieldCount() {
+		return mCount;
+	}
+
+	/* Builds a String for the field, this is the only call that allocates */
+	public String string(int field) {
+		if (mStrings != null) {
+			return mStrings[field];
+		}
+
+		int length = mLengths[field];
+		if (mBuffer.hasArray()) {
+			return new String(mBuffer.array(), mBuffer.arrayOffset()
+					+ mOffsets[field], length, Message.UTF_8);
+		}
+
+		if (length > mBytes.length) {
+			mBytes = new byte[Math.max(length, mBytes.length * 2)];
+		}
+		for (int i = 0; i < length; i++) {
+			mBytes[i] = mBuffer.get(mOffsets[field] + i);
+		}
+		return new String(mBytes, 0, length, Message.UTF_8);
+	}
+
+	/* Compares the field with a String without building one */
+	public boolean fieldEquals(int field, String value) {
+		if (mStrings != null) {
+			return value.equals(mStrings[field]);
+		}
+
+		int at = mOffsets[field];
+		int end = at + mLengths[field];
+		for (int i = 0; i < value.length(); i++) {
+			int c = value.charAt(i);
+			if (Character.isHighSurrogate((char) c) && i + 1 < value.length()) {
+				c = Character.toCodePoint((char) c, value.charAt(++i));
+			}
+
+			// Compare the UTF-8 bytes of the character one by one
+			if (c < 0x80) {
+				if (at >= end || mBuffer.get(at++) != (byte) c) {
+					return false;
+				}
+			} else {
+				int bytes = c < 0x800 ? 2 : c < 0x10000 ? 3 : 4;
+				if (end - at < bytes) {
+					return false;
+				}
+				int lead = bytes == 2 ? 0xC0 : bytes == 3 ? 0xE0 : 0xF0;
+				int shift = 6 * (bytes - 1);
+				if (mBuffer.get(at++) != (byte) (lead | (c >> shift))) {
+					return false;
+				}
+				while (shift > 0) {
+					shift -= 6;
+					byte next = (byte) (0x80 | ((c >> shift) & 0x3F));
+					if (mBuffer.get(at++) != next) {
+						return false;
+					}
+				}
+			}
+		}
+		return at == end;
+	}
+
+	/* Compares the field with UTF-8 bytes without building a String */
+	public boolean fieldEquals(int field, byte[] value) {
+		if (mStrings != null) {
+			return Arrays.equals(value, mStrings[field]
+					.getBytes(Message.UTF_8));
+		}
+
+		int length = mLengths[field];
+		if (length != value.length) {
+			return false;
+		}
+		int at = mOffsets[field];
+		for (int i = 0; i < length; i++) {
+			if (mBuffer.get(at + i) != value[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/* The hash Arrays.hashCode() gives the field's UTF-8 bytes */
+	public int hash(int field) {
+		if (mStrings != null) {
+			return Arrays.hashCode(mStrings[field].getBytes(Message.UTF_8));
+		}
+
+		int hash = 1;
+		int at = mOffsets[field];
+		for (int i = 0; i < mLengths[field]; i++) {
+			hash = 31 * hash + mBuffer.get(at + i);
+		}
+		return hash;
+	}
+
+	/* Copies the field's UTF-8 bytes into an array of their own */
+	public byte[] bytes(int field) {
+		if (mStrings != null) {
+			return mStrings[field].getBytes(Message.UTF_8);
+		}
+
+		byte[] bytes = new byte[mLengths[field]];
+		int at = mOffsets[field];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = mBuffer.get(at + i);
+		}
+		return bytes;
+	}
+
+	/* Reads the field as a decimal number, or the fallback if it is not one */
+	public int intValue(int field, int fallback) {
+		if (mStrings != null) {
+			try {
+				return Integer.parseInt(mStrings[field]);
+			} catch (NumberFormatException e) {
+				return fallback;
+			}
+		}
+
+		int length = mLengths[field];
+		if (length == 0 || length > 9) {
+			return fallback;
+		}
+
+		int value = 0;
+		for (int i = 0; i < length; i++) {
+			int digit = mBuffer.get(mOffsets[field] + i) - '0';
+			if (digit < 0 || digit > 9) {
+				return fallback;
+			}
+			value = value * 10 + digit;
+		}
+		return value;
+	}
+
+	/* Copies the frame out into a Message which outlives the buffer */
+	public Message toMessage() {
+		String[] data = new String[mCount];
+		for (int i = 0; i < mCount; i++) {
+			data[i] = string(i);
+		}
+		Message message = new Message(header, data);
+		message.correlation = correlation;
+		return message;
+	}
+}
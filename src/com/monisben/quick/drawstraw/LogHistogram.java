@@ -0,0 +1,84 @@
+package com.monisben.quick.drawstraw;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts values in power-of-two buckets, so recording is a leading zero
+ * count and an increment and the whole range of a long fits in 65 buckets.
+ * A percentile is only known to within a factor of two, which is plenty to
+ * tell a 100 microsecond loop from a 10 millisecond one.
+ *
+ * Like Metrics, one thread records and any thread may read.
+ *
+ * @author Benjamin
+ *
+ */
+public class LogHistogram {
+
+	// Bucket 0 holds zero, bucket i holds values from 2^(i-1) to 2^i - 1
+	private static final int BUCKETS = 65;
+
+	private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+
+	// Count, sum and max of everything recorded
+	private final AtomicLongArray mTotals = new AtomicLongArray(3);
+	private static final int COUNT = 0;
+	private static final int SUM = 1;
+	private static final int MAX = 2;
+
+	/* Records a value, owning thread only */
+	public void record(long value) {
+		value = Math.max(0, value);
+		int bucket = 64 - Long.numberOfLeadingZeros(value);
+		mCounts.lazySet(bucket, mCounts.get(bucket) + 1);
+		mTotals.lazySet(COUNT, mTotals.get(COUNT) + 1);
+		mTotals.lazySet(SUM, mTotals.get(SUM) + value);
+		if (value > mTotals.get(MAX)) {
+			mTotals.lazySet(MAX, value);
+		}
+	}
+
+	/* Adds the other histogram's values to this one, owning thread only */
+	public void add(LogHistogram other) {
+		for (int i = 0; i < BUCKETS; i++) {
+			mCounts.lazySet(i, mCounts.get(i) + other.mCounts.get(i));
+		}
+		mTotals.lazySet(COUNT, mTotals.get(COUNT) + other.count());
+		mTotals.lazySet(SUM, mTotals.get(SUM) + other.sum());
+		mTotals.lazySet(MAX, Math.max(mTotals.get(MAX), other.max()));
+	}
+
+	public long count() {
+		return mTotals.get(COUNT);
+	}
+
+	public long sum() {
+		return mTotals.get(SUM);
+	}
+
+	public long max() {
+		return mTotals.get(MAX);
+	}
+
+	/* The top of the bucket holding the given percentile, 0 when empty */
+	public long percentile(double percent) {
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			total += mCounts.get(i);
+		}
+		if (total == 0) {
+			return 0;
+		}
+
+		long rank = Math.max(1, (long) Math.ceil(percent / 100.0 * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += mCounts.get(i);
+			if (seen >= rank) {
+				long top = i == 64 ? Long.MAX_VALUE : (1L << i) - 1;
+				return Math.min(max(), top);
+			}
+		}
+		return max();
+	}
+}
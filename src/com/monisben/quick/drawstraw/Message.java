@@ -1,6 +1,9 @@
 package com.monisben.quick.drawstraw;
 
 import java.io.UnsupportedEncodingException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 
 /**
  * A message passed between client and server
@@ -13,8 +16,80 @@ public class Message {
 	// Public message codes to determine what is being said
 	public static final int HEAD_NAME = 1;
 	public static final int HEAD_DRAW = 2;
+	public static final int HEAD_JOIN = 3;
+	public static final int HEAD_RESYNC = 4;
 	public static final int SER_UPDATE = 100;
 
+	/*
+	 * From version 2 clients keep a copy of their room. They are sent
+	 * 
+	 * SER_SNAPSHOT: sequence | capacity | loser | name of each seat
+	 * 
+	 * on joining, and after that only what changed:
+	 * 
+	 * SER_DELTA: base sequence | (op | op fields)*
+	 * 
+	 * Every op moves the room on one sequence number, so a delta applies
+	 * only to a copy at its base. A client which finds a gap sends
+	 * HEAD_RESYNC and is sent a new snapshot.
+	 */
+	public static final int SER_SNAPSHOT = 101;
+	public static final int SER_DELTA = 102;
+
+	// Delta ops and their fields
+	public static final int DELTA_JOINED = 1; // seat | name
+	public static final int DELTA_RENAMED = 2; // seat | name
+	public static final int DELTA_LEFT = 3; // seat, filled by the last seat
+	public static final int DELTA_DRAWN = 4; // loser
+
+	/*
+	 * Framed clients that are otherwise quiet send HEAD_PING now and then,
+	 * with any fields they like, and are answered with SER_PONG carrying the
+	 * same fields. Servers drop framed clients silent for too long, and
+	 * clients drop servers the same way. Older servers ignore the ping.
+	 */
+	public static final int HEAD_PING = 5;
+	public static final int SER_PONG = 103;
+
+	/*
+	 * Version 2 clients are sent SER_TOKEN: room | token after the snapshot
+	 * of every room they take a seat in. Reconnecting, even to a restarted
+	 * server, they may send HEAD_RESUME: room | token instead of joining and
+	 * naming themselves, and are put back in their seat under their old
+	 * name. A seat that has gone is joined afresh, and the new token tells
+	 * the client so.
+	 */
+	public static final int HEAD_RESUME = 6;
+	public static final int SER_TOKEN = 104;
+
+	/*
+	 * In a cluster, a framed client asking a node for a room another node
+	 * owns is sent SER_REDIRECT: room | host | port and closed. It should
+	 * connect there and join or resume the room again.
+	 */
+	public static final int SER_REDIRECT = 105;
+
+	/*
+	 * Servers over a limit send SER_REJECT: reason | retry ms, see
+	 * AdmissionControl. Sent straight after the preamble the connection is
+	 * closed; sent later only the message that went over was dropped.
+	 */
+	public static final int SER_REJECT = 106;
+
+	/*
+	 * From version 3 a request may carry a u32 correlation id after its
+	 * fields, where older servers skip it. The server answers each request
+	 * carrying one with SER_RESULT: id | status | value, where the status is
+	 * RESULT_OK, RESULT_REFUSED or AdmissionControl.RATE and the value is
+	 * the room, name or loser for joins, names and draws, or the retry ms
+	 * for RATE. Results are sent as soon as the request is handled, so
+	 * ahead of the room state it changed. Pings are answered with SER_PONG
+	 * alone.
+	 */
+	public static final int SER_RESULT = 107;
+	public static final String RESULT_OK = "ok";
+	public static final String RESULT_REFUSED = "refused";
+
 	// Empty message string
 	public static final String EMPTY = "NONE";
 	
@@ -23,10 +98,45 @@ public class Message {
 	private static final String DATA_UNPACK = "\\?";
 	private static final String DATA_PACK = "?";
 
+	/*
+	 * Binary protocol. A connection opens with a two byte preamble, MAGIC
+	 * followed by the highest version the sender speaks; the server answers
+	 * with the version both sides will use. Every message after that is a
+	 * frame:
+	 * 
+	 * int length | u8 header | u16 field count | (u16 length | UTF-8 bytes)*
+	 * 
+	 * where length counts the bytes following it. Old clients never send
+	 * MAGIC, which is not a digit, so they are still served the text format.
+	 */
+	public static final byte MAGIC = (byte) 0xD5;
+	public static final int VERSION_LEGACY = 0;
+	public static final int VERSION_1 = 1;
+	public static final int VERSION_2 = 2;
+	public static final int VERSION_3 = 3;
+	public static final int PROTOCOL_VERSION = VERSION_3;
+	public static final int PREAMBLE_SIZE = 2;
+
+	// Frame layout sizes
+	public static final int LENGTH_SIZE = 4;
+	static final int CORRELATION_SIZE = 4;
+	static final int BODY_HEADER_SIZE = 3;
+	static final int FIELD_HEADER_SIZE = 2;
+	public static final int MAX_FRAME_SIZE = 1 << 20;
+
+	// Starting size of a connection's read buffer
+	public static final int READ_BUFFER_SIZE = 1024;
+	static final int MAX_FIELD_SIZE = 0xFFFF;
+
+	static final Charset UTF_8 = Charset.forName("UTF-8");
+
 	// The header and data
 	public int header;
 	public String[] data;
 
+	// Matches a version 3 request to its result, 0 for none
+	public int correlation;
+
 	/* Create the message */
 	public Message(int header, String[] data) {
 		this.header = header;
@@ -76,15 +186,32 @@ public class Message {
 		return this.toString().getBytes("US-ASCII");
 	}
 
-	/* Decodes a message from the given bytes */
+	/*
+	 * Decodes a message from the given bytes, throwing ProtocolException if
+	 * they do not start with a header code
+	 */
 	public static Message decode(byte[] data)
-			throws UnsupportedEncodingException {
+			throws UnsupportedEncodingException, ProtocolException {
+		return decode(data, 0, data.length);
+	}
+
+	/* Decodes a message from part of an array, without copying it out */
+	public static Message decode(byte[] data, int offset, int length)
+			throws UnsupportedEncodingException, ProtocolException {
 		// Get the raw string
-		String raw = new String(data, "US-ASCII");
+		String raw = new String(data, offset, length, "US-ASCII");
 		
 		// Split the header apart
 		String[] split = raw.split(SPLIT);
-		int head = Integer.parseInt(split[0]);
+		if (split.length == 0) {
+			throw new ProtocolException("Missing header");
+		}
+		int head;
+		try {
+			head = Integer.parseInt(split[0]);
+		} catch (NumberFormatException e) {
+			throw new ProtocolException("Bad header " + split[0]);
+		}
 		String dat = "";
 		if (split.length > 1) {
 			dat = split[1];
@@ -92,4 +219,289 @@ public class Message {
 		return new Message(head, dat);
 	}
 
+	// Preambles the server answers with, shared by every connection
+	private static final ByteBuffer[] PREAMBLES =
+			new ByteBuffer[PROTOCOL_VERSION + 1];
+	static {
+		for (int version = VERSION_1; version <= PROTOCOL_VERSION; version++) {
+			ByteBuffer preamble = ByteBuffer.allocate(PREAMBLE_SIZE);
+			writePreamble(preamble, version);
+			preamble.flip();
+			PREAMBLES[version] = preamble.asReadOnlyBuffer();
+		}
+	}
+
+	/* A ready to write preamble for the version, without encoding it again */
+	public static ByteBuffer preamble(int version) {
+		return PREAMBLES[version].duplicate();
+	}
+
+	/* Writes the connection preamble for the given version */
+	public static void writePreamble(ByteBuffer out, int version) {
+		out.put(MAGIC);
+		out.put((byte) version);
+	}
+
+	/* The number of bytes encode(ByteBuffer) will write */
+	public int frameSize() {
+		int size = LENGTH_SIZE + BODY_HEADER_SIZE;
+		for (int i = 0; i < data.length; i++) {
+			size += FIELD_HEADER_SIZE + utf8Length(data[i]);
+		}
+		if (correlation != 0) {
+			size += CORRELATION_SIZE;
+		}
+		return size;
+	}
+
+	/* Encodes this message as a single frame straight into the buffer */
+	public void encode(ByteBuffer out) {
+		int start = beginFrame(out, header, data.length);
+		for (int i = 0; i < data.length; i++) {
+			int lengthAt = out.position();
+			out.position(lengthAt + FIELD_HEADER_SIZE);
+			int length = putUtf8(out, data[i]);
+			out.putShort(lengthAt, (short) length);
+		}
+		if (correlation != 0) {
+			out.putInt(correlation);
+		}
+		endFrame(out, start);
+	}
+
+	/*
+	 * Starts a frame with the header and number of fields, for encoders
+	 * writing their fields themselves. Returns where the frame starts, to
+	 * pass to endFrame() once every field is written.
+	 */
+	public static int beginFrame(ByteBuffer out, int header, int fields) {
+		int start = out.position();
+
+		// Leave room for the length, it is filled in at the end
+		out.position(start + LENGTH_SIZE);
+		out.put((byte) header);
+		out.putShort((short) fields);
+		return start;
+	}
+
+	/* Fills in the length of the frame begun at start */
+	public static void endFrame(ByteBuffer out, int start) {
+		out.putInt(start, out.position() - start - LENGTH_SIZE);
+	}
+
+	/* Writes a field of UTF-8 bytes, as stored by a NameTable */
+	public static void putField(ByteBuffer out, byte[] bytes) {
+		out.putShort((short) bytes.length);
+		out.put(bytes);
+	}
+
+	public static int fieldSize(byte[] bytes) {
+		return FIELD_HEADER_SIZE + bytes.length;
+	}
+
+	/* Writes a number as a decimal field without making a String */
+	public static void putField(ByteBuffer out, int value) {
+		int digits = digits(value);
+		out.putShort((short) digits);
+		long rest = value;
+		if (rest < 0) {
+			out.put((byte) '-');
+			rest = -rest;
+			digits--;
+		}
+		int end = out.position() + digits;
+		for (int at = end - 1; at >= end - digits; at--) {
+			out.put(at, (byte) ('0' + rest % 10));
+			rest /= 10;
+		}
+		out.position(end);
+	}
+
+	public static int fieldSize(int value) {
+		return FIELD_HEADER_SIZE + digits(value);
+	}
+
+	/* Characters in the decimal form of the number, sign included */
+	private static int digits(int value) {
+		long rest = Math.abs((long) value);
+		int digits = value < 0 ? 2 : 1;
+		while (rest >= 10) {
+			rest /= 10;
+			digits++;
+		}
+		return digits;
+	}
+
+	/*
+	 * Decodes one frame from the buffer. Returns null and leaves the buffer
+	 * untouched if the whole frame has not arrived yet.
+	 */
+	public static Message decode(ByteBuffer in) throws ProtocolException {
+		if (in.remaining() < LENGTH_SIZE) {
+			return null;
+		}
+
+		int start = in.position();
+		int length = in.getInt(start);
+		if (length < BODY_HEADER_SIZE || length > MAX_FRAME_SIZE) {
+			throw new ProtocolException("Bad frame length " + length);
+		}
+		if (in.remaining() < LENGTH_SIZE + length) {
+			return null;
+		}
+
+		int end = start + LENGTH_SIZE + length;
+		in.position(start + LENGTH_SIZE);
+		int head = in.get() & 0xFF;
+		int count = in.getShort() & 0xFFFF;
+
+		String[] fields = new String[count];
+		for (int i = 0; i < count; i++) {
+			if (end - in.position() < FIELD_HEADER_SIZE) {
+				throw new ProtocolException("Truncated frame");
+			}
+			int fieldLength = in.getShort() & 0xFFFF;
+			if (end - in.position() < fieldLength) {
+				throw new ProtocolException("Truncated field");
+			}
+			fields[i] = getUtf8(in, fieldLength);
+		}
+
+		// Take a version 3 correlation id, skipping anything else a newer
+		// version appended
+		Message message = new Message(head);
+		if (end - in.position() >= CORRELATION_SIZE) {
+			message.correlation = in.getInt();
+		}
+		in.position(end);
+
+		message.data = fields;
+		return message;
+	}
+
+	/*
+	 * Compacts a read buffer once the complete frames have been decoded,
+	 * growing it if the partial frame left at its head will not fit. Returns
+	 * the buffer to keep reading into.
+	 */
+	public static ByteBuffer compact(ByteBuffer in) throws ProtocolException {
+		if (in.remaining() >= LENGTH_SIZE) {
+			int length = in.getInt(in.position());
+			if (length < BODY_HEADER_SIZE || length > MAX_FRAME_SIZE) {
+				throw new ProtocolException("Bad frame length " + length);
+			}
+
+			int needed = LENGTH_SIZE + length;
+			if (needed > in.capacity()) {
+				ByteBuffer larger = ByteBuffer.allocate(Math.max(needed,
+						in.capacity() * 2));
+				larger.put(in);
+				return larger;
+			}
+		}
+		in.compact();
+		return in;
+	}
+
+	/* Creates a message without data, used by decode to skip the copy */
+	private Message(int header) {
+		this.header = header;
+	}
+
+	/* Number of bytes the string takes as UTF-8 */
+	private static int utf8Length(String value) {
+		if (value == null) {
+			return 0;
+		}
+
+		int length = 0;
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c < 0x80) {
+				length += 1;
+			} else if (c < 0x800) {
+				length += 2;
+			} else if (isPair(value, i)) {
+				length += 4;
+				i++;
+			} else if (Character.isSurrogate(c)) {
+				// Written as '?'
+				length += 1;
+			} else {
+				length += 3;
+			}
+		}
+		return Math.min(length, MAX_FIELD_SIZE);
+	}
+
+	/* Checks if a high surrogate at the index is followed by its low half */
+	private static boolean isPair(String value, int index) {
+		return Character.isHighSurrogate(value.charAt(index))
+				&& index + 1 < value.length()
+				&& Character.isLowSurrogate(value.charAt(index + 1));
+	}
+
+	/* Writes the string as UTF-8 without an intermediate array */
+	private static int putUtf8(ByteBuffer out, String value) {
+		if (value == null) {
+			return 0;
+		}
+
+		int start = out.position();
+		int limit = start + MAX_FIELD_SIZE;
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c < 0x80) {
+				if (out.position() + 1 > limit) {
+					break;
+				}
+				out.put((byte) c);
+			} else if (c < 0x800) {
+				if (out.position() + 2 > limit) {
+					break;
+				}
+				out.put((byte) (0xC0 | (c >> 6)));
+				out.put((byte) (0x80 | (c & 0x3F)));
+			} else if (isPair(value, i)) {
+				if (out.position() + 4 > limit) {
+					break;
+				}
+				int cp = Character.toCodePoint(c, value.charAt(++i));
+				out.put((byte) (0xF0 | (cp >> 18)));
+				out.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+				out.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+				out.put((byte) (0x80 | (cp & 0x3F)));
+			} else if (Character.isSurrogate(c)) {
+				// Half a pair, replaced the way String.getBytes() does
+				if (out.position() + 1 > limit) {
+					break;
+				}
+				out.put((byte) '?');
+			} else {
+				if (out.position() + 3 > limit) {
+					break;
+				}
+				out.put((byte) (0xE0 | (c >> 12)));
+				out.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+				out.put((byte) (0x80 | (c & 0x3F)));
+			}
+		}
+		return out.position() - start;
+	}
+
+	/* Reads length bytes of UTF-8 from the buffer */
+	private static String getUtf8(ByteBuffer in, int length) {
+		String value;
+		if (in.hasArray()) {
+			value = new String(in.array(), in.arrayOffset() + in.position(),
+					length, UTF_8);
+			in.position(in.position() + length);
+		} else {
+			byte[] bytes = new byte[length];
+			in.get(bytes);
+			value = new String(bytes, UTF_8);
+		}
+		return value;
+	}
+
 }
@@ -1,6 +1,7 @@
 package com.monisben.quick.drawstraw;
 
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
 
 public class MessageThread extends Thread {
 
@@ -34,6 +35,14 @@ public class MessageThread extends Thread {
 		}
 	}
 
+	/* Starts on a thread from the factory, such as a virtual one */
+	public synchronized void startThread(ThreadFactory factory) {
+		if (mRunner == null) {
+			mRunner = factory.newThread(this);
+			mRunner.start();
+		}
+	}
+
 	public synchronized void stopThread() {
 		if (mRunner != null) {
 			Thread moribund = mRunner;
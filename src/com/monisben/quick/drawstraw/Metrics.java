@@ -0,0 +1,95 @@
+package com.monisben.quick.drawstraw;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters for one selector thread. Only the owning thread writes them, so
+ * a count is a plain read and an ordered store rather than a compare and
+ * swap, and any thread may read them while they are being written. Each
+ * thread having its own set keeps the reactors from sharing cache lines.
+ *
+ * @author Benjamin
+ *
+ */
+public class Metrics {
+
+	// Connections accepted, acceptor only
+	public static final int ACCEPTS = 0;
+
+	// Clients turned away because their room was full, or by admission
+	// control
+	public static final int REJECTS = 1;
+
+	// Bytes read from and written to clients
+	public static final int BYTES_IN = 2;
+	public static final int BYTES_OUT = 3;
+
+	// Messages decoded and acted on
+	public static final int FRAMES = 4;
+
+	// Rooms sent to their members, and draws with a loser
+	public static final int BROADCASTS = 5;
+	public static final int DRAWS = 6;
+
+	// Returns from select
+	public static final int WAKEUPS = 7;
+
+	// Clients dropped for falling past their high-water mark
+	public static final int SLOW_CONSUMERS = 8;
+
+	// Exceptions caught by the selector loop
+	public static final int ERRORS = 9;
+
+	// Clients dropped for saying nothing for too long
+	public static final int IDLE_CLOSED = 10;
+
+	// Clients sent to the cluster node owning their room
+	public static final int REDIRECTS = 11;
+
+	// Messages dropped for coming faster than their client's rate
+	public static final int THROTTLED = 12;
+
+	// Names as scraped, indexed by counter
+	public static final String[] NAMES = { "accepts", "rejects", "bytes_in",
+			"bytes_out", "frames", "broadcasts", "draws", "wakeups",
+			"slow_consumers", "errors", "idle_closed", "redirects",
+			"throttled" };
+
+	private final AtomicLongArray mCounters = new AtomicLongArray(NAMES.length);
+
+	// Time spent on each selector iteration after select returns
+	private final LogHistogram mLoopTime = new LogHistogram();
+
+	// Reactors only: from reading a request to writing the last byte queued
+	// for its client, and from the acceptor taking a connection to the
+	// reactor registering it
+	private final LogHistogram mResponseTime = new LogHistogram();
+	private final LogHistogram mRegisterTime = new LogHistogram();
+
+	/* Adds to a counter, owning thread only */
+	public void add(int counter, long delta) {
+		mCounters.lazySet(counter, mCounters.get(counter) + delta);
+	}
+
+	/* Adds one to a counter, owning thread only */
+	public void increment(int counter) {
+		mCounters.lazySet(counter, mCounters.get(counter) + 1);
+	}
+
+	/* Reads a counter from any thread */
+	public long get(int counter) {
+		return mCounters.get(counter);
+	}
+
+	public LogHistogram getLoopTime() {
+		return mLoopTime;
+	}
+
+	public LogHistogram getResponseTime() {
+		return mResponseTime;
+	}
+
+	public LogHistogram getRegisterTime() {
+		return mRegisterTime;
+	}
+}
@@ -0,0 +1,192 @@
+package com.monisben.quick.drawstraw;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+
+/**
+ * A tiny HTTP/1.0 endpoint answering GET /metrics with ServerStats.scrape().
+ * It runs on the acceptor's selector alongside the game listener, so
+ * scraping costs no thread of its own and never touches a reactor.
+ *
+ * A scraper that has not been answered and gone within EXCHANGE_TIMEOUT is
+ * closed, so one that connects and says nothing holds nothing for long.
+ * The selector's owner drives this through timeUntilNextTick() and
+ * expire(), as a reactor does its own timer.
+ *
+ * @author Benjamin
+ *
+ */
+public class MetricsEndpoint {
+
+	// Longest request we wait for before answering anyway
+	private static final int MAX_REQUEST = 4096;
+
+	// Milliseconds a scrape may take from accept to the last byte written
+	public static final long EXCHANGE_TIMEOUT = 10000;
+
+	// Closes a scrape that ran out of time, attached to its key
+	private final TimerWheel.Task mExpire = new TimerWheel.Task() {
+
+		@Override
+		public void run(TimerWheel.Timeout timeout) {
+			close((SelectionKey) timeout.attachment);
+		}
+	};
+
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+
+	// Channel that accepts scrapers
+	private final ServerSocketChannel mChannel;
+
+	private final ServerStats mStats;
+
+	// Deadlines of the scrapes in progress
+	private final TimerWheel mTimer = new TimerWheel();
+
+	/* One scrape, attached to its channel's key */
+	private static class Exchange {
+		final ByteBuffer request = ByteBuffer.allocate(MAX_REQUEST);
+		ByteBuffer response;
+		TimerWheel.Timeout deadline;
+	}
+
+	public MetricsEndpoint(InetSocketAddress address, ServerStats stats)
+			throws IOException {
+		mStats = stats;
+		mChannel = ServerSocketChannel.open();
+		mChannel.configureBlocking(false);
+		mChannel.socket().bind(address);
+	}
+
+	/* Listens on the selector, the endpoint is attached to its key */
+	public void register(Selector selector) throws IOException {
+		mChannel.register(selector, SelectionKey.OP_ACCEPT, this);
+	}
+
+	/* The port actually bound, useful when started on port 0 */
+	public int getPort() {
+		return mChannel.socket().getLocalPort();
+	}
+
+	/*
+	 * Milliseconds the selector may wait before expire() has work, 0 for as
+	 * long as it likes
+	 */
+	public long timeUntilNextTick() {
+		return mTimer.timeUntilNextTick();
+	}
+
+	/* Closes every scrape past its deadline */
+	public void expire() throws IOException {
+		mTimer.expire();
+	}
+
+	/* Handles any key belonging to the endpoint */
+	public void handle(SelectionKey key) {
+		// Expired or closed since it was selected
+		if (!key.isValid()) {
+			return;
+		}
+		try {
+			if (key.isAcceptable()) {
+				accept(key);
+			} else if (key.isReadable()) {
+				read(key);
+			} else if (key.isWritable()) {
+				write(key);
+			}
+		} catch (IOException e) {
+			// The scraper went away, nothing to tell it
+			close(key);
+		}
+	}
+
+	private void accept(SelectionKey key) throws IOException {
+		SocketChannel socketChannel = mChannel.accept();
+		if (socketChannel == null) {
+			return;
+		}
+		socketChannel.configureBlocking(false);
+		Exchange exchange = new Exchange();
+		SelectionKey exchangeKey = socketChannel.register(key.selector(),
+				SelectionKey.OP_READ, exchange);
+		exchange.deadline = new TimerWheel.Timeout(mExpire, exchangeKey);
+		mTimer.schedule(exchange.deadline, EXCHANGE_TIMEOUT);
+	}
+
+	/* Reads until the end of the request headers, then answers */
+	private void read(SelectionKey key) throws IOException {
+		Exchange exchange = (Exchange) key.attachment();
+		ByteBuffer request = exchange.request;
+		if (((SocketChannel) key.channel()).read(request) < 0) {
+			close(key);
+			return;
+		}
+
+		String text = new String(request.array(), 0, request.position(),
+				ASCII);
+		if (!text.contains("\r\n\r\n") && !text.contains("\n\n")
+				&& request.hasRemaining()) {
+			return;
+		}
+
+		exchange.response = respond(text);
+		key.interestOps(SelectionKey.OP_WRITE);
+		write(key);
+	}
+
+	private void write(SelectionKey key) throws IOException {
+		Exchange exchange = (Exchange) key.attachment();
+		((SocketChannel) key.channel()).write(exchange.response);
+		if (!exchange.response.hasRemaining()) {
+			close(key);
+		}
+	}
+
+	/* Builds the whole response for the request */
+	private ByteBuffer respond(String request) {
+		String status;
+		String body;
+		if (request.startsWith("GET /metrics ") || request.startsWith("GET / ")) {
+			status = "200 OK";
+			body = mStats.scrape();
+		} else if (request.startsWith("GET ")) {
+			status = "404 Not Found";
+			body = "Try /metrics\n";
+		} else {
+			status = "405 Method Not Allowed";
+			body = "Only GET\n";
+		}
+
+		byte[] content = body.getBytes(ASCII);
+		String head = "HTTP/1.0 " + status + "\r\n"
+				+ "Content-Type: text/plain; version=0.0.4\r\n"
+				+ "Content-Length: " + content.length + "\r\n"
+				+ "Connection: close\r\n\r\n";
+		byte[] header = head.getBytes(ASCII);
+
+		ByteBuffer response = ByteBuffer.allocate(header.length
+				+ content.length);
+		response.put(header).put(content);
+		response.flip();
+		return response;
+	}
+
+	private void close(SelectionKey key) {
+		if (key.attachment() instanceof Exchange) {
+			mTimer.cancel(((Exchange) key.attachment()).deadline);
+		}
+		key.cancel();
+		try {
+			key.channel().close();
+		} catch (IOException e) {
+			// Closing anyway
+		}
+	}
+}
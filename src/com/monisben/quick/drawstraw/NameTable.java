@@ -0,0 +1,197 @@
+package com.monisben.quick.drawstraw;
+
+import java.util.Arrays;
+
+/**
+ * Every member's name stored once, as its UTF-8 bytes, under a small int id.
+ * Connections, losers and room deltas hold ids instead of Strings, so a name
+ * shared by many members is kept once, and encoding a room copies the
+ * stored bytes straight into the frame.
+ *
+ * Each id is counted: intern() and retain() add a reference, release()
+ * drops one, and an id with none left is reused. Only ever used by one
+ * thread at a time; a Reactor owns one for all its rooms.
+ *
+ * @author Benjamin
+ *
+ */
+public class NameTable {
+
+	// The id of Message.EMPTY, always present and never counted
+	public static final int EMPTY = 0;
+
+	private static final byte[] EMPTY_BYTES = Message.EMPTY
+			.getBytes(Message.UTF_8);
+
+	// By id: the bytes, their hash, references, and a String made on demand
+	private byte[][] mBytes = new byte[16][];
+	private int[] mHashes = new int[16];
+	private int[] mRefs = new int[16];
+	private String[] mStrings = new String[16];
+
+	// One past the highest id handed out, and freed ids waiting for reuse
+	private int mHigh;
+	private int[] mFree = new int[16];
+	private int mFreeCount;
+
+	// Hash chains: the first id + 1 in each bucket, and the next id + 1
+	private int[] mBuckets = new int[32];
+	private int[] mNext = new int[16];
+
+	// Ids in use, EMPTY included
+	private int mSize;
+
+	public NameTable() {
+		add(EMPTY_BYTES, Arrays.hashCode(EMPTY_BYTES));
+		mStrings[EMPTY] = Message.EMPTY;
+	}
+
+	/* The id of the name, adding it if new, with one more reference */
+	public int intern(String name) {
+		return intern(name.getBytes(Message.UTF_8));
+	}
+
+	/*
+	 * The id of the name in the bytes, adding it if new, with one more
+	 * reference. The array is kept as it is, so must not be changed after.
+	 */
+	public int intern(byte[] bytes) {
+		int hash = Arrays.hashCode(bytes);
+		int id = mBuckets[hash & (mBuckets.length - 1)] - 1;
+		while (id >= 0) {
+			if (mHashes[id] == hash && Arrays.equals(mBytes[id], bytes)) {
+				return retain(id);
+			}
+			id = mNext[id] - 1;
+		}
+		return add(bytes, hash);
+	}
+
+	/* Interns a field of the frame, only copying it out if it is new */
+	public int intern(Frame frame, int field) {
+		int hash = frame.hash(field);
+		int id = mBuckets[hash & (mBuckets.length - 1)] - 1;
+		while (id >= 0) {
+			if (mHashes[id] == hash && frame.fieldEquals(field, mBytes[id])) {
+				return retain(id);
+			}
+			id = mNext[id] - 1;
+		}
+		return add(frame.bytes(field), hash);
+	}
+
+	/* Adds a reference to the id, returning it */
+	public int retain(int id) {
+		if (id != EMPTY) {
+			mRefs[id]++;
+		}
+		return id;
+	}
+
+	/* Drops a reference to the id, forgetting the name once none are left */
+	public void release(int id) {
+		if (id == EMPTY || --mRefs[id] > 0) {
+			return;
+		}
+
+		// Unlink from its chain
+		int bucket = mHashes[id] & (mBuckets.length - 1);
+		if (mBuckets[bucket] == id + 1) {
+			mBuckets[bucket] = mNext[id];
+		} else {
+			int at = mBuckets[bucket] - 1;
+			while (mNext[at] != id + 1) {
+				at = mNext[at] - 1;
+			}
+			mNext[at] = mNext[id];
+		}
+
+		mBytes[id] = null;
+		mStrings[id] = null;
+		mNext[id] = 0;
+		if (mFreeCount == mFree.length) {
+			mFree = Arrays.copyOf(mFree, mFree.length * 2);
+		}
+		mFree[mFreeCount++] = id;
+		mSize--;
+	}
+
+	/* The stored bytes of the name, which must not be changed */
+	public byte[] bytes(int id) {
+		return mBytes[id];
+	}
+
+	/* The name as a String, made once and kept while the id lives */
+	public String string(int id) {
+		String value = mStrings[id];
+		if (value == null) {
+			value = new String(mBytes[id], Message.UTF_8);
+			mStrings[id] = value;
+		}
+		return value;
+	}
+
+	/* Checks if the field of the frame is the named id */
+	public boolean equals(int id, Frame frame, int field) {
+		return frame.fieldEquals(field, mBytes[id]);
+	}
+
+	/* The number of names held, EMPTY included */
+	public int size() {
+		return mSize;
+	}
+
+	/* Stores a new name with one reference and returns its id */
+	private int add(byte[] bytes, int hash) {
+		// Only old text clients can send more than a field holds
+		if (bytes.length > Message.MAX_FIELD_SIZE) {
+			bytes = Arrays.copyOf(bytes, Message.MAX_FIELD_SIZE);
+			hash = Arrays.hashCode(bytes);
+		}
+
+		// Keep the chains short
+		if (mSize + 1 > mBuckets.length * 3 / 4) {
+			rehash(mBuckets.length * 2);
+		}
+
+		int id;
+		if (mFreeCount > 0) {
+			id = mFree[--mFreeCount];
+		} else {
+			id = mHigh++;
+			if (id == mBytes.length) {
+				grow();
+			}
+		}
+
+		mBytes[id] = bytes;
+		mHashes[id] = hash;
+		mRefs[id] = 1;
+		mSize++;
+
+		int bucket = hash & (mBuckets.length - 1);
+		mNext[id] = mBuckets[bucket];
+		mBuckets[bucket] = id + 1;
+		return id;
+	}
+
+	private void grow() {
+		int capacity = mBytes.length * 2;
+		mBytes = Arrays.copyOf(mBytes, capacity);
+		mHashes = Arrays.copyOf(mHashes, capacity);
+		mRefs = Arrays.copyOf(mRefs, capacity);
+		mStrings = Arrays.copyOf(mStrings, capacity);
+		mNext = Arrays.copyOf(mNext, capacity);
+	}
+
+	private void rehash(int buckets) {
+		mBuckets = new int[buckets];
+		for (int id = 0; id < mHigh; id++) {
+			if (mBytes[id] != null) {
+				int bucket = mHashes[id] & (buckets - 1);
+				mNext[id] = mBuckets[bucket];
+				mBuckets[bucket] = id + 1;
+			}
+		}
+	}
+}
@@ -1,382 +1,395 @@
 package com.monisben.quick.drawstraw;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.nio.ByteBuffer;
-import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.spi.SelectorProvider;
-import java.util.Collection;
+import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.LinkedHashMap;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
-import java.util.Random;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Accepts connections and spreads them over a pool of reactors, each running
+ * its own selector on its own thread. With accept.sharded set every reactor
+ * instead listens on the same ports through SO_REUSEPORT and accepts for
+ * itself, so no single thread sees every connection. Either way a client
+ * asking for a room owned by another reactor is handed to it.
+ *
+ * The server's counters are registered over JMX once it runs, and can also
+ * be scraped as plain text from a port served by the accepting selector.
+ * With history.dir set every roster change and draw is also kept on disk,
+ * see DrawHistoryLog. With snapshot.dir set the rooms themselves are saved,
+ * and put back when the server starts, see RoomSnapshotter.
+ *
+ * With cluster.nodes set several servers share the rooms, each owning those
+ * a ConsistentHashRing places on it. Any node accepts any client, and one
+ * asking for a room owned by another node is redirected there.
+ *
+ * Connections and messages are kept within the limits AdmissionControl
+ * sets, before a client costs a reactor anything.
+ *
+ * @author Benjamin
+ *
+ */
 public class NonBlockingServer implements Runnable {
 
-	// Used by client to connect
+	// Defaults for the server and the client, see ServerConfig
 	public static final int SERVER_PORT = 9000;
 	public static final String SERVER_IP = "50.101.48.41";
+	public static final int METRICS_PORT = 9001;
 
-	// The number of clients being drawn for
-	private static final int NUM_CLIENTS = 3;
+	// Ports, buffers, limits and socket options
+	private final ServerConfig mConfig;
 
-	// Servers address and port
-	private InetAddress mHostAddress;
-	private int mPort;
+	// Channels that accept socket channels, one per port and bind address
+	private final List<ServerSocketChannel> mChannels =
+			new ArrayList<ServerSocketChannel>();
 
-	// Channel that accepts socket channels
-	private ServerSocketChannel mChannel;
-
-	// Selector for the server
+	// Selector for accepting only
 	private Selector mSelector;
 
-	private ByteBuffer mBuffer;
+	// The workers connections are spread over
+	private final Reactor[] mReactors;
 
-	// The number of channels which have accepted a connection
-	private Map<SocketChannel, String> mClients;
+	// The reactor the next accepted connection goes to
+	private int mNextReactor;
 
-	// Changes are done in another thread
-	private List<ChangeRequest> mChanges = new LinkedList<ChangeRequest>();
+	// The acceptor's own counters, and everything read together
+	private final Metrics mMetrics = new Metrics();
+	private final ServerStats mStats;
 
-	// The loser of the draw
-	private String mLoser;
+	// Serves the scrape on the accepting selector, null unless asked for
+	private MetricsEndpoint mEndpoint;
 
-	// A flag indicating we are on draw cooldown
-	private volatile boolean mCooldown;
-	private static final long COOLDOWN_TIME = 30000;
+	// Every room's changes, kept on disk, null unless asked for
+	private final DrawHistoryLog mHistory;
 
-	public NonBlockingServer(InetAddress hostAddress, int port)
-			throws IOException {
-		// Initialize name and client list
-		mClients = new LinkedHashMap<SocketChannel, String>(NUM_CLIENTS);
+	// Saves every room to be put back after a restart, null unless asked for
+	private final RoomSnapshotter mSnapshotter;
 
-		// Initialize variables
-		mBuffer = ByteBuffer.allocate(1024);
-		mHostAddress = hostAddress;
-		mPort = port;
-		mSelector = initSelector();
+	// Which node owns each room, null unless part of a cluster
+	private volatile ConsistentHashRing mRing;
 
+	// Connection caps and rate limits, shared with every reactor
+	private final AdmissionControl mAdmission;
+
+	public NonBlockingServer(InetAddress hostAddress, int port)
+			throws IOException {
+		this(hostAddress, port, 0, OutboundQueue.DEFAULT_HIGH_WATER);
 	}
 
-	private Selector initSelector() throws IOException {
-		// Create the selector
-		Selector socketSelector = SelectorProvider.provider().openSelector();
+	/* Serves no metrics port, 0 reactors means one per core */
+	public NonBlockingServer(InetAddress hostAddress, int port, int reactors,
+			int highWater) throws IOException {
+		this(config(hostAddress, port, reactors, highWater));
+	}
 
-		// Create a new non-blocking server socket channel
-		mChannel = ServerSocketChannel.open();
-		mChannel.configureBlocking(false);
+	public NonBlockingServer(ServerConfig config) throws IOException {
+		// Initialize variables
+		mConfig = config;
+		mRing = config.ring();
+		mAdmission = new AdmissionControl(config);
+		mSelector = SelectorProvider.provider().openSelector();
+		mHistory = config.historyDir.isEmpty() ? null : new DrawHistoryLog(
+				new File(config.historyDir), config.historySegment,
+				config.historyFsync);
+		mSnapshotter = config.snapshotDir.isEmpty() ? null
+				: new RoomSnapshotter(new File(config.snapshotDir),
+						config.reactorCount());
+
+		// Create the workers
+		mReactors = new Reactor[config.reactorCount()];
+		for (int i = 0; i < mReactors.length; i++) {
+			mReactors[i] = new Reactor(this, config, i);
+		}
+		if (mSnapshotter != null) {
+			restore();
+		}
 
-		// Bind the server socket to the specified address and port
-		InetSocketAddress isa = new InetSocketAddress(mHostAddress, mPort);
-		mChannel.socket().bind(isa);
+		// Listen on every port, from here or from every reactor
+		boolean sharded = config.acceptSharded && listenSharded();
+		if (!sharded) {
+			listen();
+		}
+		mStats = new ServerStats(mMetrics, mReactors);
 
-		// Register the server socket channel, indicating interest in accepting
-		// connections
-		mChannel.register(socketSelector, SelectionKey.OP_ACCEPT);
+		if (config.metricsPort >= 0) {
+			serveMetrics(config.metricsPort);
+		}
+	}
 
-		return socketSelector;
+	private static ServerConfig config(InetAddress hostAddress, int port,
+			int reactors, int highWater) {
+		ServerConfig config = new ServerConfig();
+		config.bind = new InetAddress[] { hostAddress };
+		config.ports = new int[] { port };
+		config.reactors = reactors;
+		config.highWater = highWater;
+		config.metricsPort = -1;
+		return config;
 	}
 
-	/* Start the server */
-	public static void main(String[] args) {
-		try {
-			new Thread(new NonBlockingServer(null, SERVER_PORT)).start();
-		} catch (IOException e) {
-			e.printStackTrace();
+	/* Listens on every port and address from the accepting selector */
+	private void listen() throws IOException {
+		for (int port : mConfig.ports) {
+			int bound = port;
+			for (InetAddress address : mConfig.bind) {
+				// Create a new non-blocking server socket channel
+				ServerSocketChannel channel = ServerSocketChannel.open();
+				channel.configureBlocking(false);
+				mConfig.configure(channel);
+
+				// Bind the server socket to the address, and to the port the
+				// first address picked when asked for any
+				InetSocketAddress isa = new InetSocketAddress(address, bound);
+				channel.socket().bind(isa, mConfig.backlog);
+				bound = channel.socket().getLocalPort();
+
+				// Register the server socket channel, indicating interest in
+				// accepting connections
+				channel.register(mSelector, SelectionKey.OP_ACCEPT);
+				mChannels.add(channel);
+			}
 		}
 	}
 
-	@Override
-	public void run() {
-		// Loop forever
-		while (true) {
-			try {
-
-				// Iterate over the change list, making all necessary key
-				// changes
-				synchronized (this.mChanges) {
-					Iterator<ChangeRequest> changes = mChanges.iterator();
-					while (changes.hasNext()) {
-						ChangeRequest change = (ChangeRequest) changes.next();
-						switch (change.type) {
-						case ChangeRequest.CHANGEOPS:
-							SelectionKey key = change.socket.keyFor(mSelector);
-
-							key.interestOps(change.ops);
-
-							break;
-						case ChangeRequest.REGISTER:
-							change.socket.register(mSelector, change.ops);
-							break;
+	/*
+	 * Gives every reactor its own socket on each port. Returns false, having
+	 * bound nothing, where SO_REUSEPORT is not available.
+	 */
+	private boolean listenSharded() throws IOException {
+		for (int port : mConfig.ports) {
+			int bound = port;
+			for (InetAddress address : mConfig.bind) {
+				for (int i = 0; i < mReactors.length; i++) {
+					ServerSocketChannel channel = ServerSocketChannel.open();
+					mConfig.configure(channel);
+					if (!ServerConfig.setReusePort(channel)) {
+						channel.close();
+						if (mChannels.isEmpty()) {
+							System.err.println("SO_REUSEPORT is not available,"
+									+ " accepting on one thread");
+							return false;
 						}
-					}
-					mChanges.clear();
-				}
-
-				mSelector.select();
-
-				Iterator<SelectionKey> selectedKeys = mSelector.selectedKeys()
-						.iterator();
-				while (selectedKeys.hasNext()) {
-					// Get the current iterator and remove the item
-					SelectionKey key = selectedKeys.next();
-					selectedKeys.remove();
-
-					// Make sure key is valid
-					if (!key.isValid()) {
-						continue;
+						throw new IOException("SO_REUSEPORT went away");
 					}
 
-					// Check the key's event
-					if (key.isAcceptable()) {
-						accept(key);
-					} else if (key.isReadable()) {
-						read(key);
-					} else if (key.isWritable()) {
-						write(key);
+					// The first one picks the port when asked for any
+					InetSocketAddress isa = new InetSocketAddress(address,
+							bound);
+					channel.socket().bind(isa, mConfig.backlog);
+					bound = channel.socket().getLocalPort();
+					mReactors[i].listen(channel);
+					if (i == 0) {
+						mChannels.add(channel);
 					}
 				}
-
-			} catch (Exception e) {
-				e.printStackTrace();
 			}
 		}
+		return true;
+	}
 
+	/* Start the server, see ServerConfig for the arguments */
+	public static void main(String[] args) {
+		try {
+			new Thread(new NonBlockingServer(ServerConfig.load(args))).start();
+		} catch (IOException e) {
+			e.printStackTrace();
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.exit(2);
+		}
 	}
 
-	/* Accepts a connection or closes it */
-	private void accept(SelectionKey key) throws IOException {
-		// For an accept to be pending, the channel must be a server socket
-		// channel
-		ServerSocketChannel serverSocketChannel = (ServerSocketChannel) key
-				.channel();
+	/* The first port actually bound, useful when started on port 0 */
+	public int getPort() {
+		return getPort(0);
+	}
 
-		synchronized (mClients) {
-			if (mClients.size() <= NUM_CLIENTS) {
-				// Accept the connection if less than NUM_CLIENTS, and make it
-				// non-blocking
-				SocketChannel socketChannel = serverSocketChannel.accept();
-				socketChannel.configureBlocking(false);
-
-				// Register the new channel with the Selector, indicating we
-				// would
-				// like to be notified when there's data waiting to be read
-				synchronized (mChanges) {
-					mChanges.add(new ChangeRequest(socketChannel,
-							ChangeRequest.REGISTER, SelectionKey.OP_READ));
-				}
+	/* The port bound for the given entry of the configured ports */
+	public int getPort(int index) {
+		return mChannels.get(index * mConfig.bind.length).socket()
+				.getLocalPort();
+	}
 
-				// Add to the list of channels
-				mClients.put(socketChannel, Message.EMPTY);
+	public ServerStats getStats() {
+		return mStats;
+	}
 
-			} else {
-				// Close the channel and cancel the key
-				key.channel().close();
-				key.cancel();
+	/*
+	 * Puts back every saved room on the reactor now owning it, and saves
+	 * them again straight away in case there are fewer reactors than before.
+	 */
+	private void restore() throws IOException {
+		long start = System.nanoTime();
+		List<RoomSnapshotter.SavedRoom> rooms = mSnapshotter.load();
+		int restored = 0;
+		for (RoomSnapshotter.SavedRoom room : rooms) {
+			// A room another node now owns starts afresh there
+			if (mRing == null || mRing.isLocal(room.id)) {
+				reactorFor(room.id).restore(room);
+				restored++;
 			}
 		}
+		for (int i = 0; i < mReactors.length; i++) {
+			mReactors[i].snapshot();
+		}
+		mSnapshotter.clean();
 
+		if (restored > 0) {
+			System.out.println("Restored " + restored + " rooms in "
+					+ (System.nanoTime() - start) / 1000000 + " ms");
+		}
 	}
 
-	/* Picks a random connection from the list */
-	private void draw() {
-		synchronized (mClients) {
-			// Make sure we arent on cooldown
-			if (!mCooldown) {
+	public RoomSnapshotter getSnapshotter() {
+		return mSnapshotter;
+	}
 
-				// Get the names of each client
-				final Collection<String> c = mClients.values();
-				String[] values = (String[]) (c
-						.toArray(new String[NUM_CLIENTS]));
+	/* The log every reactor's rooms write to, or null */
+	public DrawHistoryLog getHistory() {
+		return mHistory;
+	}
 
-				for (int i = 0; i < NUM_CLIENTS; i++) {
-					if (values[i] == null) {
-						values[i] = Message.EMPTY;
-					}
-				}
+	/*
+	 * Serves the plain text scrape on the port, 0 for any free one. Call
+	 * before the server runs; returns the endpoint to find the port from.
+	 */
+	public MetricsEndpoint serveMetrics(int port) throws IOException {
+		mEndpoint = new MetricsEndpoint(new InetSocketAddress(
+				mConfig.bind[0], port), mStats);
+		mEndpoint.register(mSelector);
+		return mEndpoint;
+	}
 
-				// If none of the names are empty, draw the loser
-				if (!values[0].equals(Message.EMPTY)
-						&& !values[1].equals(Message.EMPTY)
-						&& !values[2].equals(Message.EMPTY)) {
-
-					// Get size and create new random
-					int size = mClients.size();
-					int item = new Random(System.currentTimeMillis())
-							.nextInt(size);
-
-					// Loop until at correct index
-					int i = 0;
-					for (String name : mClients.values()) {
-						if (i == item) {
-							// Have looped item times, set the name
-							mLoser = name;
-						}
-						i++;
-					}
+	public AdmissionControl getAdmission() {
+		return mAdmission;
+	}
 
-					// Something was picked, lockout for 30 seconds
-					if (mLoser != null) {
-
-						// Set the timeout then wait 30 seconds
-						Runnable runner = new Runnable() {
-
-							@Override
-							public void run() {
-								// Wait for ~ COOLDOWN_TIME milliseconds
-								mCooldown = true;
-								try {
-									Thread.sleep(COOLDOWN_TIME);
-								} catch (InterruptedException e) {
-									e.printStackTrace();
-								} finally {
-									mCooldown = false;
-								}
-
-							}
-						};
-
-						// Start the cooldown thread
-						new Thread(runner).start();
-					}
+	/* The cluster's ring, or null when running alone */
+	public ConsistentHashRing getRing() {
+		return mRing;
+	}
 
-				}
-			}
+	/*
+	 * Changes the cluster's nodes while running, null to run alone. Every
+	 * reactor redirects the members of rooms no longer ours on its next
+	 * iteration; the other nodes must be given the same ring.
+	 */
+	public void setRing(ConsistentHashRing ring) {
+		mRing = ring;
+		for (int i = 0; i < mReactors.length; i++) {
+			mReactors[i].wakeup();
 		}
 	}
 
-	private void read(SelectionKey key) throws IOException {
-		SocketChannel socketChannel = (SocketChannel) key.channel();
-
-		// Clear the read buffer
-		mBuffer.clear();
+	/* The reactor owning the given room */
+	public Reactor reactorFor(String roomId) {
+		return mReactors[(roomId.hashCode() & Integer.MAX_VALUE)
+				% mReactors.length];
+	}
 
-		// Attempt to read off channel
-		int numRead;
-		try {
-			numRead = socketChannel.read(mBuffer);
-		} catch (IOException e) {
-			// The remote forcibly closed connection, cancel the selection key
-			// and close the channel
-			removeClient(key);
-			return;
+	@Override
+	public void run() {
+		// Start the workers
+		if (mHistory != null) {
+			mHistory.start();
 		}
-
-		if (numRead == -1) {
-			// Remote entity shut down cleanly. Do the same on our end and
-			// cancel channel
-			removeClient(key);
-			return;
+		if (mSnapshotter != null) {
+			mSnapshotter.start();
+		}
+		for (int i = 0; i < mReactors.length; i++) {
+			new Thread(mReactors[i], "reactor-" + i).start();
 		}
+		registerStats();
 
-		// Handle data processing in the worker thread
-		byte[] dataCopy = new byte[numRead];
-		System.arraycopy(mBuffer.array(), 0, dataCopy, 0, numRead);
+		// Loop forever
+		while (true) {
+			try {
+				// Wake for scrapes running out of time, if any
+				mSelector.select(mEndpoint != null ? mEndpoint
+						.timeUntilNextTick() : 0);
+				long woken = System.nanoTime();
+				mMetrics.increment(Metrics.WAKEUPS);
+				if (mEndpoint != null) {
+					mEndpoint.expire();
+				}
 
-		Message request = Message.decode(dataCopy);
+				Iterator<SelectionKey> selectedKeys = mSelector.selectedKeys()
+						.iterator();
+				while (selectedKeys.hasNext()) {
+					// Get the current iterator and remove the item
+					SelectionKey key = selectedKeys.next();
+					selectedKeys.remove();
 
-		// Handle the head message
-		if (request.is(Message.HEAD_NAME)) {
-			// Set the data and update each client
-			mClients.put(socketChannel, request.data[0]);
-			broadcast();
-		} else if (request.is(Message.HEAD_DRAW)) {
-			// Attempt the draw
-			draw();
+					// Anything with an attachment is a scrape
+					if (key.attachment() != null) {
+						mEndpoint.handle(key);
+					} else if (key.isValid() && key.isAcceptable()) {
+						accept(key);
+					}
+				}
 
-			// If the loser has changed, do nothing
-			if (mLoser != null) {
-				broadcast();
+				mMetrics.getLoopTime().record(System.nanoTime() - woken);
+			} catch (Exception e) {
+				mMetrics.increment(Metrics.ERRORS);
+				e.printStackTrace();
 			}
 		}
-	}
-
-	// Removes the key's channel for the list and broadcasts an update
-	private void removeClient(SelectionKey key) throws IOException {
-		synchronized (mClients) {
-			// Remove the clients data
-			mClients.remove(key.channel());
-
-			// Close the channel, cancel the key and broadcast the change
-			key.channel().close();
-			key.cancel();
-
-			// Send a broadcast
-			broadcast();
-		}
 
 	}
 
-	/* Writes to the given channel */
-	private void write(SelectionKey key) throws UnsupportedEncodingException,
-			IOException {
-		// Grab the socket channel
-		SocketChannel socketChannel = (SocketChannel) key.channel();
-
-		// Create a buffer and write to the channel
-		Message msg = (Message) key.attachment();
-		ByteBuffer buffer = ByteBuffer.wrap(msg.encode());
-		socketChannel.write(buffer);
-
-		// Set the channel back to read mode
-		synchronized (mChanges) {
-			mChanges.add(new ChangeRequest(socketChannel,
-					ChangeRequest.CHANGEOPS, SelectionKey.OP_READ));
+	/* Shows the stats over JMX, one entry per server in the process */
+	private void registerStats() {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(
+					mStats,
+					new ObjectName("com.monisben.quick.drawstraw:type="
+							+ "ServerStats,port=" + getPort()));
+		} catch (JMException e) {
+			// The server runs fine without it
+			e.printStackTrace();
 		}
-
-		// Wakeup the selector
-		mSelector.wakeup();
 	}
 
-	/* Set the write key for all socket channels */
-	public void broadcast() throws ClosedChannelException {
-		synchronized (mClients) {
-			// Write an update message
-			final Collection<String> c = mClients.values();
-			String[] values = (String[]) (c
-					.toArray(new String[NUM_CLIENTS + 1]));
-
-			// Fill up the data array with each clients name
-			for (int i = 0; i < NUM_CLIENTS; i++) {
-				if (values[i] == null) {
-					values[i] = Message.EMPTY;
-				}
-			}
-
-			// Attach the loser of the straw draw
-			if (mLoser != null) {
-				values[NUM_CLIENTS] = mLoser;
-			} else {
-				values[NUM_CLIENTS] = Message.EMPTY;
-			}
-
-			// Create the message
-			final Message update = new Message(Message.SER_UPDATE, values);
-
-			// Send to each client
-			for (SocketChannel channel : mClients.keySet()) {
-				if (channel.isConnected()) {
-					// Attach the message to the channels key and then attach
-					// the write message
-					SelectionKey key = channel.keyFor(mSelector);
-					key.attach(update);
+	/* Accepts a connection and hands it to the next reactor in turn */
+	private void accept(SelectionKey key) throws IOException {
+		// For an accept to be pending, the channel must be a server socket
+		// channel
+		ServerSocketChannel serverSocketChannel = (ServerSocketChannel) key
+				.channel();
 
-					synchronized (mChanges) {
-						mChanges.add(new ChangeRequest(channel,
-								ChangeRequest.CHANGEOPS, SelectionKey.OP_WRITE));
-					}
-				}
-			}
-			// Finally, wake up the selector
-			mSelector.wakeup();
+		// Accept the connection and make it non-blocking
+		SocketChannel socketChannel = serverSocketChannel.accept();
+		if (socketChannel == null) {
+			return;
 		}
+		socketChannel.configureBlocking(false);
+		mConfig.configure(socketChannel);
+		mMetrics.increment(Metrics.ACCEPTS);
+
+		// Turn away whatever is over the limits before a reactor sees it
+		Connection connection = new Connection(socketChannel,
+				mConfig.highWater);
+		connection.acceptedAt = System.nanoTime();
+		if (!mAdmission.accept(connection, connection.acceptedAt)) {
+			mMetrics.increment(Metrics.REJECTS);
+			return;
+		}
+
+		// The room is picked once the client speaks, the reactor moves it to
+		// the room's owner then
+		Reactor reactor = mReactors[mNextReactor];
+		mNextReactor = (mNextReactor + 1) % mReactors.length;
+		reactor.adopt(connection);
 	}
 }
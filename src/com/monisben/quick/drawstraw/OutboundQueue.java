@@ -0,0 +1,107 @@
+package com.monisben.quick.drawstraw;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Bytes waiting to go out on one channel. Buffers are written in order with
+ * gathering writes until the channel would block, and the queue refuses new
+ * buffers once more than the high-water mark is pending so a slow reader can
+ * be dropped instead of growing without bound.
+ *
+ * Not thread-safe, only the selector thread owning the channel may use it.
+ *
+ * @author Benjamin
+ *
+ */
+public class OutboundQueue {
+
+	// Bytes allowed to back up on a connection before it is dropped
+	public static final int DEFAULT_HIGH_WATER = 256 * 1024;
+
+	// Most buffers handed to a single gathering write
+	private static final int MAX_GATHER = 16;
+
+	private final ArrayDeque<ByteBuffer> mBuffers;
+	private final int mHighWater;
+
+	// Bytes queued but not yet written
+	private long mPending;
+
+	// Reused array for gathering writes
+	private final ByteBuffer[] mGather;
+
+	public OutboundQueue(int highWater) {
+		mBuffers = new ArrayDeque<ByteBuffer>();
+		mHighWater = highWater;
+		mGather = new ByteBuffer[MAX_GATHER];
+	}
+
+	public boolean isEmpty() {
+		return mBuffers.isEmpty();
+	}
+
+	public long pendingBytes() {
+		return mPending;
+	}
+
+	/*
+	 * Queues a buffer from its position to its limit. Returns false, and
+	 * queues nothing, if it would take the queue past the high-water mark.
+	 */
+	public boolean add(ByteBuffer buffer) {
+		int size = buffer.remaining();
+		if (mPending + size > mHighWater) {
+			return false;
+		}
+
+		mBuffers.addLast(buffer);
+		mPending += size;
+		return true;
+	}
+
+	/*
+	 * Writes as much as the channel will take. Returns true once everything
+	 * queued has been written.
+	 */
+	public boolean flush(GatheringByteChannel channel) throws IOException {
+		while (!mBuffers.isEmpty()) {
+			// Gather the head of the queue into one write
+			int count = 0;
+			long attempted = 0;
+			Iterator<ByteBuffer> buffers = mBuffers.iterator();
+			while (count < MAX_GATHER && buffers.hasNext()) {
+				ByteBuffer buffer = buffers.next();
+				mGather[count++] = buffer;
+				attempted += buffer.remaining();
+			}
+
+			long written = channel.write(mGather, 0, count);
+			mPending -= written;
+
+			// Drop the buffers that went out completely
+			while (!mBuffers.isEmpty()
+					&& !mBuffers.peekFirst().hasRemaining()) {
+				mBuffers.removeFirst();
+			}
+			for (int i = 0; i < count; i++) {
+				mGather[i] = null;
+			}
+
+			// The socket buffer is full, wait to be told it has room
+			if (written < attempted) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/* Drops everything queued */
+	public void clear() {
+		mBuffers.clear();
+		mPending = 0;
+	}
+}
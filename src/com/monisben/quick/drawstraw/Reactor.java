@@ -0,0 +1,1238 @@
+package com.monisben.quick.drawstraw;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.spi.SelectorProvider;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One selector thread of the server. Reads, writes, draws and broadcasts for
+ * the connections registered with it. Every room lives on exactly one
+ * reactor, so a connection asking for a room owned elsewhere is handed over
+ * to that reactor and no room is ever touched by two threads.
+ *
+ * Changed rooms are only marked dirty while handling keys and broadcast
+ * once at the end of the selector iteration, so a burst of changes to a
+ * room costs a single fan-out.
+ *
+ * Framed clients silent for longer than the idle timeout are dropped, so a
+ * half-open connection cannot hold its seat for ever. Each connection has
+ * one timeout on the reactor's timer wheel which is left alone on reads; when
+ * it falls due it checks the time of the last read and either drops the
+ * client or schedules itself for the rest of the timeout.
+ *
+ * When accepts are sharded each reactor also listens on its own socket,
+ * sharing the port with the others through SO_REUSEPORT, and the kernel
+ * spreads new connections between them.
+ *
+ * With snapshots on every room changed is journalled as it is broadcast, and
+ * all the reactor's rooms are saved every snapshot interval. Rooms put back
+ * after a restart keep their members' seats for the resume grace period.
+ *
+ * In a cluster a client asking for a room another node owns is redirected
+ * there, and when the ring changes the members of every room that moved are
+ * redirected too.
+ *
+ * Messages are taken from the client's rate limits before anything else is
+ * done with them, and dropped when over, see AdmissionControl.
+ *
+ * @author Benjamin
+ *
+ */
+public class Reactor implements Runnable, ChangeQueue.RegistrationListener {
+
+	// The server, used to find which reactor owns a room
+	private final NonBlockingServer mServer;
+
+	// Selector for this reactor's connections
+	private final Selector mSelector;
+
+	// Every room this reactor owns, keyed by its id
+	private final Map<String, Room> mRooms;
+
+	// Registrations handed over from the acceptor and other reactors
+	private final ChangeQueue mChanges;
+
+	// Cooldowns and other timeouts, run between selects
+	private final TimerWheel mTimer;
+
+	// The names of everyone in this reactor's rooms, shared by the rooms
+	private final NameTable mNames = new NameTable();
+
+	// Every read lands here first, only partial frames are copied out
+	public static final int READ_BUFFER_SIZE = 64 * 1024;
+	private final ByteBuffer mReadBuffer;
+
+	// The buffer currently being handled, read mode
+	private ByteBuffer mReading;
+
+	// Buffers lent to connections holding a partial frame
+	private final BufferPool mPool;
+
+	// Reused view of the frame being handled
+	private final Frame mFrame = new Frame();
+
+	// Connections that fell too far behind, closed once it is safe
+	private final List<Connection> mSlowConsumers = new ArrayList<Connection>();
+
+	// Rooms changed since the last flush, and when the first one changed
+	private final List<Room> mDirtyRooms = new ArrayList<Room>();
+	private long mDirtySince;
+
+	// Longest a change may wait for the end of the iteration to be sent
+	public static final long DEFAULT_FLUSH_BUDGET = 500;
+	private final long mFlushBudget;
+
+	// Written only by this reactor's thread
+	private final Metrics mMetrics = new Metrics();
+
+	// Room sizes, cooldown and socket options
+	private final ServerConfig mConfig;
+
+	// Handed every change made to this reactor's rooms, null for none
+	private final DrawHistoryLog mHistory;
+
+	// Saves this reactor's rooms as its shard, null for none, the sequence
+	// of the last room journalled, and the timeout taking the next snapshot
+	private final RoomSnapshotter mSnapshotter;
+	private final int mShard;
+	private long mJournalSequence;
+	private final TimerWheel.Timeout mSnapshotTimer;
+
+	// Frees the seats of restored members who never came back
+	private final TimerWheel.Timeout mGraceTimer;
+
+	// Makes resume tokens, which must not be guessable
+	private final SecureRandom mTokens = new SecureRandom();
+
+	// The cluster's ring as of this iteration, null when running alone
+	private ConsistentHashRing mRing;
+
+	// How long a framed client may stay silent, in milliseconds, and when
+	// the current iteration woke up in TimerWheel.now() time
+	public static final long DEFAULT_IDLE_TIMEOUT = 60000;
+	private final long mIdleTimeout;
+	private long mNow;
+
+	// The same in System.nanoTime() time, which the rate limits run on
+	private long mNowNanos;
+
+	// Connection caps and rate limits, null for none
+	private final AdmissionControl mAdmission;
+
+	// Checks on a connection once its idle timeout falls due
+	static final TimerWheel.Task IDLE_TASK = new TimerWheel.Task() {
+
+		@Override
+		public void run(TimerWheel.Timeout timeout) throws IOException {
+			Connection connection = (Connection) timeout.attachment;
+			connection.reactor.checkIdle(connection);
+		}
+	};
+
+	// Most connections accepted per wakeup, so a flood of them cannot
+	// starve the clients already here
+	private static final int MAX_ACCEPTS = 64;
+
+	public Reactor(NonBlockingServer server) throws IOException {
+		this(server, new ServerConfig());
+	}
+
+	/* The flush budget is in microseconds, 0 sends every change at once */
+	public Reactor(NonBlockingServer server, long flushBudgetMicros)
+			throws IOException {
+		this(server, flushBudget(flushBudgetMicros));
+	}
+
+	public Reactor(NonBlockingServer server, ServerConfig config)
+			throws IOException {
+		this(server, config, 0);
+	}
+
+	/* The shard is the reactor's index, naming the files its rooms go in */
+	public Reactor(NonBlockingServer server, ServerConfig config, int shard)
+			throws IOException {
+		mServer = server;
+		mConfig = config;
+		mHistory = server != null ? server.getHistory() : null;
+		mSnapshotter = server != null ? server.getSnapshotter() : null;
+		mShard = shard;
+		mRing = server != null ? server.getRing() : null;
+		mAdmission = server != null ? server.getAdmission() : null;
+		mNowNanos = System.nanoTime();
+		mFlushBudget = Math.max(0, config.flushBudget) * 1000L;
+		mIdleTimeout = Math.max(0, config.idleTimeout);
+		mRooms = new HashMap<String, Room>();
+		mSelector = SelectorProvider.provider().openSelector();
+		mChanges = new ChangeQueue(mSelector, this);
+		mTimer = new TimerWheel();
+		mReadBuffer = ByteBuffer.allocateDirect(config.readBuffer);
+		mPool = new BufferPool(config.poolBuffer, config.poolMax);
+
+		mSnapshotTimer = new TimerWheel.Timeout(new TimerWheel.Task() {
+
+			@Override
+			public void run(TimerWheel.Timeout timeout) throws IOException {
+				snapshot();
+			}
+		});
+		mGraceTimer = new TimerWheel.Timeout(new TimerWheel.Task() {
+
+			@Override
+			public void run(TimerWheel.Timeout timeout) throws IOException {
+				releaseReserved();
+			}
+		});
+		if (mSnapshotter != null && config.snapshotInterval > 0) {
+			mTimer.schedule(mSnapshotTimer, config.snapshotInterval);
+		}
+	}
+
+	private static ServerConfig flushBudget(long flushBudgetMicros) {
+		ServerConfig config = new ServerConfig();
+		config.flushBudget = flushBudgetMicros;
+		return config;
+	}
+
+	@Override
+	public void run() {
+		// Loop forever
+		while (true) {
+			try {
+
+				// Pick up connections handed to us, and any change of nodes
+				mChanges.drain();
+				if (mServer != null && mServer.getRing() != mRing) {
+					rebalance();
+				}
+				flush();
+
+				// Wait no longer than the next timer tick
+				mSelector.select(mTimer.timeUntilNextTick());
+				long woken = System.nanoTime();
+				mNow = woken / 1000000L;
+				mNowNanos = woken;
+				mMetrics.increment(Metrics.WAKEUPS);
+				mTimer.expire();
+
+				Iterator<SelectionKey> selectedKeys = mSelector.selectedKeys()
+						.iterator();
+				while (selectedKeys.hasNext()) {
+					// Get the current iterator and remove the item
+					SelectionKey key = selectedKeys.next();
+					selectedKeys.remove();
+
+					// Make sure key is valid
+					if (!key.isValid()) {
+						continue;
+					}
+
+					// Check the key's event
+					if (key.isAcceptable()) {
+						accept(key);
+						continue;
+					}
+					if (key.isReadable()) {
+						read(key);
+					}
+					if (key.isValid() && key.isWritable()) {
+						write(key);
+					}
+
+					// Don't hold changes back for a long iteration
+					if (!mDirtyRooms.isEmpty()
+							&& System.nanoTime() - mDirtySince >= mFlushBudget) {
+						flush();
+					}
+				}
+
+				// One fan-out per changed room for the whole iteration
+				flush();
+
+				// Drop anyone who could not keep up
+				closeSlowConsumers();
+
+				mMetrics.getLoopTime().record(System.nanoTime() - woken);
+			} catch (Exception e) {
+				mMetrics.increment(Metrics.ERRORS);
+				e.printStackTrace();
+			}
+		}
+	}
+
+	public Metrics getMetrics() {
+		return mMetrics;
+	}
+
+	/* Changes handed to this reactor but not yet picked up */
+	public int pendingChanges() {
+		return mChanges.size();
+	}
+
+	/*
+	 * Accepts connections on the channel from this reactor's own selector.
+	 * Call before the reactor runs.
+	 */
+	public void listen(ServerSocketChannel channel) throws IOException {
+		channel.configureBlocking(false);
+		channel.register(mSelector, SelectionKey.OP_ACCEPT);
+	}
+
+	/* Takes connections straight off our own listening socket */
+	private void accept(SelectionKey key) throws IOException {
+		ServerSocketChannel serverSocketChannel = (ServerSocketChannel) key
+				.channel();
+
+		for (int i = 0; i < MAX_ACCEPTS; i++) {
+			SocketChannel socketChannel = serverSocketChannel.accept();
+			if (socketChannel == null) {
+				return;
+			}
+			socketChannel.configureBlocking(false);
+			mConfig.configure(socketChannel);
+			mMetrics.increment(Metrics.ACCEPTS);
+
+			Connection connection = new Connection(socketChannel,
+					mConfig.highWater);
+			if (mAdmission != null
+					&& !mAdmission.accept(connection, mNowNanos)) {
+				mMetrics.increment(Metrics.REJECTS);
+				continue;
+			}
+
+			// Already on the right thread, register without the queue
+			connection.change.type = ChangeRequest.CHANGEOPS;
+			socketChannel.register(mSelector, SelectionKey.OP_READ,
+					connection);
+			watch(connection);
+		}
+	}
+
+	/* Starts the connection's idle timeout on this reactor */
+	private void watch(Connection connection) {
+		connection.reactor = this;
+		connection.lastRead = TimerWheel.now();
+		if (mIdleTimeout > 0) {
+			mTimer.schedule(connection.idle, mIdleTimeout);
+		}
+	}
+
+	/* Drops the connection if it has been silent for the idle timeout */
+	private void checkIdle(Connection connection) throws IOException {
+		SelectionKey key = connection.channel.keyFor(mSelector);
+		if (key == null || !key.isValid()) {
+			return;
+		}
+
+		// Old text clients have no way to ping, leave them be
+		if (connection.version == Message.VERSION_LEGACY) {
+			return;
+		}
+
+		long silent = TimerWheel.now() - connection.lastRead;
+		if (silent >= mIdleTimeout) {
+			mMetrics.increment(Metrics.IDLE_CLOSED);
+			removeClient(key);
+		} else {
+			// Heard from since, check again when it could next be due
+			mTimer.schedule(connection.idle, mIdleTimeout - silent);
+		}
+	}
+
+	/* Hands a connection to this reactor, callable from any thread */
+	public void adopt(Connection connection) {
+		ChangeRequest change = connection.change;
+		change.type = ChangeRequest.REGISTER;
+		change.ops = connection.outbound.isEmpty() ? SelectionKey.OP_READ
+				: SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+		mChanges.offer(change);
+	}
+
+	/* Finishes a hand over once the channel is registered with us */
+	@Override
+	public void onRegistered(SelectionKey key) throws IOException {
+		Connection connection = (Connection) key.attachment();
+		watch(connection);
+		if (connection.acceptedAt != 0) {
+			mMetrics.getRegisterTime().record(
+					System.nanoTime() - connection.acceptedAt);
+			connection.acceptedAt = 0;
+		}
+
+		// Fresh from the acceptor, nothing more to do
+		String roomId = connection.pendingRoom;
+		if (roomId == null) {
+			return;
+		}
+
+		Message pending = connection.pendingMessage;
+		connection.pendingRoom = null;
+		connection.pendingMessage = null;
+
+		// The name comes over as bytes, our table has its own ids
+		if (connection.pendingName != null) {
+			connection.nameId = mNames.intern(connection.pendingName);
+			connection.pendingName = null;
+		}
+
+		// A resume finds its own seat
+		boolean resuming = pending != null
+				&& pending.is(Message.HEAD_RESUME);
+		if (!resuming && !join(key, roomId, connection.pendingCapacity)) {
+			// Room is full, turn the client away
+			mMetrics.increment(Metrics.REJECTS);
+			removeClient(key);
+			return;
+		}
+
+		// Act on whatever needed the room
+		if (pending != null) {
+			mFrame.wrap(pending);
+			handle(key, mFrame);
+		} else {
+			markDirty(connection.room);
+		}
+
+		// Carry on with anything the client sent behind it
+		ByteBuffer inbound = connection.inbound;
+		if (inbound == null || !key.isValid()) {
+			return;
+		}
+		mReading = inbound;
+		try {
+			process(key, connection, inbound);
+			if (key.isValid()) {
+				keep(connection, inbound);
+			}
+		} catch (ProtocolException e) {
+			removeClient(key);
+		} finally {
+			mReading = null;
+		}
+	}
+
+	/*
+	 * Gives back what a connection held when its channel closed while it
+	 * was on its way to us, as removeClient() never sees it.
+	 */
+	@Override
+	public void onDropped(ChangeRequest change) {
+		Connection connection = (Connection) change.attachment;
+		if (mAdmission != null) {
+			mAdmission.release(connection);
+		}
+		if (connection.inbound != null) {
+			mPool.release(connection.inbound);
+			connection.inbound = null;
+		}
+		connection.pendingRoom = null;
+		connection.pendingMessage = null;
+		connection.pendingName = null;
+	}
+
+	/*
+	 * Puts the connection in the room. If another reactor owns the room the
+	 * connection, and the message that needed the room, are handed to it.
+	 * Returns true only if the room is ours and the connection is now in it.
+	 */
+	private boolean moveTo(SelectionKey key, String roomId, int capacity,
+			Frame pending) throws IOException {
+		if (redirect(key, roomId)) {
+			return false;
+		}
+
+		Reactor owner = mServer.reactorFor(roomId);
+		if (owner != this) {
+			handOff(key, owner, roomId, capacity, pending);
+			return false;
+		}
+
+		if (!join(key, roomId, capacity)) {
+			// Room is full, turn the client away
+			mMetrics.increment(Metrics.REJECTS);
+			removeClient(key);
+			return false;
+		}
+		return true;
+	}
+
+	/*
+	 * Passes the connection to the reactor owning the room, along with the
+	 * message that needed the room and whatever is still unread.
+	 */
+	private void handOff(SelectionKey key, Reactor owner, String roomId,
+			int capacity, Frame pending) throws IOException {
+		Connection connection = (Connection) key.attachment();
+
+		// Leave here, stop selecting the channel and pass it on
+		leave(connection);
+		mTimer.cancel(connection.idle);
+		key.cancel();
+
+		// Take what is still unread with it, in read mode
+		ByteBuffer rest = mReading;
+		if (rest == mReadBuffer) {
+			connection.inbound = rest.hasRemaining() ? copy(rest) : null;
+		}
+
+		// Names are only good in our table, so take the bytes along
+		if (connection.isNamed()) {
+			connection.pendingName = mNames.bytes(connection.nameId);
+			mNames.release(connection.nameId);
+			connection.nameId = NameTable.EMPTY;
+		}
+
+		connection.pendingRoom = roomId;
+		connection.pendingCapacity = capacity;
+		connection.pendingMessage = pending != null ? pending.toMessage()
+				: null;
+		owner.adopt(connection);
+	}
+
+	/*
+	 * Puts the connection back in the seat held under the token, closing
+	 * whatever connection held it before. If the seat has gone the room is
+	 * joined afresh, and the client learns so from its new token.
+	 */
+	private void resume(SelectionKey key, String roomId, String token)
+			throws IOException {
+		Connection connection = (Connection) key.attachment();
+		Room room = mRooms.get(roomId);
+		Connection held = room != null ? room.find(token) : null;
+
+		if (held == connection) {
+			connection.needsSnapshot = true;
+			markDirty(room);
+			return;
+		}
+		if (held == null) {
+			if (moveTo(key, roomId, mConfig.roomCapacity, null)) {
+				markDirty(connection.room);
+			}
+			return;
+		}
+
+		// Anywhere else first, which may move the seat along
+		leave(connection);
+		room.replace(held, connection);
+		if (!held.isReserved()) {
+			// The old connection has not noticed it is gone yet
+			SelectionKey old = held.channel.keyFor(mSelector);
+			if (old != null) {
+				removeClient(old);
+			}
+		}
+		connection.needsSnapshot = true;
+		markDirty(room);
+	}
+
+	/*
+	 * Sends the client to the cluster node owning the room, unless that is
+	 * us, and closes it once told. Old text clients cannot follow and are
+	 * just closed. Returns true if the client was sent away.
+	 */
+	private boolean redirect(SelectionKey key, String roomId)
+			throws IOException {
+		ConsistentHashRing ring = mRing;
+		if (ring == null || ring.isLocal(roomId)) {
+			return false;
+		}
+
+		Connection connection = (Connection) key.attachment();
+		leave(connection);
+		mMetrics.increment(Metrics.REDIRECTS);
+		if (connection.version == Message.VERSION_LEGACY) {
+			removeClient(key);
+			return true;
+		}
+
+		InetSocketAddress owner = ring.address(ring.nodeFor(roomId));
+		queue(connection, encode(new Message(Message.SER_REDIRECT,
+				new String[] { roomId, owner.getHostString(),
+						Integer.toString(owner.getPort()) })));
+		connection.closing = true;
+
+		// Stop reading, only the redirect is left to write
+		if (key.isValid()) {
+			key.interestOps(SelectionKey.OP_WRITE);
+		}
+		return true;
+	}
+
+	/*
+	 * Takes up the server's new ring, redirecting the members of every room
+	 * now placed on another node. Seats held for restored clients are let
+	 * go, as their room starts afresh on its new node.
+	 */
+	private void rebalance() throws IOException {
+		mRing = mServer.getRing();
+		if (mRing == null) {
+			return;
+		}
+
+		List<Room> rooms = new ArrayList<Room>(mRooms.values());
+		for (Room room : rooms) {
+			if (mRing.isLocal(room.getId())) {
+				continue;
+			}
+
+			// From the back, as leaving moves the last member forward
+			for (int i = room.size() - 1; i >= 0; i--) {
+				Connection member = room.member(i);
+				SelectionKey key = member.isReserved() ? null : member.channel
+						.keyFor(mSelector);
+				if (key != null && key.isValid()) {
+					redirect(key, room.getId());
+				} else {
+					leave(member);
+					mNames.release(member.nameId);
+					member.nameId = NameTable.EMPTY;
+				}
+			}
+		}
+	}
+
+	/* Moves the connection into one of our rooms, creating it if needed */
+	private boolean join(SelectionKey key, String roomId, int capacity)
+			throws IOException {
+		Connection connection = (Connection) key.attachment();
+
+		// Already there, nothing to do
+		Room current = connection.room;
+		if (current != null && current.getId().equals(roomId)) {
+			return true;
+		}
+
+		Room room = mRooms.get(roomId);
+		if (room == null) {
+			room = newRoom(roomId, capacity);
+		} else if (room.isFull()) {
+			return false;
+		}
+
+		// Leave the old room first
+		if (current != null) {
+			leave(connection);
+		}
+
+		room.add(connection);
+		connection.token = newToken();
+		connection.needsSnapshot = true;
+		return true;
+	}
+
+	private Room newRoom(String roomId, int capacity) {
+		Room room = new Room(roomId, capacity, mConfig.roomCooldown, mTimer,
+				mNames);
+		room.setHistory(mHistory);
+		mRooms.put(roomId, room);
+		return room;
+	}
+
+	/* A fresh resume token, 128 random bits */
+	private String newToken() {
+		return Long.toHexString(mTokens.nextLong())
+				+ Long.toHexString(mTokens.nextLong());
+	}
+
+	/* Takes the connection out of its room and tells the others */
+	private void leave(Connection connection)
+			throws UnsupportedEncodingException {
+		Room room = connection.room;
+		if (room == null) {
+			return;
+		}
+
+		room.remove(connection);
+		if (room.isEmpty()) {
+			mRooms.remove(room.getId());
+			room.close();
+			// Saved with no seats, so it stays gone
+			journal(room);
+		} else {
+			markDirty(room);
+		}
+	}
+
+	/*
+	 * Reads whatever is waiting on the channel and handles every complete
+	 * message. Reads go into the reactor's buffer unless the connection is
+	 * holding a partial frame, in which case they go after it in the
+	 * connection's own buffer until the frame is complete.
+	 */
+	private void read(SelectionKey key) throws IOException {
+		SocketChannel socketChannel = (SocketChannel) key.channel();
+		Connection connection = (Connection) key.attachment();
+
+		// Keep reading while the reads fill the buffer
+		int numRead;
+		do {
+			ByteBuffer buffer = connection.inbound;
+			if (buffer == null) {
+				buffer = mReadBuffer;
+				buffer.clear();
+			}
+			int space = buffer.remaining();
+
+			// Attempt to read off channel
+			try {
+				numRead = socketChannel.read(buffer);
+			} catch (IOException e) {
+				// The remote forcibly closed connection, cancel the selection
+				// key and close the channel
+				removeClient(key);
+				return;
+			}
+
+			if (numRead == -1) {
+				// Remote entity shut down cleanly. Do the same on our end and
+				// cancel channel
+				removeClient(key);
+				return;
+			}
+			mMetrics.add(Metrics.BYTES_IN, numRead);
+			connection.lastRead = mNow;
+
+			buffer.flip();
+			mReading = buffer;
+			try {
+				process(key, connection, buffer);
+
+				// Closed, or handed to another reactor with the rest
+				if (!key.isValid()) {
+					return;
+				}
+				keep(connection, buffer);
+			} catch (ProtocolException e) {
+				removeClient(key);
+				return;
+			} finally {
+				mReading = null;
+			}
+
+			if (numRead < space) {
+				break;
+			}
+		} while (numRead > 0);
+	}
+
+	/*
+	 * Holds on to a partial frame left in the buffer after handling a read,
+	 * and gives the connection's buffer back once it is no longer needed.
+	 */
+	private void keep(Connection connection, ByteBuffer buffer)
+			throws ProtocolException {
+		if (buffer == mReadBuffer) {
+			if (!buffer.hasRemaining()) {
+				return;
+			}
+			buffer = copy(buffer);
+		} else if (!buffer.hasRemaining()) {
+			mPool.release(buffer);
+			connection.inbound = null;
+			return;
+		}
+
+		// Grows the buffer if the frame will not fit in it
+		ByteBuffer kept = Message.compact(buffer);
+		if (kept != buffer) {
+			mPool.release(buffer);
+		}
+		connection.inbound = kept;
+	}
+
+	/* Copies what is left of the buffer into one the connection can keep */
+	private ByteBuffer copy(ByteBuffer buffer) {
+		ByteBuffer own = buffer.remaining() <= mPool.getBufferSize() ? mPool
+				.acquire() : ByteBuffer.allocate(buffer.remaining());
+		own.put(buffer);
+		own.flip();
+		return own;
+	}
+
+	/* Handles every complete message in the buffer */
+	private void process(SelectionKey key, Connection connection,
+			ByteBuffer inbound) throws IOException {
+		// The first byte tells binary clients from the old text ones
+		if (connection.version == Connection.UNKNOWN) {
+			if (!inbound.hasRemaining()) {
+				return;
+			} else if (inbound.get(inbound.position()) != Message.MAGIC) {
+				connection.version = Message.VERSION_LEGACY;
+			} else if (inbound.remaining() >= Message.PREAMBLE_SIZE) {
+				inbound.get();
+				int version = inbound.get() & 0xFF;
+				connection.version = Math.max(Message.VERSION_1,
+						Math.min(version, Message.PROTOCOL_VERSION));
+
+				// Answer with the version we settled on
+				queue(connection, Message.preamble(connection.version));
+			} else {
+				// Not enough to tell yet
+				return;
+			}
+		}
+
+		if (connection.version == Message.VERSION_LEGACY) {
+			// Old clients send one unframed message per write
+			if (inbound.hasRemaining()) {
+				byte[] dataCopy = new byte[inbound.remaining()];
+				inbound.get(dataCopy);
+				mFrame.wrap(Message.decode(dataCopy));
+				handle(key, mFrame);
+			}
+			return;
+		}
+
+		// Handle every complete frame
+		while (key.isValid() && mFrame.wrap(inbound)) {
+			handle(key, mFrame);
+		}
+	}
+
+	/* Acts on a single message from a client */
+	private void handle(SelectionKey key, Frame request) throws IOException {
+		Connection connection = (Connection) key.attachment();
+		mMetrics.increment(Metrics.FRAMES);
+
+		// Sent elsewhere, anything else it said is for the other node
+		if (connection.closing) {
+			return;
+		}
+
+		// Timed until everything it is sent from here on is written
+		if (connection.requestedAt == 0) {
+			connection.requestedAt = mNowNanos;
+		}
+
+		// Answer pings straight away, whatever room the client is in
+		if (request.is(Message.HEAD_PING)
+				&& connection.version != Message.VERSION_LEGACY) {
+			String[] fields = new String[request.fieldCount()];
+			for (int i = 0; i < fields.length; i++) {
+				fields[i] = request.string(i);
+			}
+			queue(connection, encode(new Message(Message.SER_PONG, fields)));
+			return;
+		}
+
+		// Drop whatever comes faster than the client may send
+		if (mAdmission != null && !mAdmission.allow(connection, mNowNanos)) {
+			throttle(key, request);
+			return;
+		}
+		connection.throttled = false;
+
+		// Take back a seat held from an earlier connection
+		if (request.is(Message.HEAD_RESUME)) {
+			if (request.fieldCount() < 2) {
+				removeClient(key);
+				return;
+			}
+
+			String roomId = request.string(0);
+			if (redirect(key, roomId)) {
+				return;
+			}
+			Reactor owner = mServer.reactorFor(roomId);
+			if (owner != this) {
+				handOff(key, owner, roomId, mConfig.roomCapacity, request);
+			} else {
+				resume(key, roomId, request.string(1));
+				result(key, request, Message.RESULT_OK, roomId);
+			}
+			return;
+		}
+
+		// Handle a room change
+		if (request.is(Message.HEAD_JOIN)) {
+			if (request.fieldCount() == 0) {
+				removeClient(key);
+				return;
+			}
+
+			// Already there, just send the state again
+			Room current = connection.room;
+			if (current != null && request.fieldEquals(0, current.getId())) {
+				connection.needsSnapshot = true;
+				markDirty(current);
+				result(key, request, Message.RESULT_OK, current.getId());
+				return;
+			}
+
+			// Handed off with the join, so the owner sends its result
+			int capacity = mConfig.roomCapacity;
+			if (request.fieldCount() > 1) {
+				capacity = parseCapacity(request);
+			}
+			if (moveTo(key, request.string(0), capacity, request)) {
+				markDirty(connection.room);
+				result(key, request, Message.RESULT_OK, connection.room
+						.getId());
+			}
+			return;
+		}
+
+		// Clients that never asked for a room draw in the default one
+		if (connection.room == null
+				&& !moveTo(key, Room.DEFAULT_ID, mConfig.roomCapacity,
+						request)) {
+			return;
+		}
+		Room room = connection.room;
+
+		// Handle the head message
+		if (request.is(Message.HEAD_NAME) && request.fieldCount() > 0) {
+			// Set the data and update each client
+			if (!mNames.equals(connection.nameId, request, 0)) {
+				room.rename(connection, mNames.intern(request, 0));
+			}
+			markDirty(room);
+			result(key, request, Message.RESULT_OK, room.name(connection));
+		} else if (request.is(Message.HEAD_DRAW)) {
+			// Attempt the draw
+			if (room.draw()) {
+				mMetrics.increment(Metrics.DRAWS);
+				result(key, request, Message.RESULT_OK, room.getLoser());
+			} else {
+				result(key, request, Message.RESULT_REFUSED, Message.EMPTY);
+			}
+
+			// Only send once there is a loser to show
+			if (room.getLoser() != null) {
+				markDirty(room);
+			}
+		} else if (request.is(Message.HEAD_RESYNC)) {
+			// The client lost track of the room, start it again
+			connection.needsSnapshot = true;
+			markDirty(room);
+			result(key, request, Message.RESULT_OK, room.getId());
+		} else {
+			// Nothing we know how to do
+			result(key, request, Message.RESULT_REFUSED, Message.EMPTY);
+		}
+	}
+
+	/*
+	 * Sends the result of a request that carried a correlation id. Requests
+	 * without one, and clients older than version 3, are not answered.
+	 */
+	private void result(SelectionKey key, Frame request, String status,
+			String value) {
+		Connection connection = (Connection) key.attachment();
+		if (request.correlation == 0
+				|| connection.version < Message.VERSION_3 || !key.isValid()) {
+			return;
+		}
+		queue(connection, encode(new Message(Message.SER_RESULT,
+				new String[] { Integer.toString(request.correlation), status,
+						value })));
+	}
+
+	/*
+	 * Counts a dropped message. A request waiting on its result is always
+	 * told, anything else from a framed client only the first time.
+	 */
+	private void throttle(SelectionKey key, Frame request) {
+		Connection connection = (Connection) key.attachment();
+		mMetrics.increment(Metrics.THROTTLED);
+		if (request.correlation != 0
+				&& connection.version >= Message.VERSION_3) {
+			result(key, request, AdmissionControl.RATE, Long
+					.toString(mAdmission.retryAfter(connection, mNowNanos)));
+		} else if (!connection.throttled
+				&& connection.version != Message.VERSION_LEGACY) {
+			queue(connection, encode(AdmissionControl.reject(
+					AdmissionControl.RATE,
+					mAdmission.retryAfter(connection, mNowNanos))));
+		}
+		connection.throttled = true;
+	}
+
+	/* Reads a requested room size, falling back to the default */
+	private int parseCapacity(Frame request) {
+		int capacity = request.intValue(1, mConfig.roomCapacity);
+		if (capacity > 0 && capacity <= mConfig.roomMax) {
+			return capacity;
+		}
+		return mConfig.roomCapacity;
+	}
+
+	// Removes the key's channel from its room and broadcasts an update
+	private void removeClient(SelectionKey key) throws IOException {
+		// Leave the room, telling the remaining members
+		Connection connection = (Connection) key.attachment();
+		leave(connection);
+		mTimer.cancel(connection.idle);
+		mNames.release(connection.nameId);
+		connection.nameId = NameTable.EMPTY;
+		if (mAdmission != null) {
+			mAdmission.release(connection);
+		}
+
+		// Give back any buffer it was holding
+		if (connection.inbound != null && connection.inbound != mReading) {
+			mPool.release(connection.inbound);
+		}
+		connection.inbound = null;
+
+		// Close the channel and cancel the key
+		key.channel().close();
+		key.cancel();
+	}
+
+	/* Writes as much of the connection's queue as the channel takes */
+	private void write(SelectionKey key) throws IOException {
+		Connection connection = (Connection) key.attachment();
+
+		boolean drained;
+		long pending = connection.outbound.pendingBytes();
+		try {
+			drained = connection.outbound.flush(connection.channel);
+		} catch (IOException e) {
+			// The remote went away mid write
+			removeClient(key);
+			return;
+		}
+		mMetrics.add(Metrics.BYTES_OUT,
+				pending - connection.outbound.pendingBytes());
+
+		if (drained) {
+			if (connection.requestedAt != 0) {
+				mMetrics.getResponseTime().record(
+						System.nanoTime() - connection.requestedAt);
+				connection.requestedAt = 0;
+			}
+
+			// Told where to go, so done with it
+			if (connection.closing) {
+				removeClient(key);
+				return;
+			}
+
+			// Nothing left, go back to only reading
+			key.interestOps(SelectionKey.OP_READ);
+		}
+	}
+
+	/* Makes the reactor look at the server's ring again without waiting */
+	void wakeup() {
+		mSelector.wakeup();
+	}
+
+	/* Encodes a message as a frame in a buffer of its own */
+	private static ByteBuffer encode(Message message) {
+		ByteBuffer buffer = ByteBuffer.allocate(message.frameSize());
+		message.encode(buffer);
+		buffer.flip();
+		return buffer;
+	}
+
+	/*
+	 * Queues bytes for the connection, asking for write readiness if the
+	 * queue was empty. A connection over its high-water mark is closed.
+	 */
+	private void queue(Connection connection, ByteBuffer buffer) {
+		boolean idle = connection.outbound.isEmpty();
+		if (!connection.outbound.add(buffer)) {
+			// Too far behind, drop it once we are done with the room
+			connection.outbound.clear();
+			mSlowConsumers.add(connection);
+			return;
+		}
+
+		// We are on the selector thread so the key can be changed directly
+		if (idle) {
+			SelectionKey key = connection.channel.keyFor(mSelector);
+			if (key != null && key.isValid()) {
+				key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			}
+		}
+	}
+
+	/* Closes the connections which fell past their high-water mark */
+	private void closeSlowConsumers() throws IOException {
+		while (!mSlowConsumers.isEmpty()) {
+			Connection connection = mSlowConsumers
+					.remove(mSlowConsumers.size() - 1);
+			SelectionKey key = connection.channel.keyFor(mSelector);
+			if (key != null && key.isValid()) {
+				mMetrics.increment(Metrics.SLOW_CONSUMERS);
+				removeClient(key);
+			}
+		}
+	}
+
+	/* Has the room's state sent at the next flush */
+	private void markDirty(Room room) {
+		if (room.isDirty()) {
+			return;
+		}
+		if (mDirtyRooms.isEmpty()) {
+			mDirtySince = System.nanoTime();
+		}
+		room.setDirty(true);
+		mDirtyRooms.add(room);
+	}
+
+	/* Broadcasts and journals every room changed since the last flush */
+	private void flush() throws UnsupportedEncodingException {
+		for (int i = 0; i < mDirtyRooms.size(); i++) {
+			Room room = mDirtyRooms.get(i);
+			room.setDirty(false);
+			broadcast(room);
+			journal(room);
+		}
+		mDirtyRooms.clear();
+	}
+
+	/* Hands the room as it is now to the snapshotter, if there is one */
+	private void journal(Room room) {
+		if (mSnapshotter != null) {
+			mSnapshotter.journal(mShard,
+					RoomSnapshotter.record(room, ++mJournalSequence));
+		}
+	}
+
+	/*
+	 * Hands every room to the snapshotter and schedules the next snapshot.
+	 * Called on the reactor's thread, or before it runs.
+	 */
+	void snapshot() {
+		if (mSnapshotter == null) {
+			return;
+		}
+
+		List<byte[]> records = new ArrayList<byte[]>(mRooms.size());
+		int length = 0;
+		for (Room room : mRooms.values()) {
+			byte[] record = RoomSnapshotter.record(room, mJournalSequence);
+			records.add(record);
+			length += record.length;
+		}
+		byte[] all = new byte[length];
+		int at = 0;
+		for (byte[] record : records) {
+			System.arraycopy(record, 0, all, at, record.length);
+			at += record.length;
+		}
+		mSnapshotter.snapshot(mShard, mJournalSequence, all);
+
+		if (mConfig.snapshotInterval > 0) {
+			mTimer.schedule(mSnapshotTimer, mConfig.snapshotInterval);
+		}
+	}
+
+	/*
+	 * Puts back a room saved before a restart, keeping each seat for its
+	 * client to resume until the grace period ends. Call before the reactor
+	 * runs.
+	 */
+	void restore(RoomSnapshotter.SavedRoom saved) {
+		if (mRooms.containsKey(saved.id) || saved.names.length == 0) {
+			return;
+		}
+
+		// Not recorded as joins, the history already has them
+		Room room = newRoom(saved.id,
+				Math.max(saved.capacity, saved.names.length));
+		room.setHistory(null);
+		for (int i = 0; i < saved.names.length; i++) {
+			room.add(Connection.reserved(mNames.intern(saved.names[i]),
+					saved.tokens[i]));
+		}
+		room.setHistory(mHistory);
+		room.restore(saved.loser, saved.cooldownUntil);
+		room.clearDelta();
+
+		if (!mGraceTimer.isPending()) {
+			mTimer.schedule(mGraceTimer, Math.max(0, mConfig.resumeGrace));
+		}
+	}
+
+	/* Frees every seat still held for a client that never came back */
+	private void releaseReserved() throws UnsupportedEncodingException {
+		List<Room> rooms = new ArrayList<Room>(mRooms.values());
+		for (Room room : rooms) {
+			// From the back, as leaving moves the last member forward
+			for (int i = room.size() - 1; i >= 0; i--) {
+				Connection member = room.member(i);
+				if (member.isReserved()) {
+					leave(member);
+					mNames.release(member.nameId);
+				}
+			}
+		}
+	}
+
+	/*
+	 * Queues the room's state for every member. Version 2 members are sent
+	 * what changed since the last broadcast, or the whole room if they have
+	 * just joined; older ones are sent the whole update. Each message is
+	 * encoded once, straight from the stored names, and each member gets its
+	 * own view of the same bytes.
+	 */
+	public void broadcast(Room room) throws UnsupportedEncodingException {
+		ByteBuffer delta = null;
+		ByteBuffer snapshot = null;
+		ByteBuffer framed = null;
+		ByteBuffer legacy = null;
+		boolean overflowed = room.isDeltaOverflowed();
+		mMetrics.increment(Metrics.BROADCASTS);
+
+		// Send to each member
+		for (int i = 0; i < room.size(); i++) {
+			Connection member = room.member(i);
+			if (member.isReserved() || !member.channel.isConnected()) {
+				continue;
+			}
+
+			if (member.version >= Message.VERSION_2) {
+				if (member.needsSnapshot || overflowed) {
+					if (snapshot == null) {
+						snapshot = room.encodeSnapshot().asReadOnlyBuffer();
+					}
+					queue(member, snapshot.duplicate());
+
+					// Newly seated or resynced, say how to get back here
+					if (member.needsSnapshot && member.token != null) {
+						queue(member, encode(new Message(Message.SER_TOKEN,
+								new String[] { room.getId(), member.token })));
+					}
+					member.needsSnapshot = false;
+				} else if (room.hasDelta()) {
+					if (delta == null) {
+						delta = room.encodeDelta().asReadOnlyBuffer();
+					}
+					queue(member, delta.duplicate());
+				}
+			} else if (member.version == Message.VERSION_LEGACY) {
+				if (legacy == null) {
+					legacy = ByteBuffer.wrap(room.update().encode())
+							.asReadOnlyBuffer();
+				}
+				queue(member, legacy.duplicate());
+			} else {
+				if (framed == null) {
+					framed = room.encodeUpdate().asReadOnlyBuffer();
+				}
+				queue(member, framed.duplicate());
+			}
+		}
+
+		// Everyone has seen these changes now
+		room.clearDelta();
+	}
+}
@@ -0,0 +1,497 @@
+package com.monisben.quick.drawstraw;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A single draw. Holds its own roster, loser and cooldown so that any number
+ * of rooms can be served side by side.
+ *
+ * Names are ids in a NameTable, usually shared by every room on a reactor.
+ * The room holds a reference to its loser and to every name waiting in its
+ * delta, and encodes itself by copying the stored bytes of each name.
+ *
+ * @author Benjamin
+ *
+ */
+public class Room {
+
+	// The room everyone lands in if they never ask for another one
+	public static final String DEFAULT_ID = "default";
+
+	// The number of clients being drawn for unless asked otherwise
+	public static final int DEFAULT_CAPACITY = 3;
+
+	// Upper bound on what a client may ask for
+	public static final int MAX_CAPACITY = 1024;
+
+	// Time a room waits after a draw before drawing again
+	public static final long COOLDOWN_TIME = 30000;
+
+	// Changes held for the next delta before a snapshot is cheaper
+	private static final int MAX_DELTA_OPS = 64;
+
+	// No draw yet
+	private static final int NO_LOSER = -1;
+
+	private final String mId;
+	private final int mCapacity;
+
+	// Where the names of members and the loser are kept
+	private final NameTable mNames;
+
+	// The members of the room, packed at the front. Each member knows its
+	// seat so leaving just moves the last member into it
+	private final Connection[] mMembers;
+	private int mSize;
+
+	// The number of members who have not given a name yet
+	private int mUnnamed;
+
+	// The name id of the loser of the draw, or NO_LOSER
+	private int mLoser = NO_LOSER;
+
+	// Set while the room waits in its reactor's list of rooms to broadcast
+	private boolean mDirty;
+
+	// Bumped by every change, and the changes since the last broadcast as
+	// each op followed by its seat and name id, as it applies, along with
+	// the number of fields they make
+	private int mSequence;
+	private int mDeltaBase;
+	private int mDeltaOps;
+	private final int[] mDelta = new int[MAX_DELTA_OPS * 3];
+	private int mDeltaLength;
+	private int mDeltaFields;
+
+	// A flag indicating we are on draw cooldown, and for how long. Cleared
+	// by the timer, which need not run on the thread drawing
+	private volatile boolean mCooldown;
+	private final long mCooldownTime;
+
+	// Wall clock time the cooldown ends, kept so it survives a restart
+	private long mCooldownUntil;
+
+	// The owning reactor's timer and the timeout ending the cooldown
+	private final TimerWheel mTimer;
+	private final TimerWheel.Timeout mCooldownEnd;
+
+	// Where changes are kept once broadcast, if anywhere
+	private DrawHistoryLog mHistory;
+
+	public Room(String id, int capacity, TimerWheel timer) {
+		this(id, capacity, COOLDOWN_TIME, timer);
+	}
+
+	/* A cooldown of 0 lets the room draw again straight away */
+	public Room(String id, int capacity, long cooldownTime, TimerWheel timer) {
+		this(id, capacity, cooldownTime, timer, new NameTable());
+	}
+
+	/* Keeps names in the given table, which members' name ids refer to */
+	public Room(String id, int capacity, long cooldownTime, TimerWheel timer,
+			NameTable names) {
+		mId = id;
+		mCapacity = capacity;
+		mNames = names;
+		mCooldownTime = cooldownTime;
+		mMembers = new Connection[capacity];
+		mTimer = timer;
+		mCooldownEnd = new TimerWheel.Timeout(new TimerWheel.Task() {
+
+			@Override
+			public void run(TimerWheel.Timeout timeout) throws IOException {
+				mCooldown = false;
+			}
+		});
+	}
+
+	public String getId() {
+		return mId;
+	}
+
+	public int getCapacity() {
+		return mCapacity;
+	}
+
+	public int size() {
+		return mSize;
+	}
+
+	public boolean isFull() {
+		return mSize >= mCapacity;
+	}
+
+	public boolean isEmpty() {
+		return mSize == 0;
+	}
+
+	/* The member in the given seat, seats run from 0 to size() - 1 */
+	public Connection member(int seat) {
+		return mMembers[seat];
+	}
+
+	/* The loser's name, or null before the first draw */
+	public String getLoser() {
+		return mLoser != NO_LOSER ? mNames.string(mLoser) : null;
+	}
+
+	public NameTable getNames() {
+		return mNames;
+	}
+
+	/* The member's name as a String, made once per name */
+	public String name(Connection connection) {
+		return mNames.string(connection.nameId);
+	}
+
+	public boolean isDirty() {
+		return mDirty;
+	}
+
+	public void setDirty(boolean dirty) {
+		mDirty = dirty;
+	}
+
+	/* Records every roster change and draw from now on, null to stop */
+	public void setHistory(DrawHistoryLog history) {
+		mHistory = history;
+	}
+
+	/* Adds a connection to the room, returns false if the room is full */
+	public boolean add(Connection connection) {
+		if (isFull() || connection.room == this) {
+			return false;
+		}
+
+		connection.room = this;
+		connection.seat = mSize;
+		mMembers[mSize++] = connection;
+		if (!connection.isNamed()) {
+			mUnnamed++;
+		}
+		record(Message.DELTA_JOINED, connection.seat, connection.nameId);
+		history(Message.DELTA_JOINED, connection.nameId);
+		return true;
+	}
+
+	/*
+	 * Puts the connection in the seat the other one holds, under its name.
+	 * Nobody else sees a change, so nothing is recorded.
+	 */
+	public void replace(Connection held, Connection connection) {
+		if (held.room != this) {
+			return;
+		}
+
+		connection.room = this;
+		connection.seat = held.seat;
+		mNames.release(connection.nameId);
+		connection.nameId = held.nameId;
+		connection.token = held.token;
+		mMembers[held.seat] = connection;
+
+		held.room = null;
+		held.seat = -1;
+		held.nameId = NameTable.EMPTY;
+	}
+
+	/* The member holding the resume token, or null */
+	public Connection find(String token) {
+		for (int i = 0; i < mSize; i++) {
+			if (token.equals(mMembers[i].token)) {
+				return mMembers[i];
+			}
+		}
+		return null;
+	}
+
+	/* Removes a connection from the room, which keeps its name */
+	public void remove(Connection connection) {
+		if (connection.room != this) {
+			return;
+		}
+
+		// Fill the seat with the last member
+		int seat = connection.seat;
+		Connection last = mMembers[--mSize];
+		mMembers[seat] = last;
+		last.seat = seat;
+		mMembers[mSize] = null;
+
+		connection.room = null;
+		connection.seat = -1;
+		if (!connection.isNamed()) {
+			mUnnamed--;
+		}
+		record(Message.DELTA_LEFT, seat, NameTable.EMPTY);
+		history(Message.DELTA_LEFT, connection.nameId);
+	}
+
+	/* Changes a members name, keeping the unnamed count in step */
+	public void rename(Connection connection, String name) {
+		rename(connection, mNames.intern(name));
+	}
+
+	/*
+	 * Changes a members name to an id interned for it, taking over that
+	 * reference and dropping the one to the old name.
+	 */
+	public void rename(Connection connection, int nameId) {
+		boolean wasNamed = connection.isNamed();
+		mNames.release(connection.nameId);
+		connection.nameId = nameId;
+		boolean isNamed = connection.isNamed();
+
+		if (wasNamed && !isNamed) {
+			mUnnamed++;
+		} else if (!wasNamed && isNamed) {
+			mUnnamed--;
+		}
+		record(Message.DELTA_RENAMED, connection.seat, nameId);
+		history(Message.DELTA_RENAMED, nameId);
+	}
+
+	/* Picks a random member as the loser, returns true if one was picked */
+	public boolean draw() {
+		// Make sure we arent on cooldown and every seat has a name
+		if (mCooldown || !isFull() || mUnnamed != 0) {
+			return false;
+		}
+
+		// Every room on a reactor shares that thread's generator
+		int loser = mMembers[ThreadLocalRandom.current().nextInt(mSize)].nameId;
+		setLoser(mNames.retain(loser));
+		record(Message.DELTA_DRAWN, -1, loser);
+		history(Message.DELTA_DRAWN, loser);
+
+		// Lock out further draws for the cooldown time
+		if (mCooldownTime > 0) {
+			mCooldown = true;
+			mCooldownUntil = System.currentTimeMillis() + mCooldownTime;
+			mTimer.schedule(mCooldownEnd, mCooldownTime);
+		}
+		return true;
+	}
+
+	/* Wall clock time the cooldown ends, or 0 if the room may draw */
+	public long getCooldownUntil() {
+		return mCooldown ? mCooldownUntil : 0;
+	}
+
+	/*
+	 * Puts back the loser and cooldown of a room saved before a restart. A
+	 * null loser means there has been no draw yet.
+	 */
+	public void restore(String loser, long cooldownUntil) {
+		setLoser(loser != null ? mNames.intern(loser) : NO_LOSER);
+		long left = cooldownUntil - System.currentTimeMillis();
+		if (left > 0) {
+			mCooldown = true;
+			mCooldownUntil = cooldownUntil;
+			mTimer.schedule(mCooldownEnd, left);
+		}
+	}
+
+	/* Stops the room's timers and lets go of its names once unused */
+	public void close() {
+		mTimer.cancel(mCooldownEnd);
+		setLoser(NO_LOSER);
+		clearDelta();
+	}
+
+	/* Takes over a reference to the new loser, dropping the old one */
+	private void setLoser(int loser) {
+		if (mLoser != NO_LOSER) {
+			mNames.release(mLoser);
+		}
+		mLoser = loser;
+	}
+
+	/*
+	 * Notes a change for the next delta, up to MAX_DELTA_OPS of them. The
+	 * seat is left out of draws and the name out of leaves.
+	 */
+	private void record(int op, int seat, int nameId) {
+		mSequence++;
+		if (mDeltaOps++ >= MAX_DELTA_OPS) {
+			releaseDelta();
+			return;
+		}
+		mDelta[mDeltaLength++] = op;
+		mDeltaFields++;
+		if (op != Message.DELTA_DRAWN) {
+			mDelta[mDeltaLength++] = seat;
+			mDeltaFields++;
+		}
+		if (op != Message.DELTA_LEFT) {
+			mDelta[mDeltaLength++] = mNames.retain(nameId);
+			mDeltaFields++;
+		}
+	}
+
+	/* Drops the delta's references to names */
+	private void releaseDelta() {
+		int i = 0;
+		while (i < mDeltaLength) {
+			int op = mDelta[i++];
+			if (op != Message.DELTA_DRAWN) {
+				i++;
+			}
+			if (op != Message.DELTA_LEFT) {
+				mNames.release(mDelta[i++]);
+			}
+		}
+		mDeltaLength = 0;
+		mDeltaFields = 0;
+	}
+
+	/* Hands a change to the history log, which never blocks */
+	private void history(int type, int nameId) {
+		if (mHistory != null) {
+			mHistory.append(type, mId, mNames.string(nameId));
+		}
+	}
+
+	public int getSequence() {
+		return mSequence;
+	}
+
+	/* Checks if anything changed since the last call to clearDelta() */
+	public boolean hasDelta() {
+		return mDeltaOps > 0;
+	}
+
+	/* Checks if so much changed that members are better off with a snapshot */
+	public boolean isDeltaOverflowed() {
+		return mDeltaOps > MAX_DELTA_OPS;
+	}
+
+	/* Starts collecting changes afresh, once they have been sent */
+	public void clearDelta() {
+		releaseDelta();
+		mDeltaOps = 0;
+		mDeltaBase = mSequence;
+	}
+
+	/*
+	 * Encodes the changes since the last clearDelta() for version 2
+	 * members, as a frame ready to write.
+	 */
+	public ByteBuffer encodeDelta() {
+		ByteBuffer out = ByteBuffer.allocate(Message.LENGTH_SIZE
+				+ Message.BODY_HEADER_SIZE + Message.fieldSize(mDeltaBase)
+				+ deltaFields(null));
+		int start = Message.beginFrame(out, Message.SER_DELTA,
+				1 + mDeltaFields);
+		Message.putField(out, mDeltaBase);
+		deltaFields(out);
+		Message.endFrame(out, start);
+		out.flip();
+		return out;
+	}
+
+	/* Writes the delta's ops if given somewhere to, returns their size */
+	private int deltaFields(ByteBuffer out) {
+		int size = 0;
+		int i = 0;
+		while (i < mDeltaLength) {
+			int op = mDelta[i++];
+			size += number(out, op);
+			if (op != Message.DELTA_DRAWN) {
+				size += number(out, mDelta[i++]);
+			}
+			if (op != Message.DELTA_LEFT) {
+				size += name(out, mDelta[i++]);
+			}
+		}
+		return size;
+	}
+
+	/*
+	 * Encodes the whole room for a version 2 member to start from, as a
+	 * frame ready to write.
+	 */
+	public ByteBuffer encodeSnapshot() {
+		int loser = mLoser != NO_LOSER ? mLoser : NameTable.EMPTY;
+		int size = Message.LENGTH_SIZE + Message.BODY_HEADER_SIZE
+				+ number(null, mSequence) + number(null, mCapacity)
+				+ name(null, loser);
+		for (int i = 0; i < mSize; i++) {
+			size += name(null, mMembers[i].nameId);
+		}
+
+		ByteBuffer out = ByteBuffer.allocate(size);
+		int start = Message.beginFrame(out, Message.SER_SNAPSHOT, mSize + 3);
+		number(out, mSequence);
+		number(out, mCapacity);
+		name(out, loser);
+		for (int i = 0; i < mSize; i++) {
+			name(out, mMembers[i].nameId);
+		}
+		Message.endFrame(out, start);
+		out.flip();
+		return out;
+	}
+
+	/*
+	 * Encodes the update sent to version 1 members, each seat then the
+	 * loser, as a frame ready to write.
+	 */
+	public ByteBuffer encodeUpdate() {
+		int loser = mLoser != NO_LOSER ? mLoser : NameTable.EMPTY;
+		int size = Message.LENGTH_SIZE + Message.BODY_HEADER_SIZE
+				+ name(null, loser);
+		for (int i = 0; i < mCapacity; i++) {
+			size += name(null, seatName(i));
+		}
+
+		ByteBuffer out = ByteBuffer.allocate(size);
+		int start = Message.beginFrame(out, Message.SER_UPDATE,
+				mCapacity + 1);
+		for (int i = 0; i < mCapacity; i++) {
+			name(out, seatName(i));
+		}
+		name(out, loser);
+		Message.endFrame(out, start);
+		out.flip();
+		return out;
+	}
+
+	/* Builds the update message sent to old text clients */
+	public Message update() {
+		String[] values = new String[mCapacity + 1];
+
+		// Fill up the data array with each clients name
+		for (int i = 0; i < mCapacity; i++) {
+			values[i] = mNames.string(seatName(i));
+		}
+
+		// Attach the loser of the straw draw
+		values[mCapacity] = mLoser != NO_LOSER ? mNames.string(mLoser)
+				: Message.EMPTY;
+
+		return new Message(Message.SER_UPDATE, values);
+	}
+
+	/* The name id in the seat, EMPTY for an empty one */
+	private int seatName(int seat) {
+		return seat < mSize ? mMembers[seat].nameId : NameTable.EMPTY;
+	}
+
+	private static int number(ByteBuffer out, int value) {
+		if (out != null) {
+			Message.putField(out, value);
+		}
+		return Message.fieldSize(value);
+	}
+
+	private int name(ByteBuffer out, int nameId) {
+		byte[] bytes = mNames.bytes(nameId);
+		if (out != null) {
+			Message.putField(out, bytes);
+		}
+		return Message.fieldSize(bytes);
+	}
+}
@@ -0,0 +1,205 @@
+package com.monisben.quick.drawstraw;
+
+import java.net.ProtocolException;
+
+/**
+ * A client's copy of its room, kept up to date from the server's snapshots
+ * and deltas. Full updates from older servers are taken as they are, so the
+ * client reads the room the same way whichever version it was given.
+ *
+ * @author Benjamin
+ *
+ */
+public class RoomReplica {
+
+	// The seats, packed at the front like the server's roster
+	private String[] mSeats = new String[0];
+	private int mSize;
+	private int mCapacity;
+	private String mLoser = Message.EMPTY;
+
+	// The room's sequence number this copy is at
+	private int mSequence;
+
+	// False until a snapshot arrives, and again once a delta is missed
+	private boolean mSynced;
+
+	// The number of draws seen since the last snapshot
+	private int mDraws;
+
+	/*
+	 * Applies a message from the server. Returns true if the room may have
+	 * changed, false if the message was not about the room or could not be
+	 * applied; see isStale().
+	 */
+	public boolean apply(Message message) throws ProtocolException {
+		switch (message.header) {
+		case Message.SER_UPDATE:
+			update(message.data);
+			return true;
+		case Message.SER_SNAPSHOT:
+			snapshot(message.data);
+			return true;
+		case Message.SER_DELTA:
+			return delta(message.data);
+		default:
+			return false;
+		}
+	}
+
+	/* True once a delta was missed, until the next snapshot */
+	public boolean isStale() {
+		return !mSynced;
+	}
+
+	public int getSequence() {
+		return mSequence;
+	}
+
+	public int size() {
+		return mSize;
+	}
+
+	public int getCapacity() {
+		return mCapacity;
+	}
+
+	public String getLoser() {
+		return mLoser;
+	}
+
+	public int getDraws() {
+		return mDraws;
+	}
+
+	/* Checks if a member of the room goes by the name */
+	public boolean contains(String name) {
+		for (int i = 0; i < mSize; i++) {
+			if (mSeats[i].equals(name)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/* Checks if every seat is taken and named */
+	public boolean isFull() {
+		return mSize == mCapacity && mSize > 0 && !contains(Message.EMPTY);
+	}
+
+	/* The room laid out like a full update, each seat then the loser */
+	public String[] toArray() {
+		String[] values = new String[mCapacity + 1];
+		for (int i = 0; i < mCapacity; i++) {
+			values[i] = i < mSize ? mSeats[i] : Message.EMPTY;
+		}
+		values[mCapacity] = mLoser;
+		return values;
+	}
+
+	private void update(String[] data) {
+		// Unnamed members and empty seats look the same, keep them all
+		resize(Math.max(0, data.length - 1));
+		mSize = mCapacity;
+		System.arraycopy(data, 0, mSeats, 0, mSize);
+		mLoser = data.length > 0 ? data[data.length - 1] : Message.EMPTY;
+		mSynced = true;
+	}
+
+	private void snapshot(String[] data) throws ProtocolException {
+		if (data.length < 3) {
+			throw new ProtocolException("Short snapshot");
+		}
+		int size = data.length - 3;
+		resize(Math.max(size, number(data[1])));
+		mSequence = number(data[0]);
+		mLoser = data[2];
+		mSize = size;
+		System.arraycopy(data, 3, mSeats, 0, size);
+		mDraws = 0;
+		mSynced = true;
+	}
+
+	private boolean delta(String[] data) throws ProtocolException {
+		if (data.length < 1) {
+			throw new ProtocolException("Short delta");
+		}
+
+		// Anything but the next change means one went missing
+		if (!mSynced || number(data[0]) != mSequence) {
+			mSynced = false;
+			return false;
+		}
+
+		int i = 1;
+		while (i < data.length) {
+			int op = number(data[i++]);
+			switch (op) {
+			case Message.DELTA_JOINED:
+				check(data, i, 2);
+				// Newcomers always take the next seat
+				if (mSize == mCapacity || seat(data[i], mSize) != mSize) {
+					throw new ProtocolException("Bad join");
+				}
+				mSeats[mSize] = data[i + 1];
+				mSize++;
+				i += 2;
+				break;
+			case Message.DELTA_RENAMED:
+				check(data, i, 2);
+				mSeats[seat(data[i], mSize - 1)] = data[i + 1];
+				i += 2;
+				break;
+			case Message.DELTA_LEFT:
+				check(data, i, 1);
+				int left = seat(data[i], mSize - 1);
+				mSeats[left] = mSeats[--mSize];
+				mSeats[mSize] = null;
+				i += 1;
+				break;
+			case Message.DELTA_DRAWN:
+				check(data, i, 1);
+				mLoser = data[i];
+				mDraws++;
+				i += 1;
+				break;
+			default:
+				throw new ProtocolException("Unknown delta op " + op);
+			}
+			mSequence++;
+		}
+		return true;
+	}
+
+	private void resize(int capacity) {
+		mCapacity = capacity;
+		if (mSeats.length < capacity) {
+			mSeats = new String[capacity];
+		}
+	}
+
+	private static void check(String[] data, int at, int fields)
+			throws ProtocolException {
+		if (at + fields > data.length) {
+			throw new ProtocolException("Short delta op");
+		}
+	}
+
+	/* Reads a seat number, which may be no higher than the given one */
+	private static int seat(String value, int highest)
+			throws ProtocolException {
+		int seat = number(value);
+		if (seat < 0 || seat > highest) {
+			throw new ProtocolException("Bad seat " + seat);
+		}
+		return seat;
+	}
+
+	private static int number(String value) throws ProtocolException {
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			throw new ProtocolException("Bad number " + value);
+		}
+	}
+}
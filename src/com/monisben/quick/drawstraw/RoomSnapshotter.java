@@ -0,0 +1,488 @@
+package com.monisben.quick.drawstraw;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps every room on disk so a restarted server can put them back. Each
+ * reactor is a shard with two files: rooms-N.snap, all its rooms as they
+ * were at some point, and rooms-N.journal, every room changed since, in
+ * full. Reactors encode rooms on their own thread and hand the bytes over
+ * without waiting; a thread of its own writes them, forcing the journals
+ * to disk every so often.
+ *
+ * Both files are made of records of
+ *
+ * int length | int CRC32 | long sequence | room
+ *
+ * room = (u16 length | UTF-8) id | int capacity | u8 has loser |
+ *        (u16 length | UTF-8) loser | long cooldown end |
+ *        u16 seats | ((u16 length | UTF-8) name | token)*
+ *
+ * where length counts the bytes after the CRC and a room with no seats has
+ * gone. A snapshot starts with the last journal sequence it includes, so
+ * journal records it already holds are skipped even if a crash left them.
+ * Snapshots are written aside and renamed into place, and a journal is
+ * read up to its first torn record.
+ *
+ * @author Benjamin
+ *
+ */
+public class RoomSnapshotter implements Runnable {
+
+	// How often reactors save all their rooms, and how long a seat is kept
+	// for a client to come back to after a restart, in milliseconds
+	public static final long DEFAULT_INTERVAL = 30000;
+	public static final long DEFAULT_GRACE = 60000;
+
+	// Longest journal writes may wait to be forced to disk
+	private static final long FSYNC_INTERVAL = 1000;
+
+	private static final String PREFIX = "rooms-";
+	private static final String SNAPSHOT = ".snap";
+	private static final String JOURNAL = ".journal";
+	private static final int HEADER_SIZE = 8;
+	private static final int SEQUENCE_SIZE = 8;
+
+	/**
+	 * A room as read back from disk.
+	 */
+	public static class SavedRoom {
+
+		public final String id;
+		public final int capacity;
+
+		// Null if the room never drew, and the wall clock time its
+		// cooldown ends
+		public final String loser;
+		public final long cooldownUntil;
+
+		// Name and resume token of each seat, in seat order
+		public final String[] names;
+		public final String[] tokens;
+
+		public SavedRoom(String id, int capacity, String loser,
+				long cooldownUntil, String[] names, String[] tokens) {
+			this.id = id;
+			this.capacity = capacity;
+			this.loser = loser;
+			this.cooldownUntil = cooldownUntil;
+			this.names = names;
+			this.tokens = tokens;
+		}
+	}
+
+	/**
+	 * Work for the writer, in the order it was handed over.
+	 */
+	private static class Write {
+		static final int JOURNAL = 1;
+		static final int SNAPSHOT = 2;
+		static final int CLEAN = 3;
+		static final int CLOSE = 4;
+
+		final int type;
+		final int shard;
+		final long sequence;
+		final byte[] bytes;
+
+		Write(int type, int shard, long sequence, byte[] bytes) {
+			this.type = type;
+			this.shard = shard;
+			this.sequence = sequence;
+			this.bytes = bytes;
+		}
+	}
+
+	private final File mDirectory;
+	private final int mShards;
+
+	private final BlockingQueue<Write> mQueue = new LinkedBlockingQueue<Write>();
+
+	// Only touched by the writer once it runs
+	private final FileChannel[] mJournals;
+	private final boolean[] mUnsynced;
+	private long mLastSync;
+
+	private Thread mWriter;
+
+	/* Keeps the rooms of the given number of reactors in the directory */
+	public RoomSnapshotter(File directory, int shards) throws IOException {
+		mDirectory = directory;
+		mShards = shards;
+		mJournals = new FileChannel[shards];
+		mUnsynced = new boolean[shards];
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not create " + directory);
+		}
+	}
+
+	/*
+	 * Reads back every room saved, by however many reactors saved them.
+	 * Call before the server runs.
+	 */
+	public List<SavedRoom> load() throws IOException {
+		Map<String, SavedRoom> rooms = new LinkedHashMap<String, SavedRoom>();
+		File[] files = mDirectory.listFiles();
+		if (files == null) {
+			return new ArrayList<SavedRoom>();
+		}
+
+		for (File file : files) {
+			String name = file.getName();
+			if (!name.startsWith(PREFIX) || !name.endsWith(SNAPSHOT)) {
+				continue;
+			}
+			String shard = name.substring(0, name.length() - SNAPSHOT.length());
+			long sequence = read(file, SEQUENCE_SIZE, -1, rooms);
+			read(new File(mDirectory, shard + JOURNAL), 0, sequence, rooms);
+		}
+
+		// A journal with no snapshot was never followed by one
+		for (File file : files) {
+			String name = file.getName();
+			if (name.startsWith(PREFIX) && name.endsWith(JOURNAL)) {
+				String shard = name.substring(0,
+						name.length() - JOURNAL.length());
+				if (!new File(mDirectory, shard + SNAPSHOT).isFile()) {
+					read(file, 0, 0, rooms);
+				}
+			}
+		}
+		return new ArrayList<SavedRoom>(rooms.values());
+	}
+
+	/* Starts the writer thread */
+	public synchronized void start() {
+		if (mWriter == null) {
+			mWriter = new Thread(this, "snapshots");
+			mWriter.setDaemon(true);
+			mWriter.start();
+		}
+	}
+
+	/* Hands over a room changed since the last snapshot, from any thread */
+	public void journal(int shard, byte[] record) {
+		mQueue.offer(new Write(Write.JOURNAL, shard, 0, record));
+	}
+
+	/*
+	 * Hands over every room of the shard, encoded by record(), to replace
+	 * its snapshot. The sequence is that of the last journal record they
+	 * include.
+	 */
+	public void snapshot(int shard, long sequence, byte[] records) {
+		mQueue.offer(new Write(Write.SNAPSHOT, shard, sequence, records));
+	}
+
+	/*
+	 * Removes the files of shards past the current ones, once everything
+	 * handed over before has been written. Used after a restart with fewer
+	 * reactors, as soon as their rooms are saved again.
+	 */
+	public void clean() {
+		mQueue.offer(new Write(Write.CLEAN, 0, 0, null));
+	}
+
+	/* Writes out everything handed over so far, then stops the writer */
+	public void close() throws InterruptedException {
+		Thread writer;
+		synchronized (this) {
+			writer = mWriter;
+		}
+		if (writer == null) {
+			return;
+		}
+		mQueue.put(new Write(Write.CLOSE, 0, 0, null));
+		writer.join();
+	}
+
+	@Override
+	public void run() {
+		List<Write> batch = new ArrayList<Write>();
+		try {
+			while (true) {
+				Write first = mQueue.poll(FSYNC_INTERVAL,
+						TimeUnit.MILLISECONDS);
+				if (first != null) {
+					batch.add(first);
+					mQueue.drainTo(batch);
+				}
+
+				boolean closing = false;
+				for (int i = 0; i < batch.size() && !closing; i++) {
+					Write write = batch.get(i);
+					switch (write.type) {
+					case Write.JOURNAL:
+						append(write.shard, write.bytes);
+						break;
+					case Write.SNAPSHOT:
+						replace(write.shard, write.sequence, write.bytes);
+						break;
+					case Write.CLEAN:
+						removeStale();
+						break;
+					default:
+						closing = true;
+					}
+				}
+				batch.clear();
+
+				long now = TimerWheel.now();
+				if (closing || now - mLastSync >= FSYNC_INTERVAL) {
+					sync();
+					mLastSync = now;
+				}
+				if (closing) {
+					for (FileChannel journal : mJournals) {
+						if (journal != null) {
+							journal.close();
+						}
+					}
+					return;
+				}
+			}
+		} catch (InterruptedException e) {
+			// Stopped
+		} catch (IOException e) {
+			// Nothing more can be saved
+			e.printStackTrace();
+		}
+	}
+
+	/* Adds a record to the end of the shard's journal */
+	private void append(int shard, byte[] record) throws IOException {
+		FileChannel journal = journal(shard);
+		ByteBuffer buffer = ByteBuffer.wrap(record);
+		while (buffer.hasRemaining()) {
+			journal.write(buffer);
+		}
+		mUnsynced[shard] = true;
+	}
+
+	/*
+	 * Writes the snapshot aside, forces it and renames it into place, then
+	 * empties the journal it makes redundant.
+	 */
+	private void replace(int shard, long sequence, byte[] records)
+			throws IOException {
+		File file = file(shard, SNAPSHOT);
+		File aside = new File(mDirectory, file.getName() + ".tmp");
+		FileOutputStream out = new FileOutputStream(aside);
+		try {
+			FileChannel channel = out.getChannel();
+			ByteBuffer header = ByteBuffer.allocate(SEQUENCE_SIZE);
+			header.putLong(0, sequence);
+			ByteBuffer[] buffers = { header, ByteBuffer.wrap(records) };
+			while (header.hasRemaining() || buffers[1].hasRemaining()) {
+				channel.write(buffers);
+			}
+			channel.force(true);
+		} finally {
+			out.close();
+		}
+		Files.move(aside.toPath(), file.toPath(),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+
+		FileChannel journal = journal(shard);
+		journal.truncate(0);
+		journal.position(0);
+		mUnsynced[shard] = true;
+	}
+
+	/* Deletes the files of shards this server does not have */
+	private void removeStale() {
+		File[] files = mDirectory.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (File file : files) {
+			int shard = shard(file.getName());
+			if (shard >= mShards) {
+				file.delete();
+			}
+		}
+	}
+
+	/* Forces every journal written since the last time */
+	private void sync() throws IOException {
+		for (int i = 0; i < mShards; i++) {
+			if (mUnsynced[i]) {
+				mJournals[i].force(false);
+				mUnsynced[i] = false;
+			}
+		}
+	}
+
+	private FileChannel journal(int shard) throws IOException {
+		if (mJournals[shard] == null) {
+			@SuppressWarnings("resource")
+			RandomAccessFile raf = new RandomAccessFile(file(shard, JOURNAL),
+					"rw");
+			mJournals[shard] = raf.getChannel();
+			mJournals[shard].position(mJournals[shard].size());
+		}
+		return mJournals[shard];
+	}
+
+	private File file(int shard, String suffix) {
+		return new File(mDirectory, PREFIX + shard + suffix);
+	}
+
+	/* The shard a file belongs to, or -1 if it is not one of ours */
+	private static int shard(String name) {
+		if (!name.startsWith(PREFIX)) {
+			return -1;
+		}
+		int end = name.indexOf('.');
+		try {
+			return Integer.parseInt(name.substring(PREFIX.length(), end));
+		} catch (RuntimeException e) {
+			return -1;
+		}
+	}
+
+	/*
+	 * Reads the records of a file after skipping its header into the rooms,
+	 * ignoring any with a sequence no higher than after. Returns the
+	 * sequence in the header, or 0 if there is none.
+	 */
+	private static long read(File file, int header, long after,
+			Map<String, SavedRoom> rooms) throws IOException {
+		if (!file.isFile()) {
+			return 0;
+		}
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			long size = channel.size();
+			if (size < header) {
+				return 0;
+			}
+
+			MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY,
+					0, Math.min(size, Integer.MAX_VALUE));
+			long sequence = header > 0 ? map.getLong() : 0;
+			CRC32 crc = new CRC32();
+			while (map.remaining() >= HEADER_SIZE) {
+				int start = map.position();
+				int length = map.getInt(start);
+				int body = start + HEADER_SIZE;
+				if (length < SEQUENCE_SIZE || length > map.limit() - body) {
+					break;
+				}
+				crc.reset();
+				for (int i = body; i < body + length; i++) {
+					crc.update(map.get(i));
+				}
+				if ((int) crc.getValue() != map.getInt(start + 4)) {
+					break;
+				}
+
+				map.position(body);
+				long recorded = map.getLong();
+				SavedRoom room = decode(map);
+				if (recorded > after) {
+					if (room.names.length == 0) {
+						rooms.remove(room.id);
+					} else {
+						rooms.put(room.id, room);
+					}
+				}
+				map.position(body + length);
+			}
+			return sequence;
+		} finally {
+			in.close();
+		}
+	}
+
+	/*
+	 * Encodes the room as a record with the sequence. A room with no seats
+	 * tells a reader it has gone. Call on the thread that owns the room.
+	 */
+	public static byte[] record(Room room, long sequence) {
+		byte[] id = room.getId().getBytes(Message.UTF_8);
+		String loser = room.getLoser();
+		byte[] loserBytes = (loser != null ? loser : "")
+				.getBytes(Message.UTF_8);
+
+		int size = room.size();
+		byte[][] names = new byte[size][];
+		byte[][] tokens = new byte[size][];
+		int length = SEQUENCE_SIZE + 2 + id.length + 4 + 1 + 2
+				+ loserBytes.length + 8 + 2;
+		for (int i = 0; i < size; i++) {
+			Connection member = room.member(i);
+			names[i] = room.getNames().bytes(member.nameId);
+			tokens[i] = (member.token != null ? member.token : "")
+					.getBytes(Message.UTF_8);
+			length += 2 + names[i].length + 2 + tokens[i].length;
+		}
+
+		ByteBuffer out = ByteBuffer.allocate(HEADER_SIZE + length);
+		out.putInt(length);
+		out.putInt(0);
+		out.putLong(sequence);
+		putBytes(out, id);
+		out.putInt(room.getCapacity());
+		out.put((byte) (loser != null ? 1 : 0));
+		putBytes(out, loserBytes);
+		out.putLong(room.getCooldownUntil());
+		out.putShort((short) size);
+		for (int i = 0; i < size; i++) {
+			putBytes(out, names[i]);
+			putBytes(out, tokens[i]);
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(out.array(), HEADER_SIZE, length);
+		out.putInt(4, (int) crc.getValue());
+		return out.array();
+	}
+
+	private static void putBytes(ByteBuffer out, byte[] bytes) {
+		out.putShort((short) bytes.length);
+		out.put(bytes);
+	}
+
+	private static SavedRoom decode(ByteBuffer in) {
+		String id = getString(in);
+		int capacity = in.getInt();
+		boolean drawn = in.get() != 0;
+		String loser = getString(in);
+		long cooldownUntil = in.getLong();
+		int size = in.getShort() & 0xFFFF;
+		String[] names = new String[size];
+		String[] tokens = new String[size];
+		for (int i = 0; i < size; i++) {
+			names[i] = getString(in);
+			tokens[i] = getString(in);
+		}
+		return new SavedRoom(id, capacity, drawn ? loser : null,
+				cooldownUntil, names, tokens);
+	}
+
+	private static String getString(ByteBuffer in) {
+		byte[] bytes = new byte[in.getShort() & 0xFFFF];
+		in.get(bytes);
+		return new String(bytes, Message.UTF_8);
+	}
+}
@@ -0,0 +1,441 @@
+package com.monisben.quick.drawstraw;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.net.UnknownHostException;
+import java.nio.channels.NetworkChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Everything the server is set up with. Starts from the defaults below and
+ * takes settings from, in increasing priority, a properties file, the
+ * environment and the command line, so a box can be tuned without a
+ * rebuild.
+ *
+ * Every setting has one key, written the same way in each place up to case
+ * and separators: "reactors" in the file, DRAWSTRAW_REACTORS in the
+ * environment and --reactors=4 on the command line. The file is
+ * drawstraw.properties in the working directory if there is one, or
+ * whatever --config (or DRAWSTRAW_CONFIG) names.
+ *
+ * bind             addresses to listen on, comma separated, empty for every
+ *                  interface
+ * port             game ports, comma separated, each listened on at every
+ *                  bind address
+ * metrics.port     scrape port on the first bind address, -1 for none
+ * reactors         selector threads, 0 for one per core
+ * backlog          pending connections the OS may hold per port
+ * high.water       bytes a client may have waiting before it is dropped
+ * read.buffer      bytes each reactor reads into at once
+ * pool.buffer      bytes in each buffer lent to partial frames
+ * pool.max         free buffers each reactor keeps
+ * room.capacity    size of rooms joined without asking for one
+ * room.max         largest room a client may ask for
+ * room.cooldown    milliseconds between draws in a room
+ * flush.budget     microseconds a change may wait to be broadcast
+ * idle.timeout     milliseconds a framed client may stay silent, 0 for ever
+ * tcp.nodelay      send small writes straight away
+ * so.rcvbuf        socket receive buffer in bytes, 0 for the OS default
+ * so.sndbuf        socket send buffer in bytes, 0 for the OS default
+ * so.reuseport     let several sockets share a port, where supported
+ * accept.sharded   every reactor listens and accepts for itself, sharing
+ *                  the ports through SO_REUSEPORT
+ * history.dir      directory the draw history is kept in, empty for none
+ * history.segment  bytes in each history segment before the next is started
+ * history.fsync    milliseconds history writes may wait to be forced to disk
+ * snapshot.dir     directory rooms are saved in to survive a restart, empty
+ *                  for none
+ * snapshot.interval milliseconds between saves of every room
+ * resume.grace     milliseconds a restored seat waits for its client
+ * cluster.nodes    every server node as host:port, comma separated and the
+ *                  same on each node, empty to run alone
+ * cluster.self     which of cluster.nodes this server is
+ * cluster.vnodes   points each node is given on the hash ring
+ * connections.max  clients connected at once, 0 for no limit
+ * accept.rate      connections accepted a second, 0 for no limit
+ * accept.burst     connections accepted at once before accept.rate applies
+ * message.rate     messages a second from each client, 0 for no limit
+ * message.burst    messages a client may send at once before message.rate
+ *                  applies
+ * ip.connections   clients connected at once from one address, 0 for no
+ *                  limit
+ * ip.accept.rate   connections accepted a second from one address
+ * ip.message.rate  messages a second from one address, over all its
+ *                  clients; each ip rate allows a second's worth at once
+ * client.host      server the window client connects to
+ * client.port      port the window client connects to
+ *
+ * @author Benjamin
+ *
+ */
+public class ServerConfig {
+
+	// The file read if present and nothing else is named
+	public static final String DEFAULT_FILE = "drawstraw.properties";
+
+	// Prefix of every environment variable
+	public static final String ENV_PREFIX = "DRAWSTRAW_";
+
+	public InetAddress[] bind = { null };
+	public int[] ports = { NonBlockingServer.SERVER_PORT };
+	public int metricsPort = NonBlockingServer.METRICS_PORT;
+	public int reactors = 0;
+	public int backlog = 1024;
+	public int highWater = OutboundQueue.DEFAULT_HIGH_WATER;
+	public int readBuffer = Reactor.READ_BUFFER_SIZE;
+	public int poolBuffer = BufferPool.DEFAULT_BUFFER_SIZE;
+	public int poolMax = BufferPool.DEFAULT_MAX_POOLED;
+	public int roomCapacity = Room.DEFAULT_CAPACITY;
+	public int roomMax = Room.MAX_CAPACITY;
+	public long roomCooldown = Room.COOLDOWN_TIME;
+	public long flushBudget = Reactor.DEFAULT_FLUSH_BUDGET;
+	public long idleTimeout = Reactor.DEFAULT_IDLE_TIMEOUT;
+	public boolean tcpNoDelay = true;
+	public int receiveBuffer = 0;
+	public int sendBuffer = 0;
+	public boolean reusePort = false;
+	public boolean acceptSharded = false;
+	public String historyDir = "";
+	public long historySegment = DrawHistoryLog.DEFAULT_SEGMENT_SIZE;
+	public long historyFsync = DrawHistoryLog.DEFAULT_FSYNC_INTERVAL;
+	public String snapshotDir = "";
+	public long snapshotInterval = RoomSnapshotter.DEFAULT_INTERVAL;
+	public long resumeGrace = RoomSnapshotter.DEFAULT_GRACE;
+	public String clusterNodes = "";
+	public String clusterSelf = "";
+	public int clusterVirtualNodes = ConsistentHashRing.DEFAULT_VIRTUAL_NODES;
+	public int connectionsMax = AdmissionControl.DEFAULT_MAX_CONNECTIONS;
+	public double acceptRate = 0;
+	public int acceptBurst = 100;
+	public double messageRate = AdmissionControl.DEFAULT_MESSAGE_RATE;
+	public int messageBurst = AdmissionControl.DEFAULT_MESSAGE_BURST;
+	public int ipConnections = 0;
+	public double ipAcceptRate = 0;
+	public double ipMessageRate = 0;
+	public String clientHost = NonBlockingServer.SERVER_IP;
+	public int clientPort = NonBlockingServer.SERVER_PORT;
+
+	/*
+	 * Builds the configuration from the file, environment and arguments.
+	 * Throws IllegalArgumentException naming the key of any bad setting.
+	 */
+	public static ServerConfig load(String[] args) throws IOException {
+		ServerConfig config = new ServerConfig();
+		for (String[] setting : settings(args)) {
+			config.set(setting[0], setting[1]);
+		}
+		config.check();
+		return config;
+	}
+
+	/*
+	 * Where the window client should connect, from the file and environment.
+	 * Only the client settings are looked at, so a file set up for a server
+	 * on the same box is no concern of the client's.
+	 */
+	public static InetSocketAddress clientAddress() throws IOException {
+		ServerConfig config = new ServerConfig();
+		for (String[] setting : settings(new String[0])) {
+			String name = name(setting[0]);
+			if (name.equals("client.host") || name.equals("client.port")) {
+				config.set(setting[0], setting[1]);
+			}
+		}
+		return new InetSocketAddress(InetAddress.getByName(config.clientHost),
+				config.clientPort);
+	}
+
+	/*
+	 * Every setting from the file, environment and arguments as key and
+	 * value, in the order they are to be applied
+	 */
+	private static List<String[]> settings(String[] args) throws IOException {
+		// Find the file first, the arguments may name it
+		String file = System.getenv(ENV_PREFIX + "CONFIG");
+		boolean named = file != null;
+		for (String arg : args) {
+			if (arg.startsWith("--config=")) {
+				file = arg.substring("--config=".length());
+				named = true;
+			}
+		}
+
+		List<String[]> settings = new ArrayList<String[]>();
+		Properties properties = new Properties();
+		if (named || new File(DEFAULT_FILE).isFile()) {
+			InputStream in = new FileInputStream(named ? file : DEFAULT_FILE);
+			try {
+				properties.load(in);
+			} finally {
+				in.close();
+			}
+		}
+		for (String key : properties.stringPropertyNames()) {
+			settings.add(new String[] { key, properties.getProperty(key) });
+		}
+
+		for (Map.Entry<String, String> entry : System.getenv().entrySet()) {
+			String name = entry.getKey();
+			if (name.startsWith(ENV_PREFIX)
+					&& !name.equals(ENV_PREFIX + "CONFIG")) {
+				settings.add(new String[] {
+						name.substring(ENV_PREFIX.length()),
+						entry.getValue() });
+			}
+		}
+
+		for (String arg : args) {
+			if (!arg.startsWith("--")) {
+				throw new IllegalArgumentException("Expected --key=value, got "
+						+ arg);
+			}
+			int split = arg.indexOf('=');
+			String key = split < 0 ? arg.substring(2) : arg.substring(2, split);
+			String value = split < 0 ? "true" : arg.substring(split + 1);
+			if (!key.equals("config")) {
+				settings.add(new String[] { key, value });
+			}
+		}
+		return settings;
+	}
+
+	/* The key in the one form set() compares against */
+	private static String name(String key) {
+		return key.trim().toLowerCase(Locale.ROOT).replace('_', '.')
+				.replace('-', '.');
+	}
+
+	/* Applies one setting, the key in any case with any separators */
+	public void set(String key, String value) {
+		String name = name(key);
+		value = value.trim();
+		try {
+			if (name.equals("bind")) {
+				bind = addresses(value);
+			} else if (name.equals("port")) {
+				ports = ports(value);
+			} else if (name.equals("metrics.port")) {
+				metricsPort = range(value, -1, 65535);
+			} else if (name.equals("reactors")) {
+				reactors = range(value, 0, 1024);
+			} else if (name.equals("backlog")) {
+				backlog = range(value, 0, Integer.MAX_VALUE);
+			} else if (name.equals("high.water")) {
+				highWater = range(value, 1, Integer.MAX_VALUE);
+			} else if (name.equals("read.buffer")) {
+				readBuffer = range(value, 1024, Integer.MAX_VALUE);
+			} else if (name.equals("pool.buffer")) {
+				poolBuffer = range(value, 64, Integer.MAX_VALUE);
+			} else if (name.equals("pool.max")) {
+				poolMax = range(value, 0, Integer.MAX_VALUE);
+			} else if (name.equals("room.capacity")) {
+				roomCapacity = range(value, 1, Integer.MAX_VALUE);
+			} else if (name.equals("room.max")) {
+				roomMax = range(value, 1, Integer.MAX_VALUE);
+			} else if (name.equals("room.cooldown")) {
+				roomCooldown = Long.parseLong(value);
+			} else if (name.equals("flush.budget")) {
+				flushBudget = Long.parseLong(value);
+			} else if (name.equals("idle.timeout")) {
+				idleTimeout = Long.parseLong(value);
+			} else if (name.equals("tcp.nodelay")) {
+				tcpNoDelay = bool(value);
+			} else if (name.equals("so.rcvbuf")) {
+				receiveBuffer = range(value, 0, Integer.MAX_VALUE);
+			} else if (name.equals("so.sndbuf")) {
+				sendBuffer = range(value, 0, Integer.MAX_VALUE);
+			} else if (name.equals("so.reuseport")) {
+				reusePort = bool(value);
+			} else if (name.equals("accept.sharded")) {
+				acceptSharded = bool(value);
+			} else if (name.equals("history.dir")) {
+				historyDir = value;
+			} else if (name.equals("history.segment")) {
+				historySegment = Long.parseLong(value);
+			} else if (name.equals("history.fsync")) {
+				historyFsync = Long.parseLong(value);
+			} else if (name.equals("snapshot.dir")) {
+				snapshotDir = value;
+			} else if (name.equals("snapshot.interval")) {
+				snapshotInterval = Long.parseLong(value);
+			} else if (name.equals("resume.grace")) {
+				resumeGrace = Long.parseLong(value);
+			} else if (name.equals("cluster.nodes")) {
+				clusterNodes = value;
+			} else if (name.equals("cluster.self")) {
+				clusterSelf = value;
+			} else if (name.equals("cluster.vnodes")) {
+				clusterVirtualNodes = range(value, 1, 4096);
+			} else if (name.equals("connections.max")) {
+				connectionsMax = range(value, 0, Integer.MAX_VALUE);
+			} else if (name.equals("accept.rate")) {
+				acceptRate = rate(value);
+			} else if (name.equals("accept.burst")) {
+				acceptBurst = range(value, 1, Integer.MAX_VALUE);
+			} else if (name.equals("message.rate")) {
+				messageRate = rate(value);
+			} else if (name.equals("message.burst")) {
+				messageBurst = range(value, 1, Integer.MAX_VALUE);
+			} else if (name.equals("ip.connections")) {
+				ipConnections = range(value, 0, Integer.MAX_VALUE);
+			} else if (name.equals("ip.accept.rate")) {
+				ipAcceptRate = rate(value);
+			} else if (name.equals("ip.message.rate")) {
+				ipMessageRate = rate(value);
+			} else if (name.equals("client.host")) {
+				clientHost = value;
+			} else if (name.equals("client.port")) {
+				clientPort = range(value, 1, 65535);
+			} else {
+				throw new IllegalArgumentException("Unknown setting " + key);
+			}
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Bad number for " + key + ": "
+					+ value);
+		} catch (UnknownHostException e) {
+			throw new IllegalArgumentException("Unknown host for " + key
+					+ ": " + value);
+		}
+	}
+
+	/* Checks the settings which depend on each other */
+	public void check() {
+		if (roomCapacity > roomMax) {
+			throw new IllegalArgumentException("room.capacity is over room.max");
+		}
+		ring();
+	}
+
+	/* The ring placing rooms over cluster.nodes, or null when alone */
+	public ConsistentHashRing ring() {
+		List<String> nodes = ConsistentHashRing.nodes(clusterNodes);
+		if (nodes.isEmpty()) {
+			return null;
+		}
+		return new ConsistentHashRing(nodes, clusterSelf, clusterVirtualNodes);
+	}
+
+	/* The number of reactors to start, resolving 0 to one per core */
+	public int reactorCount() {
+		return reactors > 0 ? reactors : Runtime.getRuntime()
+				.availableProcessors();
+	}
+
+	/* Sets up a listening socket before it is bound */
+	public void configure(ServerSocketChannel channel) throws IOException {
+		// Must be set before binding for windows over 64k
+		if (receiveBuffer > 0) {
+			channel.socket().setReceiveBufferSize(receiveBuffer);
+		}
+		if (reusePort) {
+			setReusePort(channel);
+		}
+	}
+
+	/* Sets up an accepted connection */
+	public void configure(SocketChannel channel) throws IOException {
+		channel.socket().setTcpNoDelay(tcpNoDelay);
+		if (receiveBuffer > 0) {
+			channel.socket().setReceiveBufferSize(receiveBuffer);
+		}
+		if (sendBuffer > 0) {
+			channel.socket().setSendBufferSize(sendBuffer);
+		}
+	}
+
+	/*
+	 * Turns on SO_REUSEPORT, returns false where the JDK or platform has no
+	 * such option. The option only exists from Java 9, so it is looked up.
+	 */
+	@SuppressWarnings("unchecked")
+	public static boolean setReusePort(NetworkChannel channel)
+			throws IOException {
+		SocketOption<Boolean> option;
+		try {
+			Field field = StandardSocketOptions.class.getField("SO_REUSEPORT");
+			option = (SocketOption<Boolean>) field.get(null);
+		} catch (Exception e) {
+			return false;
+		}
+		if (!channel.supportedOptions().contains(option)) {
+			return false;
+		}
+		channel.setOption(option, Boolean.TRUE);
+		return true;
+	}
+
+	private static int[] ports(String value) {
+		String[] parts = value.split(",");
+		List<Integer> ports = new ArrayList<Integer>();
+		for (String part : parts) {
+			if (!part.trim().isEmpty()) {
+				ports.add(range(part.trim(), 0, 65535));
+			}
+		}
+		if (ports.isEmpty()) {
+			throw new NumberFormatException(value);
+		}
+
+		int[] result = new int[ports.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = ports.get(i);
+		}
+		return result;
+	}
+
+	/* Addresses from a comma separated list, a null one for none */
+	private static InetAddress[] addresses(String value)
+			throws UnknownHostException {
+		List<InetAddress> addresses = new ArrayList<InetAddress>();
+		for (String part : value.split(",")) {
+			if (!part.trim().isEmpty()) {
+				addresses.add(InetAddress.getByName(part.trim()));
+			}
+		}
+		if (addresses.isEmpty()) {
+			addresses.add(null);
+		}
+		return addresses.toArray(new InetAddress[addresses.size()]);
+	}
+
+	private static int range(String value, int lowest, int highest) {
+		int number = Integer.parseInt(value);
+		if (number < lowest || number > highest) {
+			throw new NumberFormatException(value);
+		}
+		return number;
+	}
+
+	private static double rate(String value) {
+		double rate = Double.parseDouble(value);
+		if (!(rate >= 0) || Double.isInfinite(rate)) {
+			throw new NumberFormatException(value);
+		}
+		return rate;
+	}
+
+	private static boolean bool(String value) {
+		if (value.equalsIgnoreCase("true") || value.equals("1")
+				|| value.equalsIgnoreCase("yes")) {
+			return true;
+		}
+		if (value.equalsIgnoreCase("false") || value.equals("0")
+				|| value.equalsIgnoreCase("no")) {
+			return false;
+		}
+		throw new NumberFormatException(value);
+	}
+}
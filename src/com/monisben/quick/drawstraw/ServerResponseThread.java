@@ -1,108 +1,273 @@
 package com.monisben.quick.drawstraw;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.net.Socket;
-import java.nio.channels.ClosedByInterruptException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Ver 2.0
- * 
- * Server thread now sends back only one message which updates the clients UI
- * appropriately
- * 
+ * Ver 3.0
+ *
+ * Serves one client over a blocking socket. The thread running it only
+ * reads and hands each request to the listener; a second thread takes
+ * encoded messages off a blocking queue and writes them, so anything sent
+ * to the client goes out straight away rather than waiting for the client
+ * to speak. Both threads block, which is cheap when they are virtual.
+ *
+ * Both go straight to the blocking channel, which locks reads and writes
+ * apart. The streams of its socket() share one lock on JDK 8 and earlier,
+ * so a writer using them waits on a reader blocked for the client.
+ *
+ * Requests are read into one small buffer per client and decoded from it
+ * as the reactors do, so an idle client holds only that buffer, and it only
+ * grows while a frame too big for it is arriving.
+ *
  * @author Benjamin
- * 
+ *
  */
 public class ServerResponseThread extends MessageThread {
 
-	private Socket mSocket;
-	private BufferedInputStream mInStream;
-	private BufferedOutputStream mOutStream;
+	// Tells the writer to stop once everything before it is written
+	private static final ByteBuffer CLOSE = ByteBuffer.allocate(0);
 
-	// The name of the client
-	public String name;
+	// Most buffers the writer hands the channel in one write
+	private static final int MAX_GATHER = 64;
+
+	private final SocketChannel mChannel;
+
+	// What has been read and not yet decoded, only touched by the reader
+	private ByteBuffer mInbound = ByteBuffer
+			.allocate(Message.READ_BUFFER_SIZE);
+
+	// The server side state of the client, shared with the rooms
+	public final Connection connection;
+
+	// Encoded messages waiting for the writer, and their total size
+	private final BlockingQueue<ByteBuffer> mOutgoing =
+			new LinkedBlockingQueue<ByteBuffer>();
+	private final AtomicLong mPending = new AtomicLong();
+	private final int mHighWater;
+
+	// Makes the writer's thread
+	private final ThreadFactory mThreads;
 
 	public interface ServerResponseListener extends MessageListener {
-		public void dataChanged(ServerResponseThread thread, String[] data);
+
+		/* Called on the reading thread for every message from the client */
+		public void onRequest(ServerResponseThread thread, Message request)
+				throws IOException;
+
+		/* Called once on the reading thread after the client has gone */
+		public void onClosed(ServerResponseThread thread);
 	}
 
-	public ServerResponseThread(ServerResponseListener listener, Socket s) {
+	/*
+	 * Serves the connection, closing it once more than highWater bytes are
+	 * waiting to be written
+	 */
+	public ServerResponseThread(ServerResponseListener listener,
+			Connection connection, int highWater, ThreadFactory threads) {
 		super(listener);
-		mSocket = s;
-		name = null;
+		this.connection = connection;
+		connection.handler = this;
+		mChannel = connection.channel;
+		mThreads = threads;
+		mHighWater = highWater;
 	}
 
 	/* Retrieves the name of the user using this thread */
-	public synchronized String getUser() {
-		return name;
+	public String getUser() {
+		Room room = connection.room;
+		return room != null ? room.name(connection) : Message.EMPTY;
 	}
 
 	@Override
 	public void run() {
 		try {
-			mInStream = new BufferedInputStream(mSocket.getInputStream());
-			mOutStream = new BufferedOutputStream(mSocket.getOutputStream());
-
-			// Loop until stopped
-			while (mRunner == Thread.currentThread() && !mSocket.isClosed()) {
-
-				// Handle any server side messages first
-				Message message = mMessageQueue.poll();
-
-				if (message != null) {
-					// Passing back a message
-					sendMessage(message);
-
-				} else {
-					try {
-						// No message so listen
-						Message response = getResponse();
-
-						if (response != null && response.is(Message.HEAD_NAME)) {
-							// Inform server of name change request
-							((ServerResponseListener) mListener).dataChanged(
-									this, response.data);
-						}
-					} catch (ClosedByInterruptException e) {
-						// Read failed, close socket
-						e.printStackTrace();
-						mSocket.close();
-					}
+			// Writes run alongside reads
+			Thread writer = mThreads.newThread(new Runnable() {
+
+				@Override
+				public void run() {
+					writeLoop();
 				}
-			}
-		} catch (Exception e) {
-			e.printStackTrace();
+			});
+			writer.start();
+
+			readLoop();
+		} catch (IOException e) {
+			// Client went away or broke the protocol
 		} finally {
+			close();
+			((ServerResponseListener) mListener).onClosed(this);
 			stopThread();
 		}
 	}
 
-	/* Get a message from the other side */
-	private Message getResponse() throws IOException {
+	/* Reads requests until the client goes or the thread is stopped */
+	private void readLoop() throws IOException {
+		ServerResponseListener listener = (ServerResponseListener) mListener;
+		while (mRunner == Thread.currentThread() && mChannel.isOpen()) {
+			if (mChannel.read(mInbound) < 0) {
+				return;
+			}
+			mInbound.flip();
+
+			if (connection.version == Connection.UNKNOWN && !negotiate()) {
+				// Not enough to tell yet
+				mInbound.compact();
+				continue;
+			}
+
+			if (connection.version == Message.VERSION_LEGACY) {
+				// Old clients send one unframed message per write
+				if (mInbound.hasRemaining()) {
+					listener.onRequest(this, Message.decode(mInbound.array(),
+							mInbound.position(), mInbound.remaining()));
+				}
+				mInbound.clear();
+				continue;
+			}
+
+			// Handle every complete frame, keeping the rest for the next read
+			Message request;
+			while ((request = Message.decode(mInbound)) != null) {
+				listener.onRequest(this, request);
+			}
+			mInbound = Message.compact(mInbound);
+
+			// Let a buffer grown for a big frame go once it is done with
+			if (mInbound.position() == 0
+					&& mInbound.capacity() > Message.READ_BUFFER_SIZE) {
+				mInbound = ByteBuffer.allocate(Message.READ_BUFFER_SIZE);
+			}
+		}
+	}
+
+	/*
+	 * Works out which protocol the client speaks from its first byte,
+	 * returning false if the preamble has not all arrived yet
+	 */
+	private boolean negotiate() {
+		if (!mInbound.hasRemaining()) {
+			return false;
+		}
+		if (mInbound.get(mInbound.position()) != Message.MAGIC) {
+			connection.version = Message.VERSION_LEGACY;
+			return true;
+		}
+		if (mInbound.remaining() < Message.PREAMBLE_SIZE) {
+			return false;
+		}
 
-		// Attempt a read
-		byte[] buffer = new byte[1024];
-		int read = mInStream.read(buffer);
+		// Results are only sent by the non-blocking server, so stop short of
+		// version 3
+		mInbound.get();
+		int version = mInbound.get() & 0xFF;
+		connection.version = Math.max(Message.VERSION_1,
+				Math.min(version, Message.VERSION_2));
+		send(Message.preamble(connection.version));
+		return true;
+	}
+
+	/*
+	 * Writes whatever is queued, blocking while there is nothing. Everything
+	 * waiting goes out in one gathering write.
+	 */
+	private void writeLoop() {
+		List<ByteBuffer> batch = new ArrayList<ByteBuffer>();
+		ByteBuffer[] buffers = new ByteBuffer[MAX_GATHER];
+		try {
+			while (true) {
+				batch.add(mOutgoing.take());
+				mOutgoing.drainTo(batch, MAX_GATHER - 1);
 
-		if (read > 0) {
-			// Read data into new byte array of correct size
-			byte[] data = new byte[read];
-			System.arraycopy(buffer, 0, data, 0, read);
+				int count = 0;
+				boolean closing = false;
+				for (ByteBuffer buffer : batch) {
+					if (buffer == CLOSE) {
+						closing = true;
+						break;
+					}
+					mPending.addAndGet(-buffer.remaining());
+					buffers[count++] = buffer;
+				}
+				batch.clear();
 
-			// Convert back to string
-			return Message.decode(data);
+				// A blocking channel writes everything unless it fails
+				long left = 0;
+				for (int i = 0; i < count; i++) {
+					left += buffers[i].remaining();
+				}
+				while (left > 0) {
+					left -= mChannel.write(buffers, 0, count);
+				}
+				for (int i = 0; i < count; i++) {
+					buffers[i] = null;
+				}
+				if (closing) {
+					break;
+				}
+			}
+		} catch (InterruptedException e) {
+			// Stopped
+		} catch (IOException e) {
+			// The client went away mid write
+		} finally {
+			close();
 		}
+	}
 
-		return null;
+	/*
+	 * Queues bytes for the writer from any thread, never blocking. A client
+	 * with more than the high-water mark waiting is too slow and is closed
+	 * instead; its reader notices and tells the listener.
+	 */
+	public void send(ByteBuffer buffer) {
+		if (mPending.addAndGet(buffer.remaining()) > mHighWater) {
+			close();
+			return;
+		}
+		mOutgoing.add(buffer);
 	}
 
-	/* Sends the given message to the server */
-	private void sendMessage(Message message) throws IOException {
-		byte[] data = message.encode();
-		mOutStream.write(data);
-		mOutStream.flush();
+	/* Encodes and sends a message in whichever format the client speaks */
+	@Override
+	public void setMessage(Message message) {
+		try {
+			if (connection.version == Message.VERSION_LEGACY) {
+				send(ByteBuffer.wrap(message.encode()));
+			} else {
+				ByteBuffer buffer = ByteBuffer.allocate(message.frameSize());
+				message.encode(buffer);
+				buffer.flip();
+				send(buffer);
+			}
+		} catch (UnsupportedEncodingException e) {
+			close();
+		}
+	}
 
+	/*
+	 * Closes the channel, which wakes the reader, and stops the writer. Safe
+	 * to call more than once and from any thread.
+	 */
+	public void close() {
+		if (!mChannel.isOpen()) {
+			return;
+		}
+		try {
+			mChannel.close();
+		} catch (IOException e) {
+			// Closing anyway
+		}
+		mOutgoing.clear();
+		mOutgoing.add(CLOSE);
 	}
 }
@@ -0,0 +1,243 @@
+package com.monisben.quick.drawstraw;
+
+/**
+ * Reads the acceptor's and every reactor's metrics for JMX and the scrape
+ * endpoint. Reading never stops the selector threads, so totals taken while
+ * they run may be a few events apart from each other.
+ *
+ * @author Benjamin
+ *
+ */
+public class ServerStats implements ServerStatsMBean {
+
+	// Prefix of every scraped name
+	private static final String PREFIX = "drawstraw_";
+
+	private final Metrics mAcceptor;
+	private final Reactor[] mReactors;
+
+	public ServerStats(Metrics acceptor, Reactor[] reactors) {
+		mAcceptor = acceptor;
+		mReactors = reactors;
+	}
+
+	/* A counter summed over every thread */
+	public long total(int counter) {
+		long total = mAcceptor.get(counter);
+		for (int i = 0; i < mReactors.length; i++) {
+			total += mReactors[i].getMetrics().get(counter);
+		}
+		return total;
+	}
+
+	/* The reactors' loop times merged into one histogram */
+	public LogHistogram loopTime() {
+		LogHistogram merged = new LogHistogram();
+		for (int i = 0; i < mReactors.length; i++) {
+			merged.add(mReactors[i].getMetrics().getLoopTime());
+		}
+		return merged;
+	}
+
+	/* The reactors' request to last byte written times merged */
+	public LogHistogram responseTime() {
+		LogHistogram merged = new LogHistogram();
+		for (int i = 0; i < mReactors.length; i++) {
+			merged.add(mReactors[i].getMetrics().getResponseTime());
+		}
+		return merged;
+	}
+
+	/* The reactors' accept to register times merged */
+	public LogHistogram registerTime() {
+		LogHistogram merged = new LogHistogram();
+		for (int i = 0; i < mReactors.length; i++) {
+			merged.add(mReactors[i].getMetrics().getRegisterTime());
+		}
+		return merged;
+	}
+
+	@Override
+	public long getAccepts() {
+		return total(Metrics.ACCEPTS);
+	}
+
+	@Override
+	public long getRejects() {
+		return total(Metrics.REJECTS);
+	}
+
+	@Override
+	public long getBytesIn() {
+		return total(Metrics.BYTES_IN);
+	}
+
+	@Override
+	public long getBytesOut() {
+		return total(Metrics.BYTES_OUT);
+	}
+
+	@Override
+	public long getFrames() {
+		return total(Metrics.FRAMES);
+	}
+
+	@Override
+	public long getBroadcasts() {
+		return total(Metrics.BROADCASTS);
+	}
+
+	@Override
+	public long getDraws() {
+		return total(Metrics.DRAWS);
+	}
+
+	@Override
+	public long getWakeups() {
+		return total(Metrics.WAKEUPS);
+	}
+
+	@Override
+	public long getSlowConsumers() {
+		return total(Metrics.SLOW_CONSUMERS);
+	}
+
+	@Override
+	public long getErrors() {
+		return total(Metrics.ERRORS);
+	}
+
+	@Override
+	public long getIdleClosed() {
+		return total(Metrics.IDLE_CLOSED);
+	}
+
+	@Override
+	public long getRedirects() {
+		return total(Metrics.REDIRECTS);
+	}
+
+	@Override
+	public long getThrottled() {
+		return total(Metrics.THROTTLED);
+	}
+
+	@Override
+	public int getPendingChanges() {
+		int pending = 0;
+		for (int i = 0; i < mReactors.length; i++) {
+			pending += mReactors[i].pendingChanges();
+		}
+		return pending;
+	}
+
+	@Override
+	public long getLoopTimeP50() {
+		return loopTime().percentile(50) / 1000;
+	}
+
+	@Override
+	public long getLoopTimeP99() {
+		return loopTime().percentile(99) / 1000;
+	}
+
+	@Override
+	public long getLoopTimeMax() {
+		return loopTime().max() / 1000;
+	}
+
+	@Override
+	public long getResponseTimeP50() {
+		return responseTime().percentile(50) / 1000;
+	}
+
+	@Override
+	public long getResponseTimeP99() {
+		return responseTime().percentile(99) / 1000;
+	}
+
+	@Override
+	public long getRegisterTimeP99() {
+		return registerTime().percentile(99) / 1000;
+	}
+
+	/*
+	 * Every counter, gauge and time summary labelled by thread, in the plain
+	 * text format scrapers expect.
+	 */
+	@Override
+	public String scrape() {
+		StringBuilder out = new StringBuilder(4096);
+
+		for (int counter = 0; counter < Metrics.NAMES.length; counter++) {
+			String name = PREFIX + Metrics.NAMES[counter] + "_total";
+			out.append("# TYPE ").append(name).append(" counter\n");
+			sample(out, name, "acceptor", null, mAcceptor.get(counter));
+			for (int i = 0; i < mReactors.length; i++) {
+				sample(out, name, "reactor-" + i, null, mReactors[i]
+						.getMetrics().get(counter));
+			}
+		}
+
+		String pending = PREFIX + "pending_changes";
+		out.append("# TYPE ").append(pending).append(" gauge\n");
+		for (int i = 0; i < mReactors.length; i++) {
+			sample(out, pending, "reactor-" + i, null,
+					mReactors[i].pendingChanges());
+		}
+
+		String loop = PREFIX + "loop_seconds";
+		out.append("# TYPE ").append(loop).append(" summary\n");
+		summary(out, loop, "acceptor", mAcceptor.getLoopTime());
+		for (int i = 0; i < mReactors.length; i++) {
+			summary(out, loop, "reactor-" + i, mReactors[i].getMetrics()
+					.getLoopTime());
+		}
+
+		String response = PREFIX + "response_seconds";
+		out.append("# TYPE ").append(response).append(" summary\n");
+		for (int i = 0; i < mReactors.length; i++) {
+			summary(out, response, "reactor-" + i, mReactors[i].getMetrics()
+					.getResponseTime());
+		}
+
+		String register = PREFIX + "register_seconds";
+		out.append("# TYPE ").append(register).append(" summary\n");
+		for (int i = 0; i < mReactors.length; i++) {
+			summary(out, register, "reactor-" + i, mReactors[i].getMetrics()
+					.getRegisterTime());
+		}
+		return out.toString();
+	}
+
+	private static void summary(StringBuilder out, String name,
+			String thread, LogHistogram histogram) {
+		seconds(out, name, thread, "0.5", histogram.percentile(50));
+		seconds(out, name, thread, "0.99", histogram.percentile(99));
+		seconds(out, name, thread, "0.999", histogram.percentile(99.9));
+		seconds(out, name + "_sum", thread, null, histogram.sum());
+		sample(out, name + "_count", thread, null, histogram.count());
+		seconds(out, name + "_max", thread, null, histogram.max());
+	}
+
+	private static void seconds(StringBuilder out, String name,
+			String thread, String quantile, long nanos) {
+		label(out, name, thread, quantile);
+		out.append(nanos / 1e9).append('\n');
+	}
+
+	private static void sample(StringBuilder out, String name, String thread,
+			String quantile, long value) {
+		label(out, name, thread, quantile);
+		out.append(value).append('\n');
+	}
+
+	private static void label(StringBuilder out, String name, String thread,
+			String quantile) {
+		out.append(name).append("{thread=\"").append(thread).append('"');
+		if (quantile != null) {
+			out.append(",quantile=\"").append(quantile).append('"');
+		}
+		out.append("} ");
+	}
+}
@@ -0,0 +1,56 @@
+package com.monisben.quick.drawstraw;
+
+/**
+ * What the server shows over JMX, summed over the acceptor and every
+ * reactor. Times are in microseconds.
+ *
+ * @author Benjamin
+ *
+ */
+public interface ServerStatsMBean {
+
+	public long getAccepts();
+
+	public long getRejects();
+
+	public long getBytesIn();
+
+	public long getBytesOut();
+
+	public long getFrames();
+
+	public long getBroadcasts();
+
+	public long getDraws();
+
+	public long getWakeups();
+
+	public long getSlowConsumers();
+
+	public long getErrors();
+
+	public long getIdleClosed();
+
+	public long getRedirects();
+
+	public long getThrottled();
+
+	public int getPendingChanges();
+
+	public long getLoopTimeP50();
+
+	public long getLoopTimeP99();
+
+	public long getLoopTimeMax();
+
+	/* From reading a request to writing the last byte queued for its client */
+	public long getResponseTimeP50();
+
+	public long getResponseTimeP99();
+
+	/* From the acceptor taking a connection to its reactor registering it */
+	public long getRegisterTimeP99();
+
+	/* Everything in the plain text scrape format */
+	public String scrape();
+}
@@ -0,0 +1,202 @@
+package com.monisben.quick.drawstraw;
+
+import java.io.IOException;
+
+/**
+ * A hashed timing wheel driven by a selector loop. Time is cut into ticks and
+ * each timeout is linked into the bucket of the tick it falls due in, so
+ * scheduling and cancelling are O(1) no matter how many timeouts are
+ * pending. The loop selects no longer than timeUntilNextTick() and then calls
+ * expire(), which runs everything due on the calling thread.
+ *
+ * Not thread-safe, only the owning selector thread may use it.
+ *
+ * @author Benjamin
+ *
+ */
+public class TimerWheel {
+
+	// Default resolution and number of buckets
+	public static final long DEFAULT_TICK = 100;
+	public static final int DEFAULT_SIZE = 512;
+
+	public interface Task {
+
+		/* Called on the selector thread once the timeout falls due */
+		public void run(Timeout timeout) throws IOException;
+	}
+
+	/**
+	 * A scheduled run of a task. Owners keep hold of their timeouts and
+	 * schedule them again rather than creating new ones.
+	 */
+	public static class Timeout {
+
+		public final Task task;
+
+		// Whatever the owner wants the task to find, may be null
+		public final Object attachment;
+
+		// The tick this timeout is due in
+		long deadline;
+
+		// Links within the bucket, bucket is -1 while not scheduled
+		Timeout prev;
+		Timeout next;
+		int bucket = -1;
+
+		public Timeout(Task task) {
+			this(task, null);
+		}
+
+		public Timeout(Task task, Object attachment) {
+			this.task = task;
+			this.attachment = attachment;
+		}
+
+		public boolean isPending() {
+			return bucket >= 0;
+		}
+	}
+
+	private final long mTick;
+	private final Timeout[] mBuckets;
+	private final int mMask;
+
+	// Where the wheel started and the last tick that was expired
+	private final long mStart;
+	private long mCurrentTick;
+
+	// The number of scheduled timeouts
+	private int mSize;
+
+	public TimerWheel() {
+		this(DEFAULT_TICK, DEFAULT_SIZE);
+	}
+
+	public TimerWheel(long tickMillis, int buckets) {
+		// Round the bucket count up to a power of two
+		int size = Integer.highestOneBit(Math.max(1, buckets - 1)) << 1;
+
+		mTick = Math.max(1, tickMillis);
+		mBuckets = new Timeout[size];
+		mMask = size - 1;
+		mStart = now();
+	}
+
+	/* Milliseconds on a clock which never goes backwards */
+	public static long now() {
+		return System.nanoTime() / 1000000L;
+	}
+
+	public int size() {
+		return mSize;
+	}
+
+	/* Creates a timeout for the task and schedules it */
+	public Timeout schedule(Task task, long delayMillis) {
+		Timeout timeout = new Timeout(task);
+		schedule(timeout, delayMillis);
+		return timeout;
+	}
+
+	/* Schedules the timeout, moving it if it is already pending */
+	public void schedule(Timeout timeout, long delayMillis) {
+		if (timeout.isPending()) {
+			unlink(timeout);
+		}
+
+		// Never due before the next tick, rounding up
+		long due = now() + Math.max(0, delayMillis) - mStart;
+		long deadline = Math.max(mCurrentTick + 1, (due + mTick - 1) / mTick);
+
+		timeout.deadline = deadline;
+		link(timeout, (int) (deadline & mMask));
+	}
+
+	/* Stops the timeout from running, returns true if it was pending */
+	public boolean cancel(Timeout timeout) {
+		if (!timeout.isPending()) {
+			return false;
+		}
+		unlink(timeout);
+		return true;
+	}
+
+	/*
+	 * Milliseconds to wait before the next call to expire() has work, or 0
+	 * if nothing is scheduled and the selector may block indefinitely.
+	 */
+	public long timeUntilNextTick() {
+		if (mSize == 0) {
+			return 0;
+		}
+		long next = mStart + (mCurrentTick + 1) * mTick;
+		return Math.max(1, next - now());
+	}
+
+	/* Runs every timeout which is due, returns the number run */
+	public int expire() throws IOException {
+		long nowTick = (now() - mStart) / mTick;
+		int run = 0;
+
+		// Visit each bucket at most once, even after a long stall
+		if (nowTick - mCurrentTick > mBuckets.length) {
+			mCurrentTick = nowTick - mBuckets.length;
+		}
+
+		while (mCurrentTick < nowTick) {
+			mCurrentTick++;
+			run += expire((int) (mCurrentTick & mMask), nowTick);
+		}
+		return run;
+	}
+
+	/* Runs the timeouts in one bucket that are due by the given tick */
+	private int expire(int bucket, long nowTick) throws IOException {
+		int run = 0;
+		Timeout timeout = mBuckets[bucket];
+		while (timeout != null) {
+			Timeout next = timeout.next;
+			if (timeout.deadline <= nowTick) {
+				unlink(timeout);
+				timeout.task.run(timeout);
+				run++;
+
+				// The task may have moved or cancelled the next one
+				if (next != null && next.bucket != bucket) {
+					next = mBuckets[bucket];
+				}
+			}
+			timeout = next;
+		}
+		return run;
+	}
+
+	private void link(Timeout timeout, int bucket) {
+		Timeout head = mBuckets[bucket];
+		timeout.bucket = bucket;
+		timeout.prev = null;
+		timeout.next = head;
+		if (head != null) {
+			head.prev = timeout;
+		}
+		mBuckets[bucket] = timeout;
+		mSize++;
+	}
+
+	private void unlink(Timeout timeout) {
+		if (timeout.prev != null) {
+			timeout.prev.next = timeout.next;
+		} else {
+			mBuckets[timeout.bucket] = timeout.next;
+		}
+		if (timeout.next != null) {
+			timeout.next.prev = timeout.prev;
+		}
+		timeout.prev = null;
+		timeout.next = null;
+		timeout.bucket = -1;
+		mSize--;
+	}
+}
@@ -0,0 +1,69 @@
+package com.monisben.quick.drawstraw;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket any number of threads may take from without locking. It
+ * refills at a steady rate up to a burst, and taking fails while it is
+ * empty.
+ *
+ * Rather than a count of tokens and a refill time it keeps the one time at
+ * which the bucket will be full again, in System.nanoTime() terms. Taking a
+ * token pushes that time on by one token's worth, and is refused if it
+ * would end up more than a whole burst ahead of now, so each take is a
+ * single compare and swap.
+ *
+ * @author Benjamin
+ *
+ */
+public class TokenBucket {
+
+	// Nanoseconds one token takes to come back, and a full bucket's worth
+	private final long mInterval;
+	private final long mCapacity;
+
+	// When the bucket will next be full
+	private final AtomicLong mFullAt;
+
+	/* Refills at rate tokens a second, holding up to burst of them */
+	public TokenBucket(double rate, int burst) {
+		mInterval = Math.max(1, (long) (1000000000L / rate));
+		mCapacity = mInterval * Math.max(1, burst);
+
+		// Full already, even to a caller whose now was read before this
+		mFullAt = new AtomicLong(System.nanoTime() - mCapacity);
+	}
+
+	/* Takes a token if there is one, now being System.nanoTime() */
+	public boolean tryTake(long now) {
+		while (true) {
+			long full = mFullAt.get();
+			long next = (full - now < 0 ? now : full) + mInterval;
+			if (next - now > mCapacity) {
+				return false;
+			}
+			if (mFullAt.compareAndSet(full, next)) {
+				return true;
+			}
+		}
+	}
+
+	/*
+	 * Gives back a token taken by tryTake() that went unused. The bucket
+	 * never ends up fuller than full, as a full time in the past counts as
+	 * now.
+	 */
+	public void putBack() {
+		mFullAt.addAndGet(-mInterval);
+	}
+
+	/* Nanoseconds until a token can be taken, 0 if one can be now */
+	public long waitTime(long now) {
+		return Math.max(0, mFullAt.get() + mInterval - mCapacity - now);
+	}
+
+	/* Checks if nothing has been taken that has not come back */
+	public boolean isFull(long now) {
+		return mFullAt.get() - now <= 0;
+	}
+}